@@ -0,0 +1,240 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * FILE: AntiEntropy.java
+ *
+ * Background repair of replicas that drifted apart, for instance because a
+ * COMMAND_BATCH was lost on a broken connection. Every period ms the server
+ * sends the root hash of its MerkleTree.java to the next live peer, in turn.
+ * A server that receives hashes answers with the hashes of the children of
+ * every node that differs, so both sides walk down only the subtrees that
+ * differ, one level per message. A leaf that differs is repaired by the
+ * server with the lower ID, which sends the books of that range and wins. Two
+ * replicas that agree exchange one small frame each way, whatever the size of
+ * the library.
+ *
+ * Hashes are only compared between servers that applied the same commands,
+ * which every message checks by carrying the version vector of its sender
+ * (see StateTransfer.java). The vector of a server counts every command up to
+ * it, none is skipped (see CommitOrder.java), so equal vectors mean the same
+ * commands. Replicas that are merely behind are left to the normal
+ * replication, and a repair never overwrites a newer command.
+ *
+ *   MERKLE  <Pn> <Pn.clock> <n> <v1..vn> {<node> <hash>}...
+ *   REPAIR  <Pn> <Pn.clock> <n> <v1..vn> <leaf> {<gap> <Cx>}...
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class AntiEntropy
+{
+	private static final int FRAME = 32*1024; // size frames are filled up to
+
+	private LibraryServer server; // server the task belongs to
+	private BookCatalog books; // catalog of the server
+	private MerkleTree tree; // hash tree of the catalog
+	private StateTransfer transfer; // holds the version vector
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private long period; // ms between rounds, 0 if off
+	private long nextRound; // time the next round starts
+	private int next; // peer the next round goes to
+	private ByteBuffer out; // buffer frames are encoded into
+	private int start; // position of the frame being filled, -1 if none
+
+	/**
+	* @param LibraryServer server - server the task belongs to.
+	* @param BookCatalog books - catalog of the server.
+	* @param StateTransfer transfer - holds the version vector of the server.
+	* @param long period - milliseconds between rounds, 0 turns the task off.
+	*/
+	public AntiEntropy(LibraryServer server, BookCatalog books,
+	StateTransfer transfer, long period)
+	{
+		this.server = server;
+		this.books = books;
+		this.tree = books.tree();
+		this.transfer = transfer;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		this.period = Math.max(0, period);
+		this.nextRound = System.currentTimeMillis() + period;
+		this.next = (pid + 1) % servNum;
+		this.out = ByteBuffer.allocate(FRAME + 1024);
+		this.start = -1;
+	}
+
+	/**
+	* @param long now - current time in milliseconds.
+	* @return long - milliseconds until the next round, 0 if the task is off.
+	*/
+	public long due(long now)
+	{
+		if (period == 0) return 0;
+		return Math.max(1, nextRound - now);
+	}
+
+	/**
+	* Starts a round with the next live peer if one is due. Called on every
+	* pass of the main loop.
+	* @param long now - current time in milliseconds.
+	*/
+	public void tick(long now)
+	{
+		if (period == 0 || now < nextRound) return;
+		nextRound = now + period;
+		if (transfer.syncing()) return;
+		for (int i=0;i<servNum;i++)
+		{
+			int p = next;
+			next = (next + 1) % servNum;
+			if (p == pid || !server.isPeerUp(p)) continue;
+			out.clear();
+			begin(MessageCodec.MERKLE);
+			MessageCodec.putVarint(out, tree.root());
+			MessageCodec.putVarint(out, tree.hash(tree.root()));
+			flush(p);
+			return;
+		}
+	}
+
+	/**
+	* Handles a MERKLE or REPAIR message from another server.
+	* @param byte op - opcode of the message.
+	* @param int p - ID of the sending server.
+	* @param ByteBuffer frame - rest of the message.
+	*/
+	public void receive(byte op, int p, ByteBuffer frame)
+	{
+		if (transfer.syncing() || !sameVersions(frame)) return;
+		if (op == MessageCodec.MERKLE)
+		{
+			ArrayList<Integer> leaves = new ArrayList<Integer>();
+			out.clear();
+			while (frame.hasRemaining())
+			{
+				int node = (int) MessageCodec.getVarint(frame);
+				long hash = MessageCodec.getVarint(frame);
+				if (!tree.isNode(node) || tree.hash(node) == hash) continue;
+				if (tree.isLeaf(node))
+				{
+					// the lower ID repairs, the other side only tells it about the leaf
+					if (pid < p) leaves.add(node);
+					else put(p, MessageCodec.MERKLE, node);
+				} else {
+					put(p, MessageCodec.MERKLE, 2*node);
+					put(p, MessageCodec.MERKLE, 2*node+1);
+				}
+			}
+			flush(p);
+			for (int leaf : leaves) repair(p, leaf);
+		} else if (op == MessageCodec.REPAIR) {
+			int leaf = (int) MessageCodec.getVarint(frame);
+			if (!tree.isNode(leaf) || !tree.isLeaf(leaf)) return;
+			int first = tree.firstBook(leaf);
+			int last = Math.min(books.size(), first + tree.leafSize());
+			for (int b=first;b<last;b++)
+				if (!books.isFree(b)) books.release(b, books.holder(b));
+			int book = first - 1;
+			while (frame.hasRemaining())
+			{
+				book += (int) MessageCodec.getVarint(frame);
+				String c_id = MessageCodec.getString(frame);
+				if (book < last) books.reserve(book, books.internClient(c_id));
+			}
+			server.repaired(first, last);
+		}
+	}
+
+	/**
+	* Sends the books of a leaf to a server that disagrees on it.
+	* @param int p - ID of the server.
+	* @param int leaf - index of the leaf.
+	*/
+	private void repair(int p, int leaf)
+	{
+		out.clear();
+		begin(MessageCodec.REPAIR);
+		MessageCodec.putVarint(out, leaf);
+		int first = tree.firstBook(leaf);
+		int last = Math.min(books.size(), first + tree.leafSize());
+		int prev = first - 1;
+		for (int b=first;b<last;b++)
+		{
+			if (books.isFree(b)) continue;
+			String c_id = books.clientName(books.holder(b));
+			if (out.remaining() < 64 + 3*c_id.length())
+			{
+				ByteBuffer n = ByteBuffer.allocate(out.capacity()*2 + 3*c_id.length());
+				out.flip();
+				out = n.put(out);
+			}
+			MessageCodec.putVarint(out, b - prev);
+			MessageCodec.putString(out, c_id);
+			prev = b;
+		}
+		flush(p);
+	}
+
+	/**
+	* Adds the hash of a node to the MERKLE frame being filled, sending it
+	* first if it is full.
+	* @param int p - ID of the server the frame goes to.
+	* @param byte op - opcode of the frame.
+	* @param int node - index of the node.
+	*/
+	private void put(int p, byte op, int node)
+	{
+		if (start >= 0 && out.position() >= FRAME) flush(p);
+		if (start < 0) begin(op);
+		MessageCodec.putVarint(out, node);
+		MessageCodec.putVarint(out, tree.hash(node));
+	}
+
+	/**
+	* Starts a frame stamped with the version vector of this server.
+	* @param byte op - opcode of the frame.
+	*/
+	private void begin(byte op)
+	{
+		start = MessageCodec.begin(out, op);
+		MessageCodec.putVarint(out, pid);
+		MessageCodec.putVarint(out, server.clocks.now());
+		MessageCodec.putVarint(out, servNum);
+		for (int i=0;i<servNum;i++) MessageCodec.putVarint(out, transfer.applied(i));
+	}
+
+	/**
+	* Sends the frame being filled, if any.
+	* @param int p - ID of the server it goes to.
+	*/
+	private void flush(int p)
+	{
+		if (start < 0) return;
+		MessageCodec.end(out, start);
+		out.flip();
+		server.sendTo(p, out);
+		out.clear();
+		start = -1;
+	}
+
+	/**
+	* Reads the version vector of a message.
+	* @param ByteBuffer frame - message positioned at the vector.
+	* @return boolean - whether or not it equals the one of this server.
+	*/
+	private boolean sameVersions(ByteBuffer frame)
+	{
+		int n = (int) MessageCodec.getVarint(frame);
+		boolean same = n == servNum;
+		for (int i=0;i<n;i++)
+		{
+			long v = MessageCodec.getVarint(frame);
+			if (i < servNum && v != transfer.applied(i)) same = false;
+		}
+		return same;
+	}
+}
@@ -0,0 +1,325 @@
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * FILE: ApplyPool.java
+ *
+ * Applies batches of replicated commands (a COMMAND_BATCH or LOG frame, a
+ * DELTA or a chunk of a snapshot) to a BookCatalog on several threads. The
+ * commands of a batch are staged by the execution thread, with their client
+ * IDs already interned, then split by the leaf of the MerkleTree.java their book falls
+ * in. Every thread applies the commands of its leaves in the order they were
+ * staged, so two commands on the same book keep their order while books of
+ * different leaves are changed at the same time. The hash tree above the
+ * leaves is shared and updated with atomic adds.
+ *
+ * Everything that depends on the order of the whole batch, the version
+ * vector, the history and the write-ahead log, is left to the execution
+ * thread once the batch is applied (see LibraryServer.applyStaged()). Small
+ * batches are applied by the execution thread alone.
+ *
+ * Bench.java measures the commands applied per second with 1, 2, 4...
+ * threads (apply.batch).
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class ApplyPool
+{
+	private BookCatalog books; // catalog the commands are applied to
+	private int leafSize; // number of books per leaf of the hash tree
+	private int minParallel; // smallest batch worth handing out
+	private Thread[] workers; // threads helping the execution thread
+	private CyclicBarrier start; // releases the workers on a batch
+	private CyclicBarrier done; // waits for the workers to finish it
+	private Log log; // where a broken batch is reported
+
+	// staged batch
+	private int n; // number of staged commands
+	private boolean ran; // whether the batch was applied
+	private int[] origin; // server that committed the command, -1 if none
+	private long[] version; // version of the command at that server
+	private byte[] op; // MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN
+	private int[] book; // index of the book
+	private int[] client; // interned client ID
+	private long[] trace; // trace ID, see Tracing.java
+	private boolean[] skip; // whether the command must not be applied
+	private boolean[] ok; // whether the command changed the books
+
+	// partitions of the batch, one per thread, index 0 is the execution thread
+	private int[][] part; // indexes of the staged commands of a partition
+	private int[] partLen; // number of commands in each partition
+	private int[] reserved; // change of the reserved count by each partition
+
+	/**
+	* @param BookCatalog books - catalog the commands are applied to.
+	* @param int threads - number of worker threads, 0 applies every batch on
+	* the execution thread.
+	* @param int minParallel - smallest batch that is split between threads.
+	* @param Log log - where a broken batch is reported.
+	*/
+	public ApplyPool(BookCatalog books, int threads, int minParallel, Log log)
+	{
+		this.log = log;
+		this.books = books;
+		this.leafSize = books.tree().leafSize();
+		this.minParallel = Math.max(1, minParallel);
+		int parts = Math.max(0, threads) + 1;
+		origin = new int[256];
+		version = new long[256];
+		op = new byte[256];
+		book = new int[256];
+		client = new int[256];
+		trace = new long[256];
+		skip = new boolean[256];
+		ok = new boolean[256];
+		part = new int[parts][256];
+		partLen = new int[parts];
+		reserved = new int[parts];
+		workers = new Thread[parts - 1];
+		if (workers.length == 0) return;
+		start = new CyclicBarrier(parts);
+		done = new CyclicBarrier(parts);
+		for (int i=0;i<workers.length;i++)
+		{
+			final int p = i + 1;
+			workers[i] = new Thread("apply-"+p)
+			{
+				public void run()
+				{
+					try
+					{
+						while (true)
+						{
+							start.await();
+							applyPart(p);
+							done.await();
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (BrokenBarrierException e) {
+						return;
+					}
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	* @return int - number of worker threads.
+	*/
+	public int threads()
+	{
+		return workers.length;
+	}
+
+	/**
+	* Stages a command. The first command staged after run() starts a new
+	* batch.
+	* @param int origin - server that committed the command, -1 if it is not a
+	* command (a snapshot).
+	* @param long version - version of the command at that server.
+	* @param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @param long trace - trace ID of the command, 0 if none.
+	* @param boolean skip - true if the command must fail without being
+	* applied.
+	* @return int - index of the command in the batch.
+	*/
+	public int add(int origin, long version, int op, int book, int client,
+	long trace, boolean skip)
+	{
+		if (ran) clear();
+		if (n == this.op.length) grow(2*n);
+		this.origin[n] = origin;
+		this.version[n] = version;
+		this.op[n] = (byte) op;
+		this.book[n] = book;
+		this.client[n] = client;
+		this.trace[n] = trace;
+		this.skip[n] = skip;
+		this.ok[n] = false;
+		return n++;
+	}
+
+	/**
+	* Applies the staged batch and waits until it is done.
+	*/
+	public void run()
+	{
+		if (ran) clear();
+		ran = true;
+		if (n == 0) return;
+		if (workers.length == 0 || n < minParallel)
+		{
+			for (int i=0;i<n;i++)
+			{
+				if (skip[i]) continue;
+				ok[i] = op[i] == MessageCodec.OP_RESERVE ?
+					books.reserve(book[i], client[i]) :
+					books.release(book[i], client[i]);
+			}
+			return;
+		}
+		int parts = partLen.length;
+		Arrays.fill(partLen, 0);
+		for (int i=0;i<n;i++)
+		{
+			if (skip[i]) continue;
+			int p = (book[i] / leafSize) % parts;
+			if (partLen[p] == part[p].length)
+				part[p] = Arrays.copyOf(part[p], 2*partLen[p]);
+			part[p][partLen[p]++] = i;
+		}
+		try
+		{
+			start.await();
+			applyPart(0);
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (BrokenBarrierException e) {
+			log.log(Log.ERROR, null, "apply: a worker left the batch", e);
+		}
+		int delta = 0;
+		for (int p=0;p<parts;p++) delta += reserved[p];
+		books.addReserved(delta);
+	}
+
+	/**
+	* Applies the commands of one partition of the batch.
+	* @param int p - index of the partition.
+	*/
+	private void applyPart(int p)
+	{
+		int[] idx = part[p];
+		int count = 0;
+		for (int k=0;k<partLen[p];k++)
+		{
+			int i = idx[k];
+			if (op[i] == MessageCodec.OP_RESERVE)
+			{
+				ok[i] = books.reserveShared(book[i], client[i]);
+				if (ok[i]) count++;
+			} else {
+				ok[i] = books.releaseShared(book[i], client[i]);
+				if (ok[i]) count--;
+			}
+		}
+		reserved[p] = count;
+	}
+
+	/**
+	* @return int - number of commands in the batch.
+	*/
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return boolean - whether or not it changed the books.
+	*/
+	public boolean ok(int i)
+	{
+		return ok[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return int - server that committed it, -1 if it is not a command.
+	*/
+	public int origin(int i)
+	{
+		return origin[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return long - its version at the server that committed it.
+	*/
+	public long version(int i)
+	{
+		return version[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return int - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*/
+	public int op(int i)
+	{
+		return op[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return int - index of its book.
+	*/
+	public int book(int i)
+	{
+		return book[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return long - its trace ID, 0 if none.
+	*/
+	public long trace(int i)
+	{
+		return trace[i];
+	}
+
+	/**
+	* @param int i - index of a command in the batch.
+	* @return String - ID of its client.
+	*/
+	public String clientID(int i)
+	{
+		return books.clientName(client[i]);
+	}
+
+	/**
+	* Outcome of an applied command, the same LibraryServer.processBook()
+	* gives.
+	* @param int i - index of a command in the batch.
+	* @return int - LibraryServer.FAILED, RESERVED or RETURNED.
+	*/
+	public int outcome(int i)
+	{
+		if (!ok[i]) return LibraryServer.FAILED;
+		return op[i] == MessageCodec.OP_RESERVE ? LibraryServer.RESERVED :
+			LibraryServer.RETURNED;
+	}
+
+	/**
+	* Drops the batch.
+	*/
+	private void clear()
+	{
+		n = 0;
+		ran = false;
+	}
+
+	/**
+	* @param int size - new capacity of the batch.
+	*/
+	private void grow(int size)
+	{
+		origin = Arrays.copyOf(origin, size);
+		version = Arrays.copyOf(version, size);
+		op = Arrays.copyOf(op, size);
+		book = Arrays.copyOf(book, size);
+		client = Arrays.copyOf(client, size);
+		trace = Arrays.copyOf(trace, size);
+		skip = Arrays.copyOf(skip, size);
+		ok = Arrays.copyOf(ok, size);
+	}
+}
@@ -0,0 +1,1218 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FILE: Bench.java
+ *
+ * Benchmarks of the hot paths of LibraryServer.java, to measure a change
+ * before it goes in:
+ *
+ *   java Bench [-f filter] [-o results.json] [-w warmup] [-i iterations]
+ *              [-t ms] [-d seconds] [-n clients] [-p port] [-s "option"]...
+ *   java Bench -c before.json after.json
+ *
+ * Microbenchmarks, in the average time mode of JMH: the code is run in a
+ * loop for w warmup iterations of t ms, whose results are thrown away, then
+ * for i measured ones. The score is the mean time per operation with the
+ * half width of its 99.9% confidence interval. Results go through a volatile
+ * sink so the JIT cannot drop the work.
+ *
+ *   codec.request    encoding a client REQUEST frame
+ *   codec.batch      encoding a COMMAND_BATCH of 8 commands
+ *   codec.decode     splitting REQUEST frames out of the bytes read and
+ *                    parsing their text, per frame
+ *   catalog.command  interning the client of a command from the frame and
+ *                    reserving or returning a random book, at 1K, 100K and 1M
+ *                    books
+ *   catalog.snapshot writing the whole catalog (one book in ten reserved) as
+ *                    the SNAPSHOT frames of StateTransfer.java
+ *   clock.update     a clock update for a message received and the clock test
+ *                    of FlagMutex.granted(), for 3 and 5 servers
+ *   clock.hybrid     the same with the hybrid clock
+ *   clock.boxed      the same with the Integer[] and Collections.max()/min()
+ *                    the LogicalClock.java replaced
+ *   apply.batch      applying batches of 4096 commands to a million books
+ *                    with the ApplyPool.java on 1, 2, 4... threads, up to
+ *                    the number of cores, per command
+ *   log.message      a message logged through the ring of Log.java, to a
+ *                    writer that drops the lines
+ *   log.skipped      a message below the level of the logger
+ *   wal.append       a command appended to the WriteAheadLog.java, with a
+ *                    sync for every command and for every 32
+ *   wal.recover      recovering a million books from a checkpoint and a tail
+ *                    of 100000 records
+ *
+ * Macrobenchmarks, in the throughput mode:
+ *
+ *   reactor          n connections (default: 16) keep 16 REQUEST frames in
+ *                    flight each, answered by an execution thread through a
+ *                    Reactor.java with 1, 2, 4... I/O threads, up to the
+ *                    number of cores, for d seconds (default: 10). The score
+ *                    is the number of frames per second, with the round
+ *                    trip percentiles and the bytes allocated per frame by
+ *                    the server side threads as secondary metrics.
+ *   reactor.coalesce the same with coalescing on.
+ *   cluster          clusters of 3 and 5 servers run on threads of this JVM
+ *                    on loopback ports from p (default: 4100), with n closed
+ *                    loop clients reserving and returning random books for d
+ *                    seconds after a warmup of a fifth of that. The score is
+ *                    the number of commands answered per second, with their
+ *                    latency percentiles as secondary metrics. Every -s line
+ *                    is added to the configuration of the servers, to
+ *                    benchmark an option (ex: -s "mutex lamport").
+ *
+ * The filter is matched against the name of a benchmark followed by its
+ * parameter, as printed (ex: -f "apply", -f "nodes=3").
+ *
+ * Results are written in the JSON layout of JMH (-rf json), one result per
+ * line, so that runs of two commits can be compared with -c.
+ *
+ * The microbenchmarks also run under JMH itself, from the jmh profile of
+ * pom.xml (see jmh/bench/MicroBenchmarks.java), which sets them up with
+ * workload().
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Bench
+{
+	private static final double Z999 = 3.291; // normal quantile of the 99.9% CI
+
+	static volatile long sink; // keeps the results of the benchmarks alive
+	static final Log log = new Log(Log.WARN); // errors of the benchmarks
+
+	private String filter = ""; // only runs the benchmarks whose name has it
+	private int warmup = 5; // warmup iterations of a microbenchmark
+	private int iterations = 5; // measured iterations of a microbenchmark
+	private long iterationNs = 500000000L; // length of an iteration
+	private int seconds = 10; // measured length of a macrobenchmark
+	private int clients = 16; // clients of a macrobenchmark
+	private int basePort = 4100; // first port of the macrobenchmark clusters
+	private ArrayList<String> options; // added to the config of the servers
+	private ArrayList<String> results; // JSON of every result
+	private volatile boolean measuring; // clients record their latencies
+	private volatile boolean stopping; // clients leave their loop
+
+	public Bench()
+	{
+		options = new ArrayList<String>();
+		results = new ArrayList<String>();
+	}
+
+	/**
+	* Runs every benchmark matching the filter.
+	*/
+	public void run() throws Exception
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		for (Micro m : micros(cpus))
+		{
+			if (selected(m.name, m.param, m.value)) measure(m);
+		}
+		for (int coalesce : new int[] {0, 16 * 1024})
+		{
+			String name = coalesce == 0 ? "reactor" : "reactor.coalesce";
+			for (int t=1;t<=cpus;t*=2)
+			{
+				if (selected(name, "iothreads", String.valueOf(t)))
+					reactor(name, t, coalesce);
+			}
+		}
+		for (int n : new int[] {3, 5})
+		{
+			if (selected("cluster", "nodes", String.valueOf(n)))
+				cluster(n);
+		}
+	}
+
+	/**
+	* @param int cpus - highest number of threads of the apply benchmarks.
+	* @return ArrayList<Micro> - every microbenchmark, in the order it runs.
+	*/
+	private static ArrayList<Micro> micros(int cpus)
+	{
+		ArrayList<Micro> micro = new ArrayList<Micro>();
+		micro.add(new RequestEncode());
+		micro.add(new BatchEncode());
+		micro.add(new Decode());
+		for (int n : new int[] {1000, 100000, 1000000}) micro.add(new Command(n));
+		for (int n : new int[] {1000, 100000, 1000000}) micro.add(new Snapshot(n));
+		for (int n : new int[] {3, 5}) micro.add(new ClockUpdate(n, false));
+		for (int n : new int[] {3, 5}) micro.add(new ClockUpdate(n, true));
+		for (int n : new int[] {3, 5}) micro.add(new ClockBoxed(n));
+		for (int t=1;t<=cpus;t*=2) micro.add(new Apply(t));
+		micro.add(new LogMessage(false));
+		micro.add(new LogMessage(true));
+		for (int g : new int[] {1, 32}) micro.add(new WalAppend(g));
+		micro.add(new WalRecover(1000000));
+		return micro;
+	}
+
+	/**
+	* Sets up a microbenchmark for jmh/bench/MicroBenchmarks.java, which runs
+	* it with JMH instead of measure().
+	* @param String key - name of the benchmark followed by its parameter, as
+	* printed (ex: "apply.batch threads=4").
+	* @param int batch - operations per call the caller scores it by.
+	* @return Object - the benchmark, a LongSupplier doing one call of it and
+	* an AutoCloseable tearing it down.
+	*/
+	public static Object workload(String key, int batch) throws Exception
+	{
+		// the JMH parameters go up to 4 threads whatever the cores
+		int cpus = Math.max(4, Runtime.getRuntime().availableProcessors());
+		for (Micro m : micros(cpus))
+		{
+			String name = m.param == null ? m.name : m.name+" "+m.param+"="+m.value;
+			if (!name.equals(key)) continue;
+			if (m.batch != batch)
+				throw new IllegalArgumentException(key+" does "+m.batch+
+				" operations per call, not "+batch);
+			m.setup();
+			return m;
+		}
+		throw new IllegalArgumentException("no benchmark "+key);
+	}
+
+	/**
+	* @param String name - name of a benchmark.
+	* @param String param - name of its parameter, null for none.
+	* @param String value - value of the parameter.
+	* @return boolean - whether the filter selects it.
+	*/
+	private boolean selected(String name, String param, String value)
+	{
+		return (param == null ? name : name+" "+param+"="+value).contains(filter);
+	}
+
+	/**
+	* Runs the warmup and measured iterations of a microbenchmark.
+	* @param Micro m - the benchmark.
+	*/
+	private void measure(Micro m) throws Exception
+	{
+		m.setup();
+		double[] scores = new double[iterations];
+		for (int it=-warmup;it<iterations;it++)
+		{
+			long ops = 0;
+			long start = System.nanoTime();
+			long end = start + iterationNs;
+			long now;
+			do
+			{
+				sink += m.run();
+				ops += m.batch;
+				now = System.nanoTime();
+			} while (now < end);
+			if (it >= 0) scores[it] = (double) (now - start) / ops;
+		}
+		m.teardown();
+		double mean = 0;
+		for (double s : scores) mean += s;
+		mean /= scores.length;
+		double var = 0;
+		for (double s : scores) var += (s - mean) * (s - mean);
+		double error = scores.length < 2 ? Double.NaN :
+			Z999 * Math.sqrt(var / (scores.length - 1) / scores.length);
+		StringBuilder raw = new StringBuilder("[[");
+		for (int i=0;i<scores.length;i++)
+			raw.append(i == 0 ? "" : ",").append(num(scores[i]));
+		raw.append("]]");
+		report(m.name, "avgt", m.param, m.value, mean, error, "ns/op",
+		raw.toString(), "{}");
+	}
+
+	/**
+	* Runs a cluster on loopback with closed loop clients and measures how many
+	* commands it answers per second and how long they take.
+	* @param int nodes - number of servers.
+	*/
+	private void cluster(int nodes) throws Exception
+	{
+		int books = 1000;
+		int port = basePort + 10 * nodes;
+		File config = File.createTempFile("bench", ".dat");
+		PrintWriter w = new PrintWriter(config);
+		w.println(nodes+" "+books);
+		for (int i=0;i<nodes;i++) w.println("127.0.0.1:"+(port + i));
+		for (int i=0;i<nodes;i++) w.println("s"+(i + 1)+" 1000000000 1");
+		w.println("log error");
+		for (String o : options) w.println(o);
+		w.close();
+
+		// servers, started in turn so each one connects to the previous ones
+		LibraryServer[] servers = new LibraryServer[nodes];
+		Thread[] threads = new Thread[nodes];
+		for (int i=0;i<nodes;i++)
+		{
+			final LibraryServer s = new LibraryServer(port + i, config.getPath());
+			servers[i] = s;
+			threads[i] = new Thread("server-"+(i + 1))
+			{
+				public void run()
+				{
+					s.run();
+				}
+			};
+			threads[i].start();
+			Thread.sleep(500);
+		}
+		Thread.sleep(1000);
+
+		// clients, spread over the servers
+		final Metrics.Histogram latency = new Metrics.Histogram("bench");
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		measuring = false;
+		stopping = false;
+		Thread[] loops = new Thread[clients];
+		for (int c=0;c<clients;c++)
+		{
+			final int id = c;
+			final int to = port + c % nodes;
+			final int n = books;
+			loops[c] = new Thread("client-"+c)
+			{
+				public void run()
+				{
+					try
+					{
+						clientLoop(id, to, n, latency, ops);
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			loops[c].start();
+		}
+		Thread.sleep(Math.max(1, seconds / 5) * 1000L);
+		measuring = true;
+		long before = ops.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long done = ops.get() - before;
+		long ns = System.nanoTime() - start;
+		stopping = true;
+		for (Thread t : loops) t.join(10000);
+		for (LibraryServer s : servers) s.stop();
+		for (Thread t : threads) t.join(10000);
+		config.delete();
+
+		double rate = done * 1e9 / ns;
+		StringBuilder secondary = new StringBuilder("{");
+		double[] q = {0.5, 0.9, 0.99, 0.999};
+		for (int i=0;i<q.length;i++)
+		{
+			secondary.append(i == 0 ? "" : ",").append("\"p").append(q[i])
+			.append("\":{\"score\":").append(num(latency.quantile(q[i]) / 1e3))
+			.append(",\"scoreUnit\":\"us\"}");
+		}
+		secondary.append(",\"errors\":{\"score\":").append(errors.get())
+		.append(",\"scoreUnit\":\"clients\"}}");
+		report("cluster", "thrpt", "nodes", String.valueOf(nodes), rate, Double.NaN,
+		"ops/s", "[[" + num(rate) + "]]", secondary.toString());
+		System.out.println(String.format("%-40s p50 %.0f us, p99 %.0f us, "+
+		"p99.9 %.0f us", "", latency.quantile(0.5) / 1e3,
+		latency.quantile(0.99) / 1e3, latency.quantile(0.999) / 1e3));
+	}
+
+	/**
+	* Answers REQUEST frames pipelined by the clients through a reactor, the
+	* way LibraryServer.java does for a failed command. Frames, latencies and
+	* allocations are counted after the first second, once the pools are warm.
+	* @param String name - name of the benchmark.
+	* @param int threads - number of I/O threads.
+	* @param int coalesce - bytes coalesced per connection, 0 if off.
+	*/
+	private void reactor(String name, int threads, int coalesce) throws Exception
+	{
+		final int depth = 16;
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress("127.0.0.1", 0));
+		final int port = ssc.socket().getLocalPort();
+		final Reactor r = new Reactor(threads, log);
+		r.coalesce(coalesce, 200);
+		r.start(ssc);
+		stopping = false;
+
+		Thread exec = new Thread("exec")
+		{
+			public void run()
+			{
+				BookCatalog books = new BookCatalog(16);
+				MessageCodec.RequestParser parser = new MessageCodec.RequestParser();
+				ByteBuffer reply = ByteBuffer.allocateDirect(256);
+				Reactor.Event e;
+				while (!stopping)
+				{
+					if ((e = r.take(100)) == null || e.frame == null) continue;
+					ByteBuffer f = e.frame;
+					if (f.get() != MessageCodec.REQUEST || !parser.parse(f)) continue;
+					int c = books.internClient(f, parser.clientOff, parser.clientLen);
+					byte[] name = books.clientBytes(c);
+					reply.clear();
+					int start = MessageCodec.begin(reply, MessageCodec.REPLY);
+					MessageCodec.putVarint(reply, 5 + name.length + parser.bookLen);
+					reply.put((byte) 'f').put((byte) 'a').put((byte) 'i')
+					.put((byte) 'l').put((byte) ' ').put(name);
+					for (int i=0;i<parser.bookLen;i++) reply.put(f.get(parser.bookOff+i));
+					MessageCodec.end(reply, start);
+					reply.flip();
+					r.send(e.conn, reply, null);
+				}
+			}
+		};
+		exec.start();
+
+		final Metrics.Histogram latency = new Metrics.Histogram("bench");
+		final AtomicLong done = new AtomicLong();
+		final long from = System.currentTimeMillis() + 1000;
+		final long end = from + seconds * 1000L;
+		ArrayList<Thread> loops = new ArrayList<Thread>();
+		for (int i=0;i<clients;i++)
+		{
+			final String id = "c"+i;
+			Thread t = new Thread("client-"+i)
+			{
+				public void run()
+				{
+					try
+					{
+						SocketChannel sock = SocketChannel.open(
+						new InetSocketAddress("127.0.0.1", port));
+						sock.socket().setTcpNoDelay(true);
+						ByteBuffer req = MessageCodec.textFrame(MessageCodec.REQUEST,
+						id+" b1 reserve");
+						ByteBuffer batch = ByteBuffer.allocate(req.remaining() * depth);
+						for (int j=0;j<depth;j++) batch.put(req.duplicate());
+						MessageCodec.Decoder in = new MessageCodec.Decoder();
+						long now;
+						while ((now = System.currentTimeMillis()) < end)
+						{
+							long sent = System.nanoTime();
+							batch.flip();
+							while (batch.hasRemaining()) sock.write(batch);
+							batch.clear().position(batch.capacity());
+							for (int j=0;j<depth;j++)
+							{
+								while (in.next() == null)
+									if (in.read(sock) < 0) return;
+							}
+							if (now < from) continue;
+							done.addAndGet(depth);
+							latency.record(System.nanoTime() - sent);
+						}
+						sock.close();
+					} catch (IOException e) {
+						log.log(Log.ERROR, null, "reactor: {} failed", getName(), e);
+					}
+				}
+			};
+			loops.add(t);
+			t.start();
+		}
+
+		// skip the first second, then count frames and server side allocations
+		Thread.sleep(Math.max(0, from - System.currentTimeMillis()));
+		ArrayList<Thread> server = r.threads();
+		server.add(exec);
+		long ops = done.get();
+		long bytes = allocated(server);
+		long start = System.nanoTime();
+		for (Thread t : loops) t.join();
+		long ns = System.nanoTime() - start;
+		ops = done.get() - ops;
+		bytes = allocated(server) - bytes;
+		stopping = true;
+		r.close();
+		ssc.close();
+		exec.join();
+
+		double rate = ops * 1e9 / ns;
+		double perFrame = (double) bytes / Math.max(1, ops);
+		String secondary = "{\"p0.5\":{\"score\":"+num(latency.quantile(0.5) / 1e3)+
+			",\"scoreUnit\":\"us\"},\"p0.99\":{\"score\":"+
+			num(latency.quantile(0.99) / 1e3)+",\"scoreUnit\":\"us\"},"+
+			"\"allocated\":{\"score\":"+num(perFrame)+",\"scoreUnit\":\"B/op\"}}";
+		report(name, "thrpt", "iothreads", String.valueOf(threads), rate,
+		Double.NaN, "ops/s", "[[" + num(rate) + "]]", secondary);
+		System.out.println(String.format("%-40s p50 %.0f us, p99 %.0f us, "+
+		"%.2f bytes allocated/frame", "", latency.quantile(0.5) / 1e3,
+		latency.quantile(0.99) / 1e3, perFrame));
+	}
+
+	/**
+	* @param ArrayList<Thread> threads - threads to sum up.
+	* @return long - bytes allocated so far by the threads.
+	*/
+	private static long allocated(ArrayList<Thread> threads)
+	{
+		com.sun.management.ThreadMXBean mx =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long sum = 0;
+		for (Thread t : threads) sum += mx.getThreadAllocatedBytes(t.getId());
+		return sum;
+	}
+
+	/**
+	* Closed loop client: reserves a random book and returns it if it got it,
+	* one command at a time, until told to stop.
+	* @param int id - number of the client.
+	* @param int port - port of the server it talks to.
+	* @param int books - number of books in the library.
+	* @param Metrics.Histogram latency - latencies of the commands, in ns.
+	* @param AtomicLong ops - commands answered.
+	*/
+	private void clientLoop(int id, int port, int books, Metrics.Histogram latency,
+	AtomicLong ops) throws IOException
+	{
+		Socket s = new Socket();
+		s.connect(new InetSocketAddress("127.0.0.1", port));
+		s.setTcpNoDelay(true);
+		s.setSoTimeout(10000);
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(s.getOutputStream()));
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(s.getInputStream()));
+		send(out, MessageCodec.textFrame(MessageCodec.HELLO_CLIENT, ""));
+		receive(in);
+		Random rnd = new Random(id);
+		try
+		{
+			while (!stopping)
+			{
+				String book = " b"+rnd.nextInt(books)+" ";
+				for (int k=0;k<2;k++)
+				{
+					long t = System.nanoTime();
+					send(out, MessageCodec.textFrame(MessageCodec.REQUEST,
+					"bench"+id+book+(k == 0 ? "reserve" : "return")));
+					ByteBuffer reply = receive(in);
+					if (measuring) latency.record(System.nanoTime() - t);
+					ops.incrementAndGet();
+					reply.get();
+					if (MessageCodec.getString(reply).startsWith("fail")) break;
+				}
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	* @param DataOutputStream out - stream of a client socket.
+	* @param ByteBuffer frame - frame to send.
+	*/
+	private static void send(DataOutputStream out, ByteBuffer frame)
+	throws IOException
+	{
+		out.write(frame.array(), frame.position(), frame.remaining());
+		out.flush();
+	}
+
+	/**
+	* @param DataInputStream in - stream of a client socket.
+	* @return ByteBuffer - body of the next frame, at its opcode.
+	*/
+	private static ByteBuffer receive(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return ByteBuffer.wrap(b);
+	}
+
+	/**
+	* Prints a result and keeps its JSON.
+	* @param String name - name of the benchmark.
+	* @param String mode - avgt or thrpt.
+	* @param String param - name of the parameter, null for none.
+	* @param String value - value of the parameter.
+	* @param double score - the result.
+	* @param double error - half width of its confidence interval, NaN if none.
+	* @param String unit - unit of the score.
+	* @param String raw - score of every iteration, as a JSON array of arrays.
+	* @param String secondary - secondary metrics, as a JSON object.
+	*/
+	private void report(String name, String mode, String param, String value,
+	double score, double error, String unit, String raw, String secondary)
+	{
+		String label = param == null ? name : name+" "+param+"="+value;
+		System.out.println(String.format("%-40s %12.3f %s %s", label, score,
+		Double.isNaN(error) ? "         " : String.format("+- %7.3f", error), unit));
+		results.add("{\"benchmark\":\"Bench."+name+"\",\"mode\":\""+mode+
+		"\",\"threads\":1,\"forks\":0,\"warmupIterations\":"+
+		(mode.equals("avgt") ? warmup : 1)+",\"measurementIterations\":"+
+		(mode.equals("avgt") ? iterations : 1)+",\"params\":{"+
+		(param == null ? "" : "\""+param+"\":\""+value+"\"")+
+		"},\"primaryMetric\":{\"score\":"+num(score)+",\"scoreError\":"+
+		(Double.isNaN(error) ? "\"NaN\"" : num(error))+",\"scoreUnit\":\""+unit+
+		"\",\"rawData\":"+raw+"},\"secondaryMetrics\":"+secondary+"}");
+	}
+
+	/**
+	* @param double v - a number.
+	* @return String - v as a JSON number.
+	*/
+	private static String num(double v)
+	{
+		return String.format(java.util.Locale.ROOT, "%.3f", v);
+	}
+
+	/**
+	* Writes the results as a JSON array, one result per line.
+	* @param String path - file to write to.
+	*/
+	private void write(String path) throws IOException
+	{
+		PrintWriter w = new PrintWriter(path, "UTF-8");
+		w.println("[");
+		for (int i=0;i<results.size();i++)
+			w.println("\t"+results.get(i)+(i + 1 < results.size() ? "," : ""));
+		w.println("]");
+		w.close();
+	}
+
+	/**
+	* Prints the results of two runs side by side, with the change of every
+	* score and whether it is larger than the confidence intervals.
+	* @param String before - results of the first run.
+	* @param String after - results of the second run.
+	*/
+	public static void compare(String before, String after) throws IOException
+	{
+		LinkedHashMap<String,double[]> a = load(before);
+		LinkedHashMap<String,double[]> b = load(after);
+		for (String key : a.keySet())
+		{
+			double[] x = a.get(key), y = b.get(key);
+			if (y == null) continue;
+			double change = (y[0] - x[0]) / x[0] * 100;
+			boolean significant = Double.isNaN(x[1]) || Double.isNaN(y[1]) ||
+				Math.abs(y[0] - x[0]) > x[1] + y[1];
+			System.out.println(String.format("%-40s %12.3f %12.3f %+8.1f%%%s", key,
+			x[0], y[0], change, significant ? "" : "  (within error)"));
+		}
+	}
+
+	/**
+	* @param String path - results written by write().
+	* @return LinkedHashMap<String,double[]> - score and error by benchmark and
+	* parameter.
+	*/
+	private static LinkedHashMap<String,double[]> load(String path)
+	throws IOException
+	{
+		Pattern p = Pattern.compile("\"benchmark\":\"Bench\\.([^\"]*)\".*"+
+		"\"params\":\\{([^}]*)\\},\"primaryMetric\":\\{\"score\":([^,]*),"+
+		"\"scoreError\":([^,]*),");
+		LinkedHashMap<String,double[]> scores = new LinkedHashMap<String,double[]>();
+		BufferedReader r = new BufferedReader(new FileReader(path));
+		String line;
+		while ((line = r.readLine()) != null)
+		{
+			Matcher m = p.matcher(line);
+			if (!m.find()) continue;
+			String key = m.group(1)+" "+m.group(2).replace("\"", "").replace(':', '=');
+			String err = m.group(4).replace("\"", "");
+			scores.put(key.trim(), new double[] {Double.parseDouble(m.group(3)),
+				Double.parseDouble(err)});
+		}
+		r.close();
+		return scores;
+	}
+
+	/**
+	* A microbenchmark. run() does batch operations per call so that reading
+	* the time does not weigh on cheap ones. As a LongSupplier and an
+	* AutoCloseable it is run by JMH, see workload().
+	*/
+	private abstract static class Micro implements LongSupplier, AutoCloseable
+	{
+		String name; // name of the benchmark
+		String param; // name of its parameter, null for none
+		String value; // value of the parameter
+		int batch; // operations per call of run()
+
+		Micro(String name, String param, String value, int batch)
+		{
+			this.name = name;
+			this.param = param;
+			this.value = value;
+			this.batch = batch;
+		}
+
+		void setup() throws Exception
+		{
+		}
+
+		void teardown()
+		{
+		}
+
+		/**
+		* @return long - anything computed from the results, for the sink.
+		*/
+		abstract long run() throws Exception;
+
+		public long getAsLong()
+		{
+			try
+			{
+				return run();
+			} catch (Exception e) {
+				throw new IllegalStateException(name, e);
+			}
+		}
+
+		public void close()
+		{
+			teardown();
+		}
+	}
+
+	/**
+	* Encoding of a client command, as LibraryClient.java sends it.
+	*/
+	private static class RequestEncode extends Micro
+	{
+		RequestEncode()
+		{
+			super("codec.request", null, null, 1);
+		}
+
+		long run()
+		{
+			return MessageCodec.requestFrame(MessageCodec.REQUEST, "c12 b345 reserve",
+			0x1234567L).limit();
+		}
+	}
+
+	/**
+	* Encoding of the COMMAND_BATCH of a critical section, into a scratch
+	* buffer as LibraryServer.commitBatch() does.
+	*/
+	private static class BatchEncode extends Micro
+	{
+		private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+		private int clock;
+
+		BatchEncode()
+		{
+			super("codec.batch", null, null, 1);
+		}
+
+		long run()
+		{
+			out.clear();
+			int start = MessageCodec.begin(out, MessageCodec.COMMAND_BATCH);
+			MessageCodec.putVarint(out, 1);
+			MessageCodec.putVarint(out, ++clock);
+			MessageCodec.putVarint(out, 40);
+			MessageCodec.putVarint(out, 345);
+			MessageCodec.putVarint(out, clock * 8);
+			for (int i=0;i<8;i++)
+			{
+				MessageCodec.putVarint(out, i & 1);
+				MessageCodec.putVarint(out, 345 + i * 1000);
+				MessageCodec.putVarint(out, 12 + i);
+				MessageCodec.putVarint(out, 0);
+			}
+			MessageCodec.end(out, start);
+			return out.position();
+		}
+	}
+
+	/**
+	* Frames split out of the bytes read from a client and parsed, as the
+	* Reactor.java I/O threads and LibraryServer.processFrame() do.
+	*/
+	private static class Decode extends Micro
+	{
+		private static final int FRAMES = 64;
+		private byte[] bytes; // FRAMES REQUEST frames back to back
+		private MessageCodec.Decoder decoder = new MessageCodec.Decoder();
+		private MessageCodec.RequestParser parser = new MessageCodec.RequestParser();
+
+		Decode()
+		{
+			super("codec.decode", null, null, FRAMES);
+		}
+
+		void setup()
+		{
+			ByteBuffer all = ByteBuffer.allocate(64 * FRAMES);
+			for (int i=0;i<FRAMES;i++)
+			{
+				all.put(MessageCodec.requestFrame(MessageCodec.REQUEST,
+				"c"+(i % 7)+" b"+(i * 37)+(i % 3 == 0 ? " return" : " reserve"), 0));
+			}
+			bytes = new byte[all.position()];
+			all.flip();
+			all.get(bytes);
+		}
+
+		long run() throws IOException
+		{
+			decoder.append(bytes, 0, bytes.length);
+			long sum = 0;
+			ByteBuffer frame;
+			while ((frame = decoder.next()) != null)
+			{
+				frame.get();
+				if (parser.parse(frame)) sum += parser.book + parser.op;
+			}
+			return sum;
+		}
+	}
+
+	/**
+	* Lookup and update of the catalog for a client command, as
+	* LibraryServer.submit() and processBook() do.
+	*/
+	private static class Command extends Micro
+	{
+		private static final int OPS = 1024;
+		private int size; // number of books
+		private BookCatalog books;
+		private int[] picks; // random books
+		private ByteBuffer frame; // holds the client ID
+		private int next;
+
+		Command(int size)
+		{
+			super("catalog.command", "books", String.valueOf(size), OPS);
+			this.size = size;
+		}
+
+		void setup()
+		{
+			books = new BookCatalog(size);
+			Random rnd = new Random(1);
+			picks = new int[1 << 16];
+			for (int i=0;i<picks.length;i++) picks[i] = rnd.nextInt(size);
+			for (int c=0;c<64;c++) books.internClient("c"+c);
+			frame = ByteBuffer.wrap("c12 b0 reserve".getBytes(StandardCharsets.UTF_8));
+		}
+
+		long run()
+		{
+			long sum = 0;
+			for (int i=0;i<OPS;i++)
+			{
+				int client = books.internClient(frame, 0, 3);
+				int book = picks[next++ & (picks.length - 1)];
+				if (books.reserve(book, client)) sum++;
+				else if (books.release(book, client)) sum += 2;
+			}
+			return sum;
+		}
+	}
+
+	/**
+	* Snapshot of the whole catalog, as sent to a server that rejoins and
+	* written to the checkpoints of WriteAheadLog.java.
+	*/
+	private static class Snapshot extends Micro
+	{
+		private int size; // number of books
+		private BookCatalog books;
+		private long[] applied = new long[3];
+		private Counter ch = new Counter();
+
+		Snapshot(int size)
+		{
+			super("catalog.snapshot", "books", String.valueOf(size), 1);
+			this.size = size;
+		}
+
+		void setup()
+		{
+			books = new BookCatalog(size);
+			Random rnd = new Random(1);
+			for (int i=0;i<size/10;i++)
+				books.reserve(rnd.nextInt(size), books.internClient("c"+rnd.nextInt(64)));
+		}
+
+		long run() throws IOException
+		{
+			StateTransfer.writeSnapshot(ch, books, applied, 0, 1);
+			return ch.bytes;
+		}
+	}
+
+	/**
+	* Channel that only counts what is written to it.
+	*/
+	private static class Counter implements WritableByteChannel
+	{
+		long bytes; // bytes written so far
+
+		public int write(ByteBuffer src)
+		{
+			int n = src.remaining();
+			src.position(src.limit());
+			bytes += n;
+			return n;
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	/**
+	* Clock update for a message from a peer, LibraryServer.updateClock(),
+	* followed by the lowest clock test of FlagMutex.granted().
+	*/
+	private static class ClockUpdate extends Micro
+	{
+		private static final int OPS = 1024;
+		private int servers;
+		private boolean hybrid; // wall time in the high bits
+		private LogicalClock clocks;
+		private int from;
+
+		ClockUpdate(int servers, boolean hybrid)
+		{
+			super(hybrid ? "clock.hybrid" : "clock.update", "servers",
+			String.valueOf(servers), OPS);
+			this.servers = servers;
+			this.hybrid = hybrid;
+		}
+
+		void setup()
+		{
+			clocks = new LogicalClock(servers, 0, hybrid);
+		}
+
+		long run()
+		{
+			long granted = 0;
+			for (int i=0;i<OPS;i++)
+			{
+				if (++from == servers) from = 1;
+				clocks.witness(from, clocks.max() + (i & 1));
+				if ((i & 3) == 0) clocks.tick();
+				if (clocks.min() == clocks.now()) granted++;
+			}
+			return granted;
+		}
+	}
+
+	/**
+	* The same as ClockUpdate with the boxed clocks LibraryServer.updateClock()
+	* and FlagMutex had before LogicalClock.java.
+	*/
+	private static class ClockBoxed extends Micro
+	{
+		private static final int OPS = 1024;
+		private int servers;
+		private Integer[] clocks;
+		private int from;
+
+		ClockBoxed(int servers)
+		{
+			super("clock.boxed", "servers", String.valueOf(servers), OPS);
+			this.servers = servers;
+		}
+
+		void setup()
+		{
+			clocks = new Integer[servers];
+			Arrays.fill(clocks, 0);
+		}
+
+		long run()
+		{
+			long granted = 0;
+			for (int i=0;i<OPS;i++)
+			{
+				if (++from == servers) from = 1;
+				int max = Collections.max(Arrays.asList(clocks));
+				if (clocks[from] < max + (i & 1)) clocks[from] = max + (i & 1);
+				if ((i & 3) == 0) clocks[0] = clocks[0] + 1;
+				if (Collections.min(Arrays.asList(clocks)).equals(clocks[0])) granted++;
+			}
+			return granted;
+		}
+	}
+
+	/**
+	* Batches of replicated commands applied by the ApplyPool.java, every
+	* batch reserving random books and the next one returning them.
+	*/
+	private static class Apply extends Micro
+	{
+		private static final int OPS = 4096;
+		private int threads; // threads applying a batch, the caller included
+		private BookCatalog books;
+		private ApplyPool pool;
+		private int[] picks; // random books
+		private int[] clients; // interned clients
+		private long round;
+
+		Apply(int threads)
+		{
+			super("apply.batch", "threads", String.valueOf(threads), OPS);
+			this.threads = threads;
+		}
+
+		void setup()
+		{
+			books = new BookCatalog(1000000);
+			pool = new ApplyPool(books, threads - 1, 1, log);
+			Random rnd = new Random(1);
+			picks = new int[1 << 20];
+			for (int i=0;i<picks.length;i++) picks[i] = rnd.nextInt(1000000);
+			clients = new int[16];
+			for (int i=0;i<clients.length;i++) clients[i] = books.internClient("c"+i);
+		}
+
+		long run()
+		{
+			int op = (round & 1) == 0 ? MessageCodec.OP_RESERVE : MessageCodec.OP_RETURN;
+			int base = (int) ((round >> 1) * OPS & (picks.length - 1));
+			for (int i=0;i<OPS;i++)
+			{
+				pool.add(0, round * OPS + i, op, picks[base + i], clients[i & 15], 0,
+				false);
+			}
+			pool.run();
+			round++;
+			return books.reservedCount();
+		}
+	}
+
+	/**
+	* A message logged by a thread doing the work, as LibraryServer.java logs
+	* them.
+	*/
+	private static class LogMessage extends Micro
+	{
+		private static final int OPS = 1024;
+		private boolean skipped; // logged below the level of the logger
+		private Log log;
+
+		LogMessage(boolean skipped)
+		{
+			super(skipped ? "log.skipped" : "log.message", null, null, OPS);
+			this.skipped = skipped;
+		}
+
+		void setup()
+		{
+			log = new Log(Log.INFO, Writer.nullWriter());
+		}
+
+		void teardown()
+		{
+			log.close();
+		}
+
+		long run()
+		{
+			int level = skipped ? Log.DEBUG : Log.INFO;
+			for (int i=0;i<OPS;i++) log.log(level, null, "client {} book {}", i, OPS);
+			return OPS;
+		}
+	}
+
+	/**
+	* Commands appended to a write-ahead log of a million books, as
+	* LibraryServer.applyStaged() does, with a sync every group commands.
+	*/
+	private static class WalAppend extends Micro
+	{
+		private int group; // commands sharing one sync
+		private File dir;
+		private WriteAheadLog wal;
+		private BookCatalog books;
+		private long[] applied = new long[1];
+		private Random rnd = new Random(1);
+
+		WalAppend(int group)
+		{
+			super("wal.append", "group", String.valueOf(group), group);
+			this.group = group;
+		}
+
+		void setup() throws IOException
+		{
+			dir = Files.createTempDirectory("bench-wal").toFile();
+			books = new BookCatalog(1000000);
+			wal = new WriteAheadLog(dir, 0, 64L << 20, 1L << 62);
+			wal.recover(books, applied);
+		}
+
+		void teardown()
+		{
+			try
+			{
+				wal.close();
+			} catch (IOException e) {
+				// deleted anyway
+			}
+			delete(dir);
+		}
+
+		long run() throws IOException
+		{
+			for (int i=0;i<group;i++)
+			{
+				int book = rnd.nextInt(1000000);
+				if (books.isFree(book))
+				{
+					String client = "c"+(book & 1023);
+					books.reserve(book, books.internClient(client));
+					wal.append(applied[0], 0, ++applied[0], MessageCodec.OP_RESERVE, book,
+					client);
+				} else {
+					String client = books.clientName(books.holder(book));
+					books.release(book, books.holder(book));
+					wal.append(applied[0], 0, ++applied[0], MessageCodec.OP_RETURN, book,
+					client);
+				}
+			}
+			wal.sync();
+			return applied[0];
+		}
+	}
+
+	/**
+	* Restart of a server: a catalog recovered from the checkpoint of the
+	* write-ahead log and the records appended after it.
+	*/
+	private static class WalRecover extends Micro
+	{
+		private int size; // number of books
+		private File dir;
+
+		WalRecover(int size)
+		{
+			super("wal.recover", "books", String.valueOf(size), 1);
+			this.size = size;
+		}
+
+		void setup() throws IOException
+		{
+			dir = Files.createTempDirectory("bench-wal").toFile();
+			BookCatalog books = new BookCatalog(size);
+			long[] applied = new long[1];
+			WriteAheadLog wal = new WriteAheadLog(dir, 0, 64L << 20, 1L << 62);
+			wal.recover(books, applied);
+			Random rnd = new Random(1);
+			for (int i=0;i<size/10;i++)
+			{
+				int book = rnd.nextInt(size);
+				if (books.reserve(book, books.internClient("c"+(book & 1023))))
+					wal.append(i, 0, ++applied[0], MessageCodec.OP_RESERVE, book,
+					"c"+(book & 1023));
+			}
+			wal.checkpoint();
+			for (int i=0;i<100000;i++)
+			{
+				int book = rnd.nextInt(size);
+				if (books.reserve(book, books.internClient("c0")))
+					wal.append(size + i, 0, ++applied[0], MessageCodec.OP_RESERVE, book,
+					"c0");
+			}
+			wal.close();
+		}
+
+		void teardown()
+		{
+			delete(dir);
+		}
+
+		long run() throws IOException
+		{
+			BookCatalog books = new BookCatalog(size);
+			WriteAheadLog wal = new WriteAheadLog(dir, 0, 64L << 20, 1L << 62);
+			wal.recover(books, new long[1]);
+			wal.close();
+			return books.reservedCount();
+		}
+	}
+
+	/**
+	* Deletes a directory of the benchmarks and the files in it.
+	* @param File dir - the directory.
+	*/
+	private static void delete(File dir)
+	{
+		String[] files = dir.list();
+		if (files != null) for (String f : files) new File(dir, f).delete();
+		dir.delete();
+	}
+
+	/**
+	* @param String[] args - options, see the top of the file.
+	*/
+	public static void main(String[] args) throws Exception
+	{
+		Bench b = new Bench();
+		String output = null;
+		for (int i=0;i<args.length;i++)
+		{
+			if (args[i].equals("-c"))
+			{
+				compare(args[i+1], args[i+2]);
+				return;
+			} else if (args[i].equals("-f")) {
+				b.filter = args[++i];
+			} else if (args[i].equals("-o")) {
+				output = args[++i];
+			} else if (args[i].equals("-w")) {
+				b.warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				b.iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t")) {
+				b.iterationNs = Long.parseLong(args[++i]) * 1000000L;
+			} else if (args[i].equals("-d")) {
+				b.seconds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				b.clients = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-p")) {
+				b.basePort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-s")) {
+				b.options.add(args[++i]);
+			}
+		}
+		b.run();
+		if (output != null) b.write(output);
+	}
+}
@@ -0,0 +1,334 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * FILE: BookCatalog.java
+ *
+ * Indexed store for the books of the library modeled in LibraryServer.java.
+ * Book IDs of the form bN map straight to the index N, so lookups and updates
+ * never scan the catalog. The status of every book is packed into a single int
+ * array holding the interned ID of the client that reserved it, or FREE.
+ * Client ID strings are interned once into small ints so that holding a book
+ * does not keep a String per slot, and can be looked up from the bytes of a
+ * message without creating a String. A MerkleTree.java over the books is kept up
+ * to date with every change for AntiEntropy.java.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class BookCatalog
+{
+	public static final int FREE = -1; // holder value of a book that is free
+
+	private int[] holders; // holders[book] = interned client ID or FREE
+	private HashMap<String,Integer> clientIds; // < [clientID:internedID], ...>
+	private ArrayList<String> clientNames; // interned ID -> clientID
+	private long[] clientHashes; // interned ID -> MerkleTree.clientHash()
+	private byte[][] clientBytes; // interned ID -> UTF-8 bytes of clientID
+	private int[] byteIndex; // open addressing table of interned ID + 1 by bytes
+	private MerkleTree tree; // hashes of the books
+	private int reservedCount; // number of books currently reserved
+
+	/**
+	* Creates a catalog of the given size where every book is free.
+	* @param int size - number of books in the library.
+	*/
+	public BookCatalog(int size)
+	{
+		this(size, 64);
+	}
+
+	/**
+	* Creates a catalog of the given size where every book is free.
+	* @param int size - number of books in the library.
+	* @param int leafSize - number of books per leaf of the hash tree.
+	*/
+	public BookCatalog(int size, int leafSize)
+	{
+		holders = new int[size];
+		Arrays.fill(holders, FREE);
+		clientIds = new HashMap<String,Integer>();
+		clientNames = new ArrayList<String>();
+		clientHashes = new long[16];
+		clientBytes = new byte[16][];
+		byteIndex = new int[32];
+		tree = new MerkleTree(size, leafSize);
+		reservedCount = 0;
+	}
+
+	/**
+	* @return MerkleTree - hash tree over the books.
+	*/
+	public MerkleTree tree()
+	{
+		return tree;
+	}
+
+	/**
+	* @return int - number of books in the catalog.
+	*/
+	public int size()
+	{
+		return holders.length;
+	}
+
+	/**
+	* @return int - number of books that are currently reserved.
+	*/
+	public int reservedCount()
+	{
+		return reservedCount;
+	}
+
+	/**
+	* Parses a book ID of the form bN into its index without allocating.
+	* @param String bookID - ID of the book (ex: b12).
+	* @return int - index of the book or -1 if the ID is malformed or out of
+	* range for this catalog.
+	*/
+	public int indexOf(String bookID)
+	{
+		int len = bookID.length();
+		if (len < 2 || len > 11 || bookID.charAt(0) != 'b') return -1;
+		long n = 0;
+		for (int i=1;i<len;i++)
+		{
+			char c = bookID.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			n = n*10 + (c - '0');
+		}
+		return n < holders.length ? (int) n : -1;
+	}
+
+	/**
+	* Returns the interned ID of a client, creating it if needed.
+	* @param String clientID - ID of the client (ex: c1).
+	* @return int - interned client ID.
+	*/
+	public int internClient(String clientID)
+	{
+		Integer id = clientIds.get(clientID);
+		if (id == null)
+		{
+			id = clientNames.size();
+			clientIds.put(clientID, id);
+			clientNames.add(clientID);
+			if (id == clientHashes.length)
+			{
+				clientHashes = Arrays.copyOf(clientHashes, 2*id);
+				clientBytes = Arrays.copyOf(clientBytes, 2*id);
+			}
+			clientHashes[id] = MerkleTree.clientHash(clientID);
+			clientBytes[id] = clientID.getBytes(StandardCharsets.UTF_8);
+			if (2*clientNames.size() > byteIndex.length)
+			{
+				byteIndex = new int[2*byteIndex.length];
+				for (int c=0;c<clientNames.size();c++) index(c);
+			} else {
+				index(id);
+			}
+		}
+		return id;
+	}
+
+	/**
+	* Returns the interned ID of a client from the UTF-8 bytes of its ID,
+	* creating it if needed. Only a new client allocates.
+	* @param ByteBuffer buf - buffer holding the ID.
+	* @param int off - position of the ID in buf.
+	* @param int len - length of the ID in bytes.
+	* @return int - interned client ID.
+	*/
+	public int internClient(ByteBuffer buf, int off, int len)
+	{
+		int mask = byteIndex.length - 1;
+		for (int i = hash(buf, off, len) & mask;; i = (i + 1) & mask)
+		{
+			int id = byteIndex[i] - 1;
+			if (id < 0) break;
+			byte[] b = clientBytes[id];
+			if (b.length != len) continue;
+			int k = 0;
+			while (k < len && b[k] == buf.get(off + k)) k++;
+			if (k == len) return id;
+		}
+		byte[] b = new byte[len];
+		for (int k=0;k<len;k++) b[k] = buf.get(off + k);
+		return internClient(new String(b, StandardCharsets.UTF_8));
+	}
+
+	/**
+	* Reads a client ID written with MessageCodec.putString() and interns it.
+	* Throws BufferUnderflowException if the ID runs past the end of buf.
+	* @param ByteBuffer buf - buffer positioned at the ID, left after it.
+	* @return int - interned client ID.
+	*/
+	public int internClient(ByteBuffer buf)
+	{
+		int len = MessageCodec.getCount(buf);
+		int id = internClient(buf, buf.position(), len);
+		buf.position(buf.position() + len);
+		return id;
+	}
+
+	/**
+	* Adds an interned ID to the table looked up by bytes.
+	* @param int id - interned client ID.
+	*/
+	private void index(int id)
+	{
+		byte[] b = clientBytes[id];
+		int mask = byteIndex.length - 1;
+		int i = hash(ByteBuffer.wrap(b), 0, b.length) & mask;
+		while (byteIndex[i] != 0) i = (i + 1) & mask;
+		byteIndex[i] = id + 1;
+	}
+
+	/**
+	* @param ByteBuffer buf - buffer holding the bytes.
+	* @param int off - position of the first byte.
+	* @param int len - number of bytes.
+	* @return int - hash of the bytes.
+	*/
+	private static int hash(ByteBuffer buf, int off, int len)
+	{
+		int h = 0x811c9dc5; // FNV-1a
+		for (int k=0;k<len;k++) h = (h ^ (buf.get(off + k) & 0xFF)) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	* Looks up the interned ID of a client without creating it.
+	* @param String clientID - ID of the client.
+	* @return int - interned client ID or FREE if the client was never seen.
+	*/
+	public int clientId(String clientID)
+	{
+		Integer id = clientIds.get(clientID);
+		return id == null ? FREE : id;
+	}
+
+	/**
+	* @param int client - interned client ID.
+	* @return String - the clientID the interned ID stands for.
+	*/
+	public String clientName(int client)
+	{
+		return clientNames.get(client);
+	}
+
+	/**
+	* @param int client - interned client ID.
+	* @return byte[] - UTF-8 bytes of the clientID, not to be modified.
+	*/
+	public byte[] clientBytes(int client)
+	{
+		return clientBytes[client];
+	}
+
+	/**
+	* @param int book - index of the book.
+	* @return int - interned ID of the client holding the book or FREE.
+	*/
+	public int holder(int book)
+	{
+		return holders[book];
+	}
+
+	/**
+	* @param int book - index of the book.
+	* @return boolean - whether or not the book is free.
+	*/
+	public boolean isFree(int book)
+	{
+		return holders[book] == FREE;
+	}
+
+	/**
+	* Frees every book. Interned client IDs are kept.
+	*/
+	public void clear()
+	{
+		Arrays.fill(holders, FREE);
+		reservedCount = 0;
+		tree.clear();
+	}
+
+	/**
+	* Reserves a book for a client if it is free.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @return boolean - whether or not the reservation succeeded.
+	*/
+	public boolean reserve(int book, int client)
+	{
+		if (holders[book] != FREE) return false;
+		holders[book] = client;
+		reservedCount++;
+		tree.update(book, MerkleTree.bookHash(book, clientHashes[client]), true);
+		return true;
+	}
+
+	/**
+	* Returns a book if it is reserved by the given client.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @return boolean - whether or not the return succeeded.
+	*/
+	public boolean release(int book, int client)
+	{
+		if (client == FREE || holders[book] != client) return false;
+		holders[book] = FREE;
+		reservedCount--;
+		tree.update(book, MerkleTree.bookHash(book, clientHashes[client]), false);
+		return true;
+	}
+
+	/**
+	* Same as reserve(), for threads changing books under different leaves of
+	* the hash tree at the same time (see ApplyPool.java). The reserved count
+	* is left to addReserved().
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @return boolean - whether or not the reservation succeeded.
+	*/
+	boolean reserveShared(int book, int client)
+	{
+		if (holders[book] != FREE) return false;
+		holders[book] = client;
+		tree.updateShared(book, MerkleTree.bookHash(book, clientHashes[client]),
+		true);
+		return true;
+	}
+
+	/**
+	* Same as release(), for threads changing books under different leaves of
+	* the hash tree at the same time (see ApplyPool.java). The reserved count
+	* is left to addReserved().
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @return boolean - whether or not the return succeeded.
+	*/
+	boolean releaseShared(int book, int client)
+	{
+		if (client == FREE || holders[book] != client) return false;
+		holders[book] = FREE;
+		tree.updateShared(book, MerkleTree.bookHash(book, clientHashes[client]),
+		false);
+		return true;
+	}
+
+	/**
+	* @param int delta - books reserved minus books returned by reserveShared()
+	* and releaseShared().
+	*/
+	void addReserved(int delta)
+	{
+		reservedCount += delta;
+	}
+}
@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FILE: CommitOrder.java
+ *
+ * Applies the critical sections other servers replicate in the order the lock
+ * of their stripe went from one server to the next. The COMMAND_BATCH and
+ * COMMIT frames of successive lock holders come in on different connections,
+ * so without it a server could apply the return of a book before the reserve
+ * it follows and the replicas would drift apart.
+ *
+ * Every frame carries the version vector its committer had applied before the
+ * critical section (see StateTransfer.java), the commands it ran after. A
+ * frame is applied once this server applied as much of every other server,
+ * until then it is held along with the frames that follow it from the same
+ * server. Each held frame is applied as soon as the ones it waits for are.
+ *
+ * The lock is handed on the same way: a server runs its critical section only
+ * once nothing is held and it applied every command the messages that granted
+ * it the lock knew of. With the LamportMutex.java, RicartAgrawalaMutex.java
+ * and FlagMutex.java those messages come in after the commands of the former
+ * holder on the same connection. A vote of MaekawaMutex.java and the token of
+ * TokenMutex.java can overtake them, so they carry the vector of commands
+ * their sender knows of, see LibraryServer.putCommitted().
+ *
+ *   COMMAND_BATCH <Pn> <Pn.clock> <clients> <stripe> <first> <n> <d1..dn>
+ *                 {<op> <By> <Cx> <trace>}...
+ *
+ * A frame is also held until every command its committer ran before it was
+ * applied, so that a version vector always stands for every command up to it
+ * and never for one with a gap before it. The frames of a server come in on
+ * one connection in order, the only gap is the one before the first frame a
+ * server that just joined gets from a peer, when the transfer it joined with
+ * came from another server that had not received everything yet. The missing
+ * commands are then fetched from the server that committed them with a state
+ * transfer. Commands of a server that went down and that this server never
+ * received are fetched from the others the same way, after which they are no
+ * longer waited for.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class CommitOrder
+{
+	private LibraryServer server; // server the commands are applied by
+	private StateTransfer transfer; // holds the version vector
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private long[] known; // highest version received or heard of per server
+	private ArrayDeque<Held>[] held; // frames waiting, per committer in order
+	private int heldCount; // number of frames held
+	private long[] deps; // dependencies of the frame being admitted
+	private long[] asked; // first version of the gap a transfer was asked for
+
+	/**
+	* @param LibraryServer server - server the commands are applied by.
+	* @param StateTransfer transfer - holds the version vector of the server.
+	*/
+	@SuppressWarnings("unchecked")
+	public CommitOrder(LibraryServer server, StateTransfer transfer)
+	{
+		this.server = server;
+		this.transfer = transfer;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		known = new long[servNum];
+		held = (ArrayDeque<Held>[]) new ArrayDeque<?>[servNum];
+		for (int i=0;i<servNum;i++) held[i] = new ArrayDeque<Held>();
+		deps = new long[servNum];
+		asked = new long[servNum];
+	}
+
+	/**
+	* Reads the dependencies of a COMMAND_BATCH or COMMIT and decides whether
+	* its commands can be applied now. If not, they are held and applied by a
+	* later drain().
+	* @param int p - server that committed the commands.
+	* @param long first - version of the first command at that server.
+	* @param ByteBuffer frame - rest of the frame positioned at <n>, left at the
+	* first command. The commands are checked whole before anything is held or
+	* applied.
+	* @return boolean - whether or not the commands can be applied now.
+	*/
+	public boolean admit(int p, long first, ByteBuffer frame)
+	{
+		int n = (int) MessageCodec.getVarint(frame);
+		for (int i=0;i<n;i++)
+		{
+			long d = MessageCodec.getVarint(frame);
+			if (i < servNum) deps[i] = d;
+		}
+		int count = MessageCodec.records(frame, 2, 1);
+		if (held[p].isEmpty() && ready(p, first, deps)) return true;
+		ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+		copy.put(frame.duplicate()).flip();
+		held[p].add(new Held(first, deps.clone(), copy));
+		heldCount++;
+		applied(p, first + count - 1);
+		return false;
+	}
+
+	/**
+	* Notes the commands of a frame this server applied.
+	* @param int p - server that committed them.
+	* @param long last - version of the last one.
+	*/
+	public void applied(int p, long last)
+	{
+		if (last > known[p]) known[p] = last;
+	}
+
+	/**
+	* Applies the held frames whose dependencies were applied, until none is
+	* left that can be. Nothing is applied during a state transfer.
+	*/
+	public void drain()
+	{
+		if (heldCount == 0 || transfer.syncing()) return;
+		boolean progress = true;
+		while (progress)
+		{
+			progress = false;
+			for (int p=0;p<servNum;p++)
+			{
+				while (!held[p].isEmpty() && ready(p, held[p].peek().first,
+					held[p].peek().deps))
+				{
+					Held h = held[p].poll();
+					heldCount--;
+					server.applyCommands(p, h.first, h.commands);
+					progress = true;
+				}
+			}
+		}
+	}
+
+	/**
+	* @param long[] need - vector of commands the lock of a stripe was handed
+	* on after.
+	* @return boolean - whether or not the critical section may run, nothing
+	* being held and every command of the vector applied.
+	*/
+	public boolean caughtUp(long[] need)
+	{
+		if (heldCount > 0) return false;
+		for (int i=0;i<servNum;i++)
+		{
+			if (need[i] > transfer.applied(i) && waitsFor(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	* @param int origin - ID of a server.
+	* @return long - highest version of the server this server received or
+	* heard of.
+	*/
+	public long known(int origin)
+	{
+		return Math.max(known[origin], transfer.applied(origin));
+	}
+
+	/**
+	* Takes in the vector a message handing on a lock carried.
+	* @param long[] v - versions of every server.
+	*/
+	public void heard(long[] v)
+	{
+		for (int i=0;i<servNum && i<v.length;i++)
+			if (v[i] > known[i]) known[i] = v[i];
+	}
+
+	/**
+	* Fetches the commands of a server that went down from the others if some
+	* are missing here.
+	* @param int p - ID of the server.
+	*/
+	public void peerDown(int p)
+	{
+		if (known[p] > transfer.applied(p) && !transfer.syncing())
+			transfer.request();
+	}
+
+	/**
+	* @param int p - server that committed a frame.
+	* @param long first - version of the first command of the frame.
+	* @param long[] d - dependencies of the frame.
+	* @return boolean - whether or not this server applied them, and every
+	* command of the server before the frame.
+	*/
+	private boolean ready(int p, long first, long[] d)
+	{
+		for (int i=0;i<servNum;i++)
+		{
+			if (i != p && d[i] > transfer.applied(i) && waitsFor(i)) return false;
+		}
+		return contiguous(p, first);
+	}
+
+	/**
+	* Fetches the commands of a server that are missing before one of its
+	* frames, with a state transfer from that server.
+	* @param int p - server that committed the frame.
+	* @param long first - version of the first command of the frame.
+	* @return boolean - whether or not the frame may be applied: nothing is
+	* missing, the server is down or the transfer did not have them either.
+	*/
+	private boolean contiguous(int p, long first)
+	{
+		if (first - 1 <= transfer.applied(p) || !waitsFor(p)) return true;
+		if (transfer.syncing()) return false;
+		if (asked[p] == first) return true;
+		asked[p] = first;
+		transfer.request(p);
+		return false;
+	}
+
+	/**
+	* @param int i - ID of a server.
+	* @return boolean - whether or not its commands are still waited for, which
+	* they are not once it is down, see peerDown().
+	*/
+	private boolean waitsFor(int i)
+	{
+		return i == pid || server.isPeerUp(i);
+	}
+
+	/**
+	* Commands of a frame waiting for those they depend on.
+	*/
+	private static class Held
+	{
+		long first; // version of the first command at its committer
+		long[] deps; // version vector of the committer before them
+		ByteBuffer commands; // {<op> <By> <Cx> <trace>}...
+
+		Held(long first, long[] deps, ByteBuffer commands)
+		{
+			this.first = first;
+			this.deps = deps;
+			this.commands = commands;
+		}
+	}
+}
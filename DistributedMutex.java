@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+
+/**
+ * FILE: DistributedMutex.java
+ *
+ * Mutual exclusion algorithm guarding the lock stripes of LibraryServer.java.
+ * The server asks for a stripe with request(), polls granted() from its main
+ * loop until the lock is held, runs the critical section and gives the stripe
+ * back with release(). Mutex messages received from other servers are handed
+ * to receive() after the server has updated its clocks. Every mutex message
+ * starts with <Pn> <Pn.clock> <stripe>, anything after that is up to the
+ * algorithm. None of the methods may block.
+ *
+ * The algorithm is chosen with the "mutex" line of serverConfig.dat.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public interface DistributedMutex
+{
+	/**
+	* Asks for the lock of a stripe on behalf of this server.
+	* @param int stripe - stripe the lock is asked for.
+	*/
+	void request(int stripe);
+
+	/**
+	* @param int stripe - stripe the lock was asked for.
+	* @return boolean - whether or not this server holds the lock.
+	*/
+	boolean granted(int stripe);
+
+	/**
+	* Gives back the lock of a stripe held by this server.
+	* @param int stripe - stripe the lock is released for.
+	*/
+	void release(int stripe);
+
+	/**
+	* @return boolean - whether or not release() only ticks the clock of this
+	* server and broadcasts UNLOCK <Pn> <Pn.clock> <stripe> to every server.
+	* The server then fuses that UNLOCK with the commands of the critical
+	* section into a single COMMIT and calls releaseLocally() instead.
+	*/
+	boolean fusesUnlock();
+
+	/**
+	* Gives back the lock of a stripe like release(), leaving the clock tick
+	* and the UNLOCK to the COMMIT the server sends. Only called when
+	* fusesUnlock() is true.
+	* @param int stripe - stripe the lock is released for.
+	*/
+	void releaseLocally(int stripe);
+
+	/**
+	* Handles a mutex message from another server.
+	* @param byte op - opcode of the message.
+	* @param int p - ID of the sending server.
+	* @param long clock - clock of the sending server.
+	* @param int stripe - stripe the message is about.
+	* @param ByteBuffer frame - rest of the message.
+	*/
+	void receive(byte op, int p, long clock, int stripe, ByteBuffer frame);
+
+	/**
+	* Called once a connection to another server is up, also when it comes
+	* back, so that it can be told of the requests it missed.
+	* @param int p - ID of the server.
+	*/
+	void peerUp(int p);
+
+	/**
+	* Forgets about a server whose connection was lost so that it is no longer
+	* waited on.
+	* @param int p - ID of the server.
+	*/
+	void peerDown(int p);
+}
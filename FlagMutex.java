@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+
+/**
+ * FILE: FlagMutex.java
+ *
+ * The original mutual exclusion of LibraryServer.java. Every server keeps one
+ * cs_flag per server and stripe. LOCK raises the flag of the sender and
+ * UNLOCK lowers it, usually as part of the COMMIT that replicates the
+ * critical section. A server enters once it has the lowest clock and nobody
+ * else is waiting, or no server with a lower ID is waiting. The flags of a
+ * stripe are allocated the first time it is locked, with one stripe per book
+ * most are never touched.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class FlagMutex implements DistributedMutex
+{
+	private LibraryServer server; // server the mutex belongs to
+	private int pid; // process id of the server
+	boolean[][] cs_flag; // critical section flags, [stripe][process], null rows
+	// for stripes nobody locked yet
+	private int servNum; // number of servers
+
+	/**
+	* @param LibraryServer server - server the mutex belongs to.
+	* @param int stripes - number of lock stripes.
+	*/
+	public FlagMutex(LibraryServer server, int stripes)
+	{
+		this.server = server;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		cs_flag = new boolean[stripes][];
+	}
+
+	/**
+	* @param int stripe - a lock stripe.
+	* @return boolean[] - its flags, allocated if needed.
+	*/
+	private boolean[] flags(int stripe)
+	{
+		boolean[] flags = cs_flag[stripe];
+		if (flags == null)
+		{
+			flags = new boolean[servNum];
+			cs_flag[stripe] = flags;
+		}
+		return flags;
+	}
+
+	/**
+	* Sets the lock flag of this process and tells the other servers.
+	* LOCK <Pn> <Pn.clock> <stripe>
+	*/
+	public void request(int stripe)
+	{
+		server.broadcast(server.encode(MessageCodec.LOCK, pid,
+		server.clocks.now(), stripe));
+		flags(stripe)[pid] = true;
+	}
+
+	/**
+	* Releases the lock flag of this process and tells the other servers.
+	* UNLOCK <Pn> <Pn.clock> <stripe>
+	*/
+	public void release(int stripe)
+	{
+		flags(stripe)[pid] = false;
+		server.tick();
+		server.broadcast(server.encode(MessageCodec.UNLOCK, pid,
+		server.clocks.now(), stripe));
+	}
+
+	public boolean fusesUnlock()
+	{
+		return true;
+	}
+
+	public void releaseLocally(int stripe)
+	{
+		flags(stripe)[pid] = false;
+	}
+
+	public void receive(byte op, int p, long clock, int stripe, ByteBuffer frame)
+	{
+		if (op == MessageCodec.LOCK) flags(stripe)[p] = true;
+		else if (op == MessageCodec.UNLOCK && cs_flag[stripe] != null) 
+			cs_flag[stripe][p] = false;
+	}
+
+	/**
+	* Raises the flags of this server again at a server that comes back.
+	*/
+	public void peerUp(int p)
+	{
+		for (int i=0;i<cs_flag.length;i++)
+		{
+			if (cs_flag[i] != null && cs_flag[i][pid])
+				server.sendTo(p, server.encode(MessageCodec.LOCK, pid,
+				server.clocks.now(), i));
+		}
+	}
+
+	public void peerDown(int p)
+	{
+		for (int i=0;i<cs_flag.length;i++)
+		{
+			if (cs_flag[i] != null) cs_flag[i][p] = false;
+		}
+	}
+
+	/**
+	* Checks whether all other processes with a lower clock count have executed
+	* and set their cs_flag to false. Only requests on the same stripe
+	* conflict.
+	*/
+	public boolean granted(int stripe)
+	{
+		LogicalClock clocks = server.clocks;
+		boolean othersWaiting = false;
+		int lowestProcessWaiting = this.pid;
+
+		// check that other processes have not asked to access critical section
+		boolean[] flags = flags(stripe);
+		for (int i=0; i< flags.length; i++)
+		{
+			if (i != pid && flags[i]) {
+				othersWaiting = true;
+				if (i < pid) lowestProcessWaiting = i;
+			}
+		}
+
+		// If others are not waiting and this process has lowest clock then the
+		// lock for the critical section should be given to this section.
+		// if another process is asking for the lock yet it has the same clock
+		// count, then the one with the lowest process id takes precedence.
+		return clocks.min() == clocks.now() && !othersWaiting ||
+				this.pid <= lowestProcessWaiting;
+	}
+}
@@ -0,0 +1,224 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Comparator;
+
+/**
+ * FILE: LamportMutex.java
+ *
+ * Lamport's mutual exclusion algorithm as published. Every server keeps, per
+ * stripe, a queue of REQUEST (LOCK) entries ordered by (clock, pid). A REQUEST
+ * is put on the queue of every server and acknowledged with a REPLY_LOCK. A
+ * server enters the critical section once its own request heads the queue
+ * and every live peer has replied, which over FIFO channels means it has
+ * heard a later timestamp from all of them. RELEASE (UNLOCK) takes the entry
+ * off every queue. Queues only exist for stripes with outstanding requests.
+ *
+ *   LOCK        <Pn> <Pn.clock> <stripe>  REQUEST, stamped with its timestamp
+ *   REPLY_LOCK  <Pn> <Pn.clock> <stripe>  acknowledges a REQUEST
+ *   UNLOCK      <Pn> <Pn.clock> <stripe>  RELEASE, usually fused with the
+ *                                         commands into a COMMIT
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class LamportMutex implements DistributedMutex
+{
+	// orders requests by timestamp, ties broken by process id
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b)
+		{
+			if (a.clock != b.clock) return a.clock < b.clock ? -1 : 1;
+			return Integer.compare(a.pid, b.pid);
+		}
+	};
+
+	private LibraryServer server; // server the mutex belongs to
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private HashMap<Integer,StripeQueue> queues; // stripes with requests
+
+	/**
+	* @param LibraryServer server - server the mutex belongs to.
+	*/
+	public LamportMutex(LibraryServer server)
+	{
+		this.server = server;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		queues = new HashMap<Integer,StripeQueue>();
+	}
+
+	public void request(int stripe)
+	{
+		StripeQueue q = queue(stripe);
+		long clock = server.tick();
+		q.add(new Entry(clock, pid));
+		q.missing = 0;
+		for (int i=0;i<servNum;i++)
+		{
+			q.awaiting[i] = i != pid && server.isPeerUp(i);
+			if (q.awaiting[i]) q.missing++;
+		}
+		server.broadcast(server.encode(MessageCodec.LOCK, pid, clock, stripe));
+	}
+
+	public boolean granted(int stripe)
+	{
+		StripeQueue q = queues.get(stripe);
+		return q != null && q.missing == 0 && q.byPid[pid] != null &&
+			q.queue.first() == q.byPid[pid];
+	}
+
+	public void release(int stripe)
+	{
+		StripeQueue q = queues.get(stripe);
+		if (q == null) return;
+		q.remove(pid);
+		if (q.queue.isEmpty()) queues.remove(stripe);
+		long clock = server.tick();
+		server.broadcast(server.encode(MessageCodec.UNLOCK, pid, clock, stripe));
+	}
+
+	public boolean fusesUnlock()
+	{
+		return true;
+	}
+
+	public void releaseLocally(int stripe)
+	{
+		StripeQueue q = queues.get(stripe);
+		if (q == null) return;
+		q.remove(pid);
+		if (q.queue.isEmpty()) queues.remove(stripe);
+	}
+
+	public void receive(byte op, int p, long clock, int stripe, ByteBuffer frame)
+	{
+		if (op == MessageCodec.LOCK)
+		{
+			queue(stripe).add(new Entry(clock, p));
+			long now = server.tick();
+			server.sendTo(p, server.encode(MessageCodec.REPLY_LOCK, pid, now,
+			stripe));
+		} else if (op == MessageCodec.UNLOCK) {
+			StripeQueue q = queues.get(stripe);
+			if (q == null) return;
+			q.remove(p);
+			if (q.queue.isEmpty() && q.byPid[pid] == null) queues.remove(stripe);
+		} else if (op == MessageCodec.REPLY_LOCK) {
+			StripeQueue q = queues.get(stripe);
+			if (q != null && q.awaiting[p])
+			{
+				q.awaiting[p] = false;
+				q.missing--;
+			}
+		}
+	}
+
+	/**
+	* Puts the requests of this server on the queue of a server that comes
+	* back, with their original timestamps, and waits for its reply too.
+	*/
+	public void peerUp(int p)
+	{
+		for (Map.Entry<Integer,StripeQueue> e : queues.entrySet())
+		{
+			StripeQueue q = e.getValue();
+			Entry mine = q.byPid[pid];
+			if (mine == null) continue;
+			if (!q.awaiting[p])
+			{
+				q.awaiting[p] = true;
+				q.missing++;
+			}
+			server.sendTo(p, server.encode(MessageCodec.LOCK, pid, mine.clock,
+			e.getKey()));
+		}
+	}
+
+	public void peerDown(int p)
+	{
+		Iterator<StripeQueue> it = queues.values().iterator();
+		while (it.hasNext())
+		{
+			StripeQueue q = it.next();
+			q.remove(p);
+			if (q.awaiting[p])
+			{
+				q.awaiting[p] = false;
+				q.missing--;
+			}
+			if (q.queue.isEmpty()) it.remove();
+		}
+	}
+
+	/**
+	* Returns the queue of a stripe, creating it if needed.
+	* @param int stripe - index of the stripe.
+	* @return StripeQueue - queue of the stripe.
+	*/
+	private StripeQueue queue(int stripe)
+	{
+		StripeQueue q = queues.get(stripe);
+		if (q == null)
+		{
+			q = new StripeQueue(servNum);
+			queues.put(stripe, q);
+		}
+		return q;
+	}
+
+	/**
+	* A REQUEST on the queue of a stripe.
+	*/
+	private static class Entry
+	{
+		long clock; // timestamp of the request
+		int pid; // process asking for the lock
+
+		Entry(long clock, int pid)
+		{
+			this.clock = clock;
+			this.pid = pid;
+		}
+	}
+
+	/**
+	* Request queue of a stripe along with the replies this server is still
+	* waiting for on its own request.
+	*/
+	private static class StripeQueue
+	{
+		TreeSet<Entry> queue; // requests ordered by (clock, pid)
+		Entry[] byPid; // request of every process on the queue, if any
+		boolean[] awaiting; // peers whose REPLY has not arrived yet
+		int missing; // number of peers still to reply
+
+		StripeQueue(int servNum)
+		{
+			queue = new TreeSet<Entry>(ORDER);
+			byPid = new Entry[servNum];
+			awaiting = new boolean[servNum];
+			missing = 0;
+		}
+
+		void add(Entry e)
+		{
+			remove(e.pid);
+			byPid[e.pid] = e;
+			queue.add(e);
+		}
+
+		void remove(int p)
+		{
+			if (byPid[p] == null) return;
+			queue.remove(byPid[p]);
+			byPid[p] = null;
+		}
+	}
+}
@@ -12,10 +12,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.io.File;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -29,6 +32,10 @@ import java.util.Date;
  * line indicates how many servers there are and the following lines contain the
  * addresses of the servers with their respective port (ex: 127.0.0.1:1234).
  *
+ * Started as "java LibraryClient load [options]", or with "test [options]"
+ * at its prompt, it simulates many clients at once instead to measure the
+ * cluster (see LoadGenerator.java).
+ *
  * Developed as part of a class assignment (CSE535 -- SUNY Korea)
  *
  * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
@@ -41,9 +48,9 @@ public class LibraryClient
 	private Socket host; // host that the client is connected to
 	private boolean debug = true; // debug flag
 	private boolean isConnected; // indicator of connection status
-	private PrintWriter sockOut; // for writing out on the socket
+	private DataOutputStream sockOut; // for writing frames out on the socket
 	private PrintWriter output; // for writing output to a file 
-	private BufferedReader sockIn; // for reading in from the socket
+	private DataInputStream sockIn; // for reading frames in from the socket
 	private String configFile = "clientConfig.dat"; // config file location
 	private HashMap<String,Boolean> servers; // < [addr:status], ...>
 	private String clientID; // clientID given by server
@@ -142,15 +149,17 @@ public class LibraryClient
 				host = new Socket();
 				host.connect(new InetSocketAddress(ip,port),3000);
 				//debug("connect(): socket created on port "+host.getLocalPort());
-				sockOut = new PrintWriter(host.getOutputStream(),true);
-				sockIn = new BufferedReader(
-				new InputStreamReader(host.getInputStream()));
+				host.setSoTimeout(3000); // time out
+				host.setTcpNoDelay(true);
+				sockOut = new DataOutputStream(
+				new BufferedOutputStream(host.getOutputStream()));
+				sockIn = new DataInputStream(
+				new BufferedInputStream(host.getInputStream()));
 				// send identity notification
-				sockOut.println("client");
+				sendFrame(MessageCodec.textFrame(MessageCodec.HELLO_CLIENT, ""));
 				// receive ACK.
-				char[] buffer = new char[64];
-				int r = sockIn.read(buffer,0,64);
-				if (r != 0) 
+				ByteBuffer ack = recvFrame();
+				if (ack.get() == MessageCodec.CLIENT_ID) 
 				{
 					//clientID = new String(buffer).trim();
 					isConnected = true;
@@ -178,25 +187,43 @@ public class LibraryClient
 	 * @return String contains the response from the server.
 	 */
 	public String sendCmd(String cmd)
+	{
+		// followed through the servers by its trace ID while the Flight Recorder
+		// records, see Tracing.java
+		long trace = 0;
+		if (Tracing.clientEnabled())
+			trace = java.util.concurrent.ThreadLocalRandom.current().nextLong() &
+				Long.MAX_VALUE | 1;
+		return sendCmd(cmd, trace);
+	}
+
+	/**
+	 * Sends a command to the server, receives a response. 
+	 * @param String cmd - command to be sent to the server.
+	 * @param long trace - trace ID of the command, kept when it is resent.
+	 * @return String contains the response from the server.
+	 */
+	private String sendCmd(String cmd, long trace)
 	{
 		String res = "";
 		if (isConnected)
 		{
 			try 
 			{
-				sockOut.println(cmd);
+				sendFrame(MessageCodec.requestFrame(MessageCodec.REQUEST, cmd, trace));
+				Tracing.clientSend(trace, cmd);
 				debug("sent command ("+getIP(host)+"): "+cmd,GREEN);
-				char[] buffer = new char[1024];
 				long startTime = System.nanoTime();
-				while (res.trim().length() <1 ){
-					int r = sockIn.read(buffer,0,buffer.length);
-					host.setSoTimeout(3000); // time out
-					res = new String(buffer).trim();
+				while (res.length() <1 ){
+					ByteBuffer reply = recvFrame();
+					if (reply.get() == MessageCodec.REPLY)
+						res = MessageCodec.getString(reply).trim();
 					if ((System.nanoTime() - startTime)/1000000 >= 5000){
 						throw new java.io.IOException();
 					}
 				}
-				if (res.substring(0,4).equals("fail"))
+				Tracing.clientReply(trace, res, System.nanoTime() - startTime);
+				if (res.startsWith("fail"))
 				{
 					System.out.println("["+getTime()+"] "+RED+res+ENDC);
 				} else {
@@ -206,7 +233,7 @@ public class LibraryClient
 			{
 				debug("RECONNECTING...",RED);
 				/* servers.put(host.getInetAddress().getHostAddress(), false); */
-				return connect() ? sendCmd(cmd) : "SYSTEM IS DOWN.";
+				return connect() ? sendCmd(cmd, trace) : "SYSTEM IS DOWN.";
 			}
 		} else { 
 			res = "ERROR: No connection."; 
@@ -214,6 +241,30 @@ public class LibraryClient
 		return res;
 	}
 
+	/**
+	 * Writes a frame to the server.
+	 * @param ByteBuffer frame - encoded frame to be sent.
+	 */
+	private void sendFrame(ByteBuffer frame) throws IOException
+	{
+		sockOut.write(frame.array(), frame.position(), frame.remaining());
+		sockOut.flush();
+	}
+
+	/**
+	 * Reads the next frame from the server.
+	 * @return ByteBuffer - body of the frame positioned at its opcode.
+	 */
+	private ByteBuffer recvFrame() throws IOException
+	{
+		int len = sockIn.readInt();
+		if (len < 1 || len > MessageCodec.MAX_FRAME)
+			throw new IOException("Invalid frame length "+len);
+		byte[] body = new byte[len];
+		sockIn.readFully(body);
+		return ByteBuffer.wrap(body);
+	}
+
 	private void runCommands()
 	{
 		System.out.println("[*] Running commands in config.");
@@ -247,7 +298,7 @@ public class LibraryClient
 		while (!((cmd = in.nextLine()).equals("quit")))
 		{
 			if (cmd.equals("reconnect")) { connect(); } 
-			else if (cmd.equals("test")) { testLoop("b0",0); } 
+			else if (cmd.startsWith("test")) { loadTest(cmd); } 
 			else { sendCmd(cmd); }
 				prompt();
 		}
@@ -316,22 +367,22 @@ public class LibraryClient
 		if (debug) System.out.println("["+getTime()+"] "+color+"DEBUG: "+msg+ENDC);
 	}
 
-	private void testLoop(String book, long milli) 
+	/**
+	 * Runs the load generator against the servers of the config file, with
+	 * client IDs made from the ID of this client.
+	 * @param String cmd - "test" followed by options of LoadGenerator.java.
+	 */
+	private void loadTest(String cmd)
 	{
-		try 
+		String[] args = cmd.trim().split("\\s+");
+		LoadGenerator g = new LoadGenerator(new ArrayList<String>(servers.keySet()));
+		try
 		{
-			while (true) 
-			{
-				for (int i=0;i<10;i++)
-				{
-					sendCmd(clientID+" b"+i+" reserve");
-					Thread.sleep(milli);
-					sendCmd(clientID+" b"+i+" return");
-					Thread.sleep(milli);
-				}
-			}
-		}catch(Exception e){
-
+			g.configure(new String[] {"-p", clientID+"."}, 0);
+			g.configure(args, 1);
+			g.run();
+		} catch (Exception e) {
+			debug("loadTest(): "+e, RED);
 		}
 	}
 
@@ -349,9 +400,19 @@ public class LibraryClient
 	{
 		try
 		{
+			if (args[0].equals("load"))
+			{
+				LoadGenerator g = new LoadGenerator(
+				LoadGenerator.servers("clientConfig.dat"));
+				g.configure(args, 1);
+				g.run();
+				return;
+			}
 			LibraryClient c1= new LibraryClient(args[0]);
 		} catch (ArrayIndexOutOfBoundsException e){
 			System.out.println("Error: Please provide a client ID. Example: c1.");
+		} catch (IOException e) {
+			System.out.println("Error: "+e.getMessage());
 		}
 	}
 }
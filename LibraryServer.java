@@ -2,11 +2,12 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.Iterator;
-import java.util.Collections;
-import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -15,18 +16,13 @@ import java.net.UnknownHostException;
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.Selector;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.ClosedChannelException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
  * FILE: LibraryServer.java
@@ -42,7 +38,67 @@ import java.util.Date;
  * first value will have the server id. The 2nd value is a non-negative integer
  * that tells the server to become unresponsive after receiving the kth message.
  * The 3rd value contains a duration in milliseconds for which the given server
- * would become unresponsive - to all clients and servers.
+ * would become unresponsive - to all clients and servers. Option lines may be
+ * mixed in with them:
+ *
+ *   stripes k     hash books onto k independent critical sections (default:
+ *                 one per book). Commands on different stripes never wait on
+ *                 each other.
+ *   batch m [d]   apply and replicate up to m queued client commands per
+ *                 entry to the critical section, waiting at most d ms for a
+ *                 batch to fill up before locking (default: 32 0).
+ *   mutex m       mutual exclusion algorithm guarding the stripes, one of
+ *                 flags (default, see FlagMutex.java), lamport (see
+ *                 LamportMutex.java), ricart (see RicartAgrawalaMutex.java),
+ *                 maekawa (see MaekawaMutex.java) or token (see
+ *                 TokenMutex.java).
+ *   replication r how commands are replicated, either mutex (default: lock
+ *                 the stripe, apply, broadcast) or sequencer (an elected
+ *                 leader orders every command, see Sequencer.java). The
+ *                 stripes, batch and mutex options only apply to mutex.
+ *   wal dir [s] [c] keep a write-ahead log of applied commands in dir/sN
+ *                 (see WriteAheadLog.java) and recover the books from it on
+ *                 startup. s is the segment size in MB and c the number of
+ *                 commands between checkpoints (default: 64 100000). Off by
+ *                 default.
+ *   history h     number of recent commands kept to bring a server that
+ *                 rejoins up to date with a delta instead of a snapshot of
+ *                 the whole library (default: 65536, see StateTransfer.java).
+ *                 With the sequencer as many entries of the log are kept for
+ *                 a new leader (see Sequencer.java).
+ *   antientropy t [l] compare the books with the next peer every t ms and
+ *                 repair the ranges that differ (see AntiEntropy.java), l
+ *                 books per leaf of the hash tree (default: 10000 64, 0 for t
+ *                 turns it off).
+ *   iothreads n   number of threads reading the sockets (default: 1, see
+ *                 Reactor.java). Commands are still executed one at a time,
+ *                 in order, by the main thread.
+ *   apply k [m]   apply replicated commands on k threads, split by book (see
+ *                 ApplyPool.java), for batches of at least m commands
+ *                 (default: one less than the number of cores, 256).
+ *   outqueue s [c] most KB queued for a server (s) or client (c) connection
+ *                 whose socket is full before it is dropped (default: 65536
+ *                 1024, see Reactor.java). Sends never block the main loop.
+ *   coalesce b [t] pack the frames sent to one connection into a single
+ *                 write, up to b bytes, holding a frame at most t
+ *                 microseconds and not at all once the server is idle
+ *                 (default: 16384 200, 0 for b turns it off).
+ *   clock c       logical clocks messages are stamped with, lamport (default)
+ *                 or hybrid (wall time in the high bits, see LogicalClock.java)
+ *                 to tell when a command or checkpoint was taken.
+ *   metrics p     serve lock wait, lock hold, apply and request time
+ *                 histograms, frame counters and queue depths on
+ *                 http://127.0.0.1:(p+i)/metrics, i being the ID of the
+ *                 server counting from 0 (see Metrics.java). Off by default,
+ *                 they are recorded either way.
+ *   trace n       give a trace ID to one client command in n that comes
+ *                 without one, to follow it through the cluster with the
+ *                 Flight Recorder events of Tracing.java (default: 0, off).
+ *   log l [dumps] most verbose messages written out, one of error, warn,
+ *                 info, debug or trace (default: info, see Log.java). dumps
+ *                 is a comma separated list of books (the whole catalog
+ *                 after every change and on shutdown) and clocks (the vector
+ *                 clock on every update), none by default.
  *
  * Developed as part of a class assignment (CSE535 -- SUNY Korea)
  *
@@ -53,21 +109,53 @@ public class LibraryServer
 
 {
 	private int port; // port number for the server to listen to
-	private boolean debug = true; // debug flag
+	private Log log; // writes messages out on its own thread
+	Metrics metrics; // time histograms, message counters and queue depths
+	private boolean dumpBooks; // log the whole catalog after every change
+	private boolean dumpClocks; // log the vector clock on every update
+	private int traceEvery; // commands per trace ID given out, 0 for none
+	private long traced; // commands seen that came without a trace ID
 	private HashMap<String,Boolean> servers; // < [addr:status], > (unneccesary)
-	private ArrayList<SocketChannel> clients_sock; // client SocketChannels
-	private ArrayList<SocketChannel> servers_sock; // server SocketChannels
+	private ArrayList<Reactor.Connection> clients_sock; // client connections
+	private ArrayList<Reactor.Connection> servers_sock; // server connections
 	private String configFile = "serverConfig.dat"; // configuration file
 	private ServerSocketChannel serverSocketCh; // server socket
 	private File f; // configuration file object
-	private Selector selector; // for asynchronous I/O
-	private String[][] books; // data structure for books
+	private volatile Reactor reactor; // accepts and reads connections on its threads
+	private volatile boolean running = true; // cleared by stop()
+	private boolean terminated; // set once terminate() ran
+	private CountDownLatch finished; // counted down once terminate() is done
+	private ByteBuffer out; // scratch buffer outgoing frames are encoded into
+	private BookCatalog books; // data structure for books
 	private int bookNum; // number of books in the library
 	private int clientCount; // counter for how many clients connected
 	
 	// Lamports Mutex Algorithm variables
-	Boolean[] cs_flag; // critical section flag
-	Integer[] vector_clock; // clocks of all processes/servers
+	private DistributedMutex mutex; // algorithm guarding the lock stripes
+	private String mutexMode; // name of the algorithm (see mutex option)
+	private int lockStripes; // number of independent critical sections
+	private HashMap<String,Integer> serverIds; // < [addr:pid], ...>
+	private Reactor.Connection[] peers; // connection of every server by pid
+	private Sequencer sequencer; // leader sequenced replication, null if off
+	private WriteAheadLog wal; // durable log of applied commands, null if off
+	private boolean walFailed; // a command could not be logged, see walFailed()
+	private StateTransfer transfer; // brings the books up to date on startup
+	private CommitOrder commits; // applies replicated commands in lock order
+	private AntiEntropy antiEntropy; // repairs books that drifted apart
+	private ApplyPool applier; // applies replicated commands in parallel
+
+	// group commit
+	private ArrayList<Stripe> active; // stripes with queued commands, in order
+	private Stripe[] stripes; // lock state of every stripe, created when used
+	private ArrayList<Request> batch; // commands of the critical section
+	private ArrayDeque<Request> freeRequests; // answered commands to reuse
+	private MessageCodec.RequestParser parser; // parses client commands
+	private ByteBuffer replyOut; // buffer replies to clients are encoded into
+	private long serverQueue; // most bytes queued for a server connection
+	private long clientQueue; // most bytes queued for a client connection
+	private int batchMax; // most commands applied per critical section entry
+	private long batchDelay; // ms a batch may wait to fill up before locking
+	LogicalClock clocks; // clocks of all processes/servers
 	private int pid; // process id of the current server
 
 	// timeout values
@@ -83,26 +171,75 @@ public class LibraryServer
 	private final String BLUE = "\u001B[34m"; 
 	private final String CYAN = "\u001B[36m";
 
+	private static final int EVENTS = 4096; // most frames per pass of mainLoop
+
+	// outcome of a book command
+	static final int FAILED = 0;
+	static final int RESERVED = 1;
+	static final int RETURNED = 2;
+
 	/**
 	* Initializes servers and clients data structures, calls
 	* initialize method, enters the programs mainloop if initialize is
 	* successful.
 	*/
 	public LibraryServer(int port)
+	{
+		this(port, "serverConfig.dat");
+		run();
+	}
+
+	/**
+	* Initializes servers and clients data structures without starting the
+	* server, so that several of them can run in one JVM (see Bench.java).
+	* @param int port - port number for the server to listen to.
+	* @param String configFile - path of the configuration file.
+	*/
+	public LibraryServer(int port, String configFile)
 	{
 		this.port = port;
+		this.configFile = configFile;
+		log = new Log(Log.INFO);
+		metrics = new Metrics();
 		clientCount = 0;
 		servers = new HashMap<String,Boolean>();
-		clients_sock = new ArrayList<SocketChannel>();
-		servers_sock = new ArrayList<SocketChannel>();
+		serverIds = new HashMap<String,Integer>();
+		clients_sock = new ArrayList<Reactor.Connection>();
+		servers_sock = new ArrayList<Reactor.Connection>();
+		out = ByteBuffer.allocate(64*1024);
+		active = new ArrayList<Stripe>();
+		batch = new ArrayList<Request>();
+		freeRequests = new ArrayDeque<Request>();
+		parser = new MessageCodec.RequestParser();
+		replyOut = ByteBuffer.allocateDirect(1024);
+		finished = new CountDownLatch(1);
+	}
+
+	/**
+	* Calls initialize method, enters the programs mainloop if initialize is
+	* successful. Returns once stop() is called.
+	*/
+	public void run()
+	{
 		if (initialize()) {
-			// TODO: synchronize book data upon startup
+			// synchronize book data upon startup
+			transfer.request();
 			mainLoop();
 		} else {
 			terminate();
 		}
 	}
 
+	/**
+	* Makes the main loop terminate the server and return, from any thread.
+	* Stopping the reactor wakes the main loop up if it waits for an event.
+	*/
+	public void stop()
+	{
+		running = false;
+		if (reactor != null) reactor.close();
+	}
+
 	/**
 	* Initializes the server by reading from the data file. 
 	* @return Boolean indicating whether or not initialization was successful.
@@ -111,16 +248,12 @@ public class LibraryServer
 	{
 		try 
 		{
-			System.out.println("Initializing on port "+port+"...");
+			log.log(Log.INFO, null, "Initializing on port {}...", port);
 			// create socket
 			serverSocketCh = ServerSocketChannel.open();
 			serverSocketCh.bind(new InetSocketAddress(port));
-			serverSocketCh.configureBlocking(false);
 			/* debug("Local IP -- "+serverSocketCh.socket().getInetAddress(). */
 			/* getLocalHost().getHostAddress()); */
-			selector = Selector.open(); // selector used for nonblocking sockets
-			int interestSet = serverSocketCh.validOps();
-			SelectionKey key =serverSocketCh.register(selector, interestSet);
 
 			// read config file
 			f = new File(configFile);
@@ -128,23 +261,11 @@ public class LibraryServer
 			int servNum = s.nextInt(); // number of servers available
 			/* debug("amount of servers: "+servNum); */
 
-			// initialize cs_flag
-			cs_flag = new Boolean[servNum];
-			for (int i=0;i<cs_flag.length;i++) cs_flag[i] = false;
-			
-			// initialize vector clock
-			vector_clock = new Integer[servNum];
-			for (int i=0;i<vector_clock.length;i++) vector_clock[i] = 0;
+			peers = new Reactor.Connection[servNum];
 
 			// initialize books
 			this.bookNum = s.nextInt();
 			/* debug("amount of books: "+bookNum); */
-			books = new String[bookNum][3];
-			for (int i=0;i<bookNum;i++)
-			{
-				books[i][0] = "b"+i;
-				books[i][1] = "free";
-			}
 
 			// initialize servers
 			for (int i = 0;i<=servNum;i++) 
@@ -157,26 +278,159 @@ public class LibraryServer
 						/* debug("PID == "+pid,CYAN); */
 					} else {
 						servers.put(j, true);
+						serverIds.put(j, i-1);
 					}
 				}
 			}
 
-			// get timeout parameters
+			// get timeout parameters and options
+			this.lockStripes = bookNum; // one critical section per book by default
+			this.batchMax = 32;
+			this.batchDelay = 0;
+			this.mutexMode = "flags";
+			String replication = "mutex";
+			boolean hybridClock = false;
+			String[] walOption = null;
+			int history = 1 << 16;
+			long antiEntropyPeriod = 10000;
+			int leafSize = 64;
+			int ioThreads = 1;
+			int applyThreads = Runtime.getRuntime().availableProcessors() - 1;
+			int applyMin = 256;
+			int metricsPort = 0;
+			int coalesceBytes = 16*1024;
+			long coalesceWindow = 200;
+			this.serverQueue = 65536L << 10;
+			this.clientQueue = 1024L << 10;
 			while(s.hasNext())
 			{
-				String[] i = s.nextLine().split(" ");
-				int p = Integer.parseInt(i[0].substring(1,i[0].length())); //pid
-				if (p-1 == this.pid){
-					this.messageMax = Integer.parseInt(i[1]); // message limit
-					this.timeout = Integer.parseInt(i[2]); // timeout
+				String[] i = s.nextLine().trim().split(" ");
+				if (i[0].equals("stripes"))
+				{
+					this.lockStripes = Integer.parseInt(i[1]);
+				} else if (i[0].equals("mutex")) {
+					this.mutexMode = i[1];
+				} else if (i[0].equals("replication")) {
+					replication = i[1];
+				} else if (i[0].equals("clock")) {
+					hybridClock = i[1].equals("hybrid");
+				} else if (i[0].equals("wal")) {
+					walOption = i;
+				} else if (i[0].equals("history")) {
+					history = Integer.parseInt(i[1]);
+				} else if (i[0].equals("antientropy")) {
+					antiEntropyPeriod = Long.parseLong(i[1]);
+					if (i.length > 2) leafSize = Integer.parseInt(i[2]);
+				} else if (i[0].equals("iothreads")) {
+					ioThreads = Integer.parseInt(i[1]);
+				} else if (i[0].equals("coalesce")) {
+					coalesceBytes = Integer.parseInt(i[1]);
+					if (i.length > 2) coalesceWindow = Long.parseLong(i[2]);
+				} else if (i[0].equals("outqueue")) {
+					this.serverQueue = Long.parseLong(i[1]) << 10;
+					if (i.length > 2) this.clientQueue = Long.parseLong(i[2]) << 10;
+				} else if (i[0].equals("apply")) {
+					applyThreads = Integer.parseInt(i[1]);
+					if (i.length > 2) applyMin = Integer.parseInt(i[2]);
+				} else if (i[0].equals("trace")) {
+					this.traceEvery = Integer.parseInt(i[1]);
+				} else if (i[0].equals("metrics")) {
+					metricsPort = Integer.parseInt(i[1]);
+				} else if (i[0].equals("log")) {
+					log.setLevel(Log.parse(i[1]));
+					if (i.length > 2)
+					{
+						for (String d : i[2].split(","))
+						{
+							if (d.equals("books")) this.dumpBooks = true;
+							if (d.equals("clocks")) this.dumpClocks = true;
+						}
+					}
+				} else if (i[0].equals("batch")) {
+					this.batchMax = Math.max(1, Integer.parseInt(i[1]));
+					if (i.length > 2) this.batchDelay = Long.parseLong(i[2]);
+				} else if (i[0].startsWith("s")) {
+					int p = Integer.parseInt(i[0].substring(1,i[0].length())); //pid
+					if (p-1 == this.pid){
+						this.messageMax = Integer.parseInt(i[1]); // message limit
+						this.timeout = Integer.parseInt(i[2]); // timeout
+					}
+				}
+			}
+			this.lockStripes = Math.max(1, Math.min(lockStripes, bookNum));
+			this.clocks = new LogicalClock(servNum, pid, hybridClock);
+			this.stripes = new Stripe[lockStripes];
+
+			// initialize books
+			books = new BookCatalog(bookNum, leafSize);
+			applier = new ApplyPool(books, applyThreads, applyMin, log);
+
+			// recover the books from the write-ahead log
+			long[] applied = new long[servNum];
+			if (walOption != null)
+			{
+				long segmentMB = 64, every = 100000;
+				if (walOption.length > 2) segmentMB = Long.parseLong(walOption[2]);
+				if (walOption.length > 3) every = Long.parseLong(walOption[3]);
+				wal = new WriteAheadLog(new File(walOption[1], "s"+(pid+1)), pid,
+				segmentMB << 20, every);
+				long t = System.currentTimeMillis();
+				long clock = wal.recover(books, applied);
+				clocks.witness(pid, clock);
+				log.log(Log.INFO, CYAN, "wal: recovered {} reserved books in {} ms",
+				books.reservedCount(), System.currentTimeMillis()-t);
+			}
+
+			transfer = new StateTransfer(this, books, wal, applied, history);
+			antiEntropy = new AntiEntropy(this, books, transfer, antiEntropyPeriod);
+			commits = new CommitOrder(this, transfer);
+
+			// initialize the mutex
+			if (mutexMode.equals("lamport")) 
+			{
+				mutex = new LamportMutex(this);
+			} else if (mutexMode.equals("ricart")) {
+				mutex = new RicartAgrawalaMutex(this);
+			} else if (mutexMode.equals("maekawa")) {
+				mutex = new MaekawaMutex(this);
+			} else if (mutexMode.equals("token")) {
+				mutex = new TokenMutex(this);
+			} else {
+				mutex = new FlagMutex(this, lockStripes);
+			}
+			if (replication.equals("sequencer"))
+			{
+				sequencer = new Sequencer(this, history);
+				log.log(Log.INFO, CYAN, "replication: sequencer");
+			} else {
+				log.log(Log.INFO, CYAN, "mutex: {}, {} stripes", mutexMode, lockStripes);
+			}
+
+			// start accepting and reading connections, the frames wait for the main
+			// loop
+			reactor = new Reactor(ioThreads, log);
+			reactor.coalesce(coalesceBytes, coalesceWindow);
+			reactor.start(serverSocketCh);
+			metrics.setReactor(reactor);
+			if (metricsPort > 0)
+			{
+				try
+				{
+					metrics.serve(metricsPort + pid);
+					log.log(Log.INFO, CYAN, "metrics: http://127.0.0.1:{}/metrics",
+					metricsPort + pid);
+				} catch (IOException e) {
+					log.log(Log.WARN, RED, "metrics: {}", e);
 				}
 			}
 
 			// connect to servers
-		  return connectToServers() ? true : false;
+			if (!connectToServers()) return false;
+			if (sequencer != null) sequencer.start();
+			return true;
 		} catch (IOException e) 
 		{
-			e.printStackTrace();
+			log.log(Log.ERROR, RED, "initialize(): {}", e);
 			return false;
 		}
 	}
@@ -194,15 +448,22 @@ public class LibraryServer
 				String[] s = server.getKey().split(":");
 				String ip = s[0];
 				int port = Integer.parseInt(s[1]);
-				SocketChannel sock = SocketChannel.open();
-				sock.connect(new InetSocketAddress(ip,port));
+				SocketChannel ch = SocketChannel.open();
+				ch.connect(new InetSocketAddress(ip,port));
+				// mutex messages are small and latency bound, do not let Nagle's
+				// algorithm hold them back
+				ch.socket().setTcpNoDelay(true);
+				// hand the socketchannel to an I/O thread of the reactor
+				Reactor.Connection sock = reactor.register(ch, Reactor.Connection.SERVER);
+				sock.limit = serverQueue;
 				// write ACK to socketchannel
-				if (send(sock, ""+this.pid)) {
+				if (send(sock, encode(MessageCodec.HELLO_SERVER, this.pid))) {
 					// add socketchannel to the arraylist
 					servers_sock.add(sock);
-					// register the socketchannel to the selector (NIO)
-					sock.configureBlocking(false);
-					SelectionKey key =sock.register(selector,sock.validOps());
+					int p = serverIds.get(server.getKey());
+					peers[p] = sock;
+					metrics.connected(sock, "peer", String.valueOf(p));
+					mutex.peerUp(p);
 					/* debug("Added SocketChannel: "+getIP(sock),GREEN); */
 				}
 			} catch (Exception e)
@@ -216,490 +477,960 @@ public class LibraryServer
 	}
 
 	/**
-	* Sends a message on the given SocketChannel.
-	* @param SocketChannel sock - desired socketchannel to send message out on.
-	* @param String msg - desired message to be sent.
+	* Sends a message on the given connection. What the socket does not take
+	* right away is queued and written by the reactor, so the main loop never
+	* waits on a slow peer, and with coalescing on the message waits for the
+	* others sent to the same connection (see Reactor.java). A connection
+	* whose queue overflows is closed and comes back from the reactor as a
+	* disconnect.
+	* @param Reactor.Connection sock - desired connection to send message out on.
+	* @param ByteBuffer msg - encoded frame(s) to be sent. Its position is left
+	* untouched so the same frame can be sent on several sockets.
 	* @return Boolean indicating whether the sent message was successful.
 	*/
-	private boolean send(SocketChannel sock,String msg) 
+	private boolean send(Reactor.Connection sock,ByteBuffer msg) 
 	{
-		/* if(!getIP(sock).equals("127.0.0.1:"+port))  */
-		if(true) 
-		{
-			/* debug("send(): entering with "+getIP(sock)+" MSG: "+msg); */
-			try
-			{
-				/* final byte[] by = msg.getBytes(); */
-				final byte[] by = makeBytes(msg,1024);
-				ByteBuffer b = ByteBuffer.wrap(by);
-				/* b.put(by); */
-				/* b.flip(); */
-				while(b.hasRemaining()){
-					int p = sock.write(b);
-				}
-				b.clear();
-				/* debug("send():Sent message to "+getIP(sock)+" >>> "+ */
-				/* msg,GREEN); */
-				return true;
-			} catch (IOException e)
-			{
-				debug("send():IOException sending to "+getIP(sock));
-				/* e.printStackTrace(); */
-				String ip = sock.socket().getInetAddress().getHostAddress();
-				if (servers.containsKey(ip)) servers.put(ip,false);
-				return false;
-			} catch (java.nio.channels.NotYetConnectedException e)
-			{
-				debug("send(): Not connected to "+getIP(sock),RED);
-				/* e.printStackTrace(); */
-				return false;
-			}
-		} else {
-			if (!sock.socket().isConnected()) {
-				debug("send(): NOT CONNECTED to "+getIP(sock),RED);
-			}
-			return true;
-		}
+		/* debug("send(): entering with "+getIP(sock)+" MSG: "+msg); */
+		metrics.sent(msg);
+		reactor.send(sock, msg, null);
+		/* debug("send():Sent message to "+getIP(sock)+" >>> "+ */
+		/* msg,GREEN); */
+		return sock.isOpen();
 	}
 
 	/**
-	* Receives a connection from a client or a server, sends appropriate ACK and
-	* adds the socket to the appropriate data structure.
-	* @param Socket clientCh - The newly created socket produced from 
-	* ServerSocketChannel.accept().
+	* Handles the handshake of a connection accepted by the reactor, sends the
+	* appropriate ACK and adds the socket to the appropriate data structure.
+	* @param Reactor.Connection c - the newly accepted connection.
+	* @param byte op - opcode of its first frame.
+	* @param ByteBuffer frame - rest of its first frame.
 	* @return Boolean indicating whether or not the client was successfully
 	* added.
 	*/
-	private boolean connectClient(SocketChannel clientCh)
+	private boolean connectClient(Reactor.Connection c, byte op, ByteBuffer frame)
 	{
+			Reactor.Connection clientCh = c;
 			/* debug("connectClient(): entering with "+getIP(clientCh)); */
-			try
+			c.limit = op == MessageCodec.HELLO_SERVER ? serverQueue : clientQueue;
+			// client is connecting
+			if (op == MessageCodec.HELLO_CLIENT && send(clientCh, 
+				MessageCodec.textFrame(MessageCodec.CLIENT_ID, "c"+clientCount)))
 			{
-				ByteBuffer buf = ByteBuffer.allocate(24);
-				int bytesRead = clientCh.read(buf);
-				buf.flip();
-				String recv = new String(buf.array()).trim();
-
-				// client is connecting
-				if (recv.equals("client") && send(clientCh, "c"+clientCount))
+				log.log(Log.DEBUG, YELLOW, "connectClient(): client connected {}",
+				getIP(clientCh));
+				c.kind = Reactor.Connection.CLIENT;
+				clients_sock.add(clientCh);
+				metrics.connected(c, "client", "c"+clientCount);
+				// the count rides on the next COMMAND_BATCH, COMMIT, FORWARD or LOG
+				clientCount++;
+				return true;
+			
+			// server is connecting
+			} else if (op == MessageCodec.HELLO_SERVER) {
+				int p = (int) MessageCodec.getVarint(frame);
+				log.log(Log.INFO, CYAN, "connectClient(): connected to server: {}", p);
+				c.kind = Reactor.Connection.SERVER;
+				servers_sock.add(clientCh);
+				if (p >= 0 && p < peers.length)
 				{
-					debug("connectClient(): client connected "+getIP(clientCh),YELLOW);
-					clients_sock.add(clientCh);
-					clientCh.configureBlocking(false);
-					SelectionKey key =clientCh.register(selector,clientCh.validOps());
-					clientCount++;
-					broadcast("CLIENT_COUNT "+this.pid+" "+clientCount+" "+
-					vector_clock[this.pid]);
-					return true;
-				
-				// server is connecting
-				} else {
-					debug("connectClient(): connected to server: "+recv,CYAN);
-					servers_sock.add(clientCh);
-					clientCh.configureBlocking(false);
-					SelectionKey key =clientCh.register(selector,clientCh.validOps());
-					return true;
+					peers[p] = clientCh;
+					metrics.connected(c, "peer", String.valueOf(p));
+					mutex.peerUp(p);
+					if (sequencer != null) sequencer.peerUp(p);
 				}
-			} catch (ClosedChannelException e){
-				debug("connectClient():ClosedChannelException.");
-				e.printStackTrace();
-				return false;
-			} catch (IOException e){
-				debug("connectClient():ClosedChannelException.");
-				e.printStackTrace();
-				return false;
+				return true;
 			}
+			log.log(Log.WARN, RED, "connectClient(): invalid handshake from {}",
+			getIP(clientCh));
+			disconnect(clientCh);
+			return false;
 	}
 
 	/**
-	* Receives a command on the socket from a client or server.
-	* @param SocketChannel sock - SocketChannel receiving from.
-	* @return String containing the reply to be sent to the client.
+	* Executes a single frame received from a client or server. The first
+	* frame of an accepted connection is its handshake.
+	* @param Reactor.Connection c - connection the frame was received on.
+	* @param ByteBuffer frame - body of the frame positioned at its opcode.
 	*/
-	private String recv(SocketChannel sock) 
+	void processFrame(Reactor.Connection c, ByteBuffer frame) 
+	throws IOException
 	{
-		String ip = getIP(sock);
-		int port = sock.socket().getLocalPort();
-		/* debug("recv(): Entering with "+ip,BLUE); */
-		String recv = "";
-		try
+		Reactor.Connection sock = c;
+		// replicated commands wait while the books are being brought up to date
+		if (c.kind == Reactor.Connection.SERVER && transfer.hold(c, frame)) return;
+		byte op = frame.get();
+		metrics.received(op);
+		if (c.kind == Reactor.Connection.UNKNOWN)
 		{
-			ByteBuffer buf = ByteBuffer.allocate(1024);
-			int bytesRead = sock.read(buf);
-			buf.flip();
-			recv = new String(buf.array()).trim();
-			String[] cmd = recv.split(" ");
-			/* if (!servers.containsKey(ip)  || cmd[0].equals("reserve") ||  */
-			/* 		cmd[0].equals("reserve")) */
-			
-			if (clients_sock.contains(sock))
-			{
-				// receiving from a client
-				debug("recv(): received "+recv.trim(), BLUE);
-				if (cmd.length == 3){
-					send(sock, processBook(cmd[0],cmd[1],cmd[2],true));
-				} else {
-					send(sock, "Invalid command.");	
-				}
+			connectClient(c, op, frame);
 
+		} else if (c.kind == Reactor.Connection.CLIENT)
+		{
+			// receiving from a client, the command is parsed in place
+			int text = frame.position();
+			if (op == MessageCodec.REQUEST && parser.parse(frame) &&
+				(!frame.hasRemaining() || MessageCodec.hasVarint(frame))){
+				if (log.enabled(Log.TRACE))
+					log.log(Log.TRACE, BLUE, "recv(): received {}",
+					MessageCodec.getString(frame.duplicate().position(text)).trim());
+				// the reply is sent once the command has been committed
+				long trace = frame.hasRemaining() ? MessageCodec.getVarint(frame) : 0;
+				if (trace == 0 && traceEvery > 0 && ++traced % traceEvery == 0)
+					trace = ((long) (this.pid + 1) << 40) | (traced / traceEvery);
+				submit(sock, frame, trace);
 			} else {
-				String sock_ip = getIP(sock);
-				// receiving from server.
-				if (cmd[0].equals("LOCK")) 
-				{
-					// LOCK is received when a server in the cluster requests the cs_lock
-					// LOCK <Pn> <Pn.clock>
-					/* debug("recv(): received LOCK from server "+sock_ip+"> "+recv,CYAN); */
-					int p = Integer.parseInt(cmd[1]);
-					int clock = Integer.parseInt(cmd[2]);
-					updateClock(p,clock);
-					lock(p);
-
-				} else if (cmd[0].equals("UNLOCK")) 
-				{
-					// UNLOCK is received when a server in the cluster requests to release
-					// the cs_lock. UNLOCK <Pn> <Pn.clock>
-					/* debug("recv(): received UNLOCK from server "+sock_ip+"> "+recv,CYAN); */
-					int p = Integer.parseInt(cmd[1]);
-					int clock = Integer.parseInt(cmd[2]);
-					updateClock(p,clock);
-					unlock(p);
-				
-				} else if (cmd[0].equals("SYNC")) {
-					// SYNC is received when a server asks for all book data.
-					// SYNC <Pn> <Pn.clock>
-					debug("recv(): received SYNC from server "+sock_ip,CYAN);
-					String tmp = bookDataDump();
-					String[] cmds = tmp.split(";");
-					for (int i=0;i<cmds.length;i++)
-						send(sock, cmds[i]);
-
-				} else if (cmd[0].equals("COMMAND")) {
-					// COMMAND is received from a server that has executed a book command.
-					// it is received and should also be executed on the receiving server
-					// in the cluster. COMMAND <Pn> <Pn.clock> (reserve|return) (Cx) (By)
-					/* debug("recv(): received COMMAND from server "+sock_ip+"> "+ */
-					/* recv,CYAN); */
-					int p = Integer.parseInt(cmd[1]);
-					int clock = Integer.parseInt(cmd[2]);
-					String order = cmd[3];
-					String c_id = cmd[4];
-					String b_id = cmd[5];
-					updateClock(p,clock);
-					processBook(c_id , b_id, order,false);
-
-				} else if (cmd[0].equals("CLIENT_COUNT")) {
-					/* debug("recv(): received CLIENT_COUNT from server "+sock_ip+"> "+ */
-					/* recv,CYAN); */
-					int p = Integer.parseInt(cmd[1]);
-					int cc = Integer.parseInt(cmd[2]);
-					int clock = Integer.parseInt(cmd[3]);
-					if (cc >clientCount) clientCount = cc;
-					updateClock(p,clock);
-
-				} else if (cmd[0].equals("SOCKET_CLOSE"))
-				{
-					sock.close();
-					SelectionKey key =sock.register(selector,0);
+				send(sock, MessageCodec.textFrame(MessageCodec.REPLY, 
+				"Invalid command."));
+			}
 
-				} else {
-					/* debug("recv():received from server "+sock_ip+ " >> "+recv.trim(),RED); */
+		} else {
+			// receiving from server.
+			if (MessageCodec.isMutex(op)) 
+			{
+				// LOCK, UNLOCK and the other mutex messages are handed to the mutex
+				// algorithm. <op> <Pn> <Pn.clock> <stripe> ...
+				/* debug("recv(): received mutex op "+op+" from server "+getIP(sock),CYAN); */
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				int stripe = (int) MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				Tracing.mutex(this.pid, clocks.now(), op, p, clock, stripe);
+				mutex.receive(op, p, clock, stripe, frame);
+			
+			} else if (MessageCodec.isSequencer(op)) {
+				// FORWARD, LOG, LEADER and FOLLOW are handed to the sequencer.
+				// <op> <Pn> <Pn.clock> ...
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				if (sequencer != null) sequencer.receive(op, p, clock, frame);
+				if (op == MessageCodec.LOG && dumpBooks)
+					log.log(Log.INFO, CYAN, bookStatus());
+
+			} else if (op == MessageCodec.SYNC) {
+				// SYNC is received when a server asks for the book data it missed.
+				// SYNC <Pn> <Pn.clock> <version vector>
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				log.log(Log.INFO, CYAN, "recv(): received SYNC from server {}", 
+				getIP(sock));
+				transfer.serve(sock, frame);
+
+			} else if (MessageCodec.isTransfer(op)) {
+				// SNAPSHOT, SNAPSHOT_CHUNK, DELTA and SYNC_DONE answer our SYNC.
+				// <op> <Pn> <Pn.clock> ...
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				transfer.receive(op, p, frame);
+
+			} else if (MessageCodec.isAntiEntropy(op)) {
+				// MERKLE and REPAIR compare and repair the books.
+				// <op> <Pn> <Pn.clock> <version vector> ...
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				antiEntropy.receive(op, p, frame);
+
+			} else if (op == MessageCodec.COMMAND_BATCH || op == MessageCodec.COMMIT) {
+				// COMMAND_BATCH carries every command a server committed during one
+				// entry to the critical section, in the order they were applied.
+				// Their versions at that server run on from <first>, <d1..dn> is
+				// what it had applied before. COMMIT is the last frame of the
+				// critical section and releases the stripe too.
+				// COMMAND_BATCH <Pn> <Pn.clock> <clients> <stripe> <first> <n> 
+				// <d1..dn> {(reserve|return) (By) (Cx) (trace)}...
+				int p = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				noteClients((int) MessageCodec.getVarint(frame));
+				int stripe = (int) MessageCodec.getVarint(frame);
+				long version = MessageCodec.getVarint(frame);
+				updateClock(p,clock);
+				// during a transfer the commands of a COMMIT are held, see hold(),
+				// and commands wait for those they followed, see CommitOrder.java
+				if ((op == MessageCodec.COMMAND_BATCH || !transfer.syncing()) &&
+					commits.admit(p, version, frame))
+				{
+					applyCommands(p, version, frame);
 				}
+				commits.drain();
+				if (op == MessageCodec.COMMIT) 
+					mutex.receive(MessageCodec.UNLOCK, p, clock, stripe, frame);
+
+			} else if (op == MessageCodec.CLIENT_COUNT) {
+				/* debug("recv(): received CLIENT_COUNT from server "+getIP(sock),CYAN); */
+				int p = (int) MessageCodec.getVarint(frame);
+				int cc = (int) MessageCodec.getVarint(frame);
+				long clock = MessageCodec.getVarint(frame);
+				noteClients(cc);
+				updateClock(p,clock);
+
+			} else if (op == MessageCodec.SOCKET_CLOSE)
+			{
+				disconnect(sock);
+
+			} else {
+				/* debug("recv():unknown opcode "+op+" from server "+getIP(sock),RED); */
 			}
-		} catch (IOException e)
-		{
-			debug("recv():IOException. Message corrupted due to transmission "+
-			"speed or there is a connection problem.",RED);
-			/* e.printStackTrace(); */
 		}
-		return recv;
 	}
 
 	/**
-	* Collects the status of the books each seperated by a colon.
-	* @return String Indicates the status of each book.
+	* Closes a connection and forgets about it.
+	* @param Reactor.Connection sock - connection to be closed.
 	*/
-	private String bookDataDump()
+	private void disconnect(Reactor.Connection sock)
 	{
-		String data = "";
-
-		for (int i=0; i<books.length;i++)
+		clients_sock.remove(sock);
+		servers_sock.remove(sock);
+		metrics.disconnected(sock);
+		for (int p=0;p<peers.length;p++)
 		{
-			data += "COMMAND "+this.pid+" "+vector_clock[this.pid]+ " ";
-
-			/* if (books[i][1].equals("free"))  */
-			/* 	data+= books[i][0]+" "+books[i][1]+"null;"; */
-			if (books[i][1].equals("reserved")) 
-				data+= books[i][2]+" "+books[i][0]+" reserve;";
+			if (peers[p] == sock)
+			{
+				peers[p] = null;
+				mutex.peerDown(p);
+				if (sequencer != null) sequencer.peerDown(p);
+				transfer.peerDown(p);
+				commits.peerDown(p);
+			}
+		}
+		try
+		{
+			sock.close();
+		} catch (IOException e) {
+			log.log(Log.WARN, RED, "disconnect():IOException.");
 		}
-		return data;
 	}
 
 	/**
-	* Broadcasts a message to all servers in the cluster.
-	* @param String msg - Message to be broadcasted.
+	* Broadcasts a message to all servers in the cluster. Servers whose socket
+	* is full share one queued copy of the message.
+	* @param ByteBuffer msg - encoded frame to be broadcasted.
 	*/
-	private void broadcast(String msg)
+	void broadcast(ByteBuffer msg)
 	{
 		/* debug("broadcast(): MESSAGE = "+msg); */
-		for (SocketChannel sock: servers_sock)
+		ByteBuffer copy = null;
+		for (Reactor.Connection sock: servers_sock)
 		{
-			send(sock,msg);
+			metrics.sent(msg);
+			copy = reactor.send(sock, msg, copy);
 		}
 	}
 
 	/**
 	* Updates the clock value of a given process.
 	* @param int process - ID of process to update clock value for. 
-	* @param int val - value to update the process's clock to.
+	* @param long val - value to update the process's clock to.
 	*/
-	private void updateClock(int process, int val)
+	private void updateClock(int process, long val)
 	{
 		if (process == this.pid)
 		{
-			int max = (int) Collections.max(Arrays.asList(vector_clock));
-			vector_clock[process] = max + 1;
+			clocks.tick();
 			messageCount ++;
-			debug(getClocks(),CYAN);
+			if (dumpClocks) log.log(Log.INFO, CYAN, getClocks());
 		} else {
-			if(vector_clock[process] < val) {
-				vector_clock[process] = val;
-				debug(getClocks(),CYAN);
-			}
+			if (clocks.witness(process, val) && dumpClocks)
+				log.log(Log.INFO, CYAN, getClocks());
 		}
 	}
 
 	/**
-	*	Processes commands coming from clients that have to deal with books.
-	*	Firstly, sets the lock flag for this process and enters waitForLock() to
-	*	wait for it's turn.
-	*	@param String clientID - ID of client submitting command.
-	*	@param String bookID - ID of book in question.
-	*	@param String cmd - command being submitted (reserve or return).
-	*	@param boolean needLock - inidicates whether or not the process requires a
-	*	lock for the critical section. The difference is updating books from a
-	*	client request which requires a lock, or just synchronizing with other
-	*	servers which does not require a lock.
-	*	@return String response to command submitted.
-	*/
-	private String processBook(String clientID, String bookID, String cmd, 
-	boolean needLock)
-	{
-		/* debug("processBook(): ENTERING: "+cmd+" "+clientID+" "+bookID); */
-		String ret = "fail "+clientID+" "+bookID;
-		// ask for lock for the critical section
-		if (needLock) lock(this.pid);
-		// ensure that this process has the lock for the critical section first.
-		if (!needLock || waitForLock())
+	*	Queues a command coming from a client on the stripe of its book. The lock
+	*	for the stripe is asked for by advanceLocks() on the next pass of the
+	*	main loop and the reply is sent once the command has been committed.
+	*	With the sequencer on, the command is handed to it instead.
+	*	@param Reactor.Connection sock - client the reply is sent to.
+	*	@param ByteBuffer frame - REQUEST frame the parser just read.
+	*	@param long trace - trace ID of the command, 0 if none.
+	*/
+	private void submit(Reactor.Connection sock, ByteBuffer frame, long trace)
+	{
+		int client = books.internClient(frame, parser.clientOff, parser.clientLen);
+		int book = parser.book >= 0 && parser.book < bookNum ? (int) parser.book : -1;
+		if (book < 0 || parser.op < 0)
 		{
-			for (int i=0;i<bookNum;i++)
+			// unknown books and commands never need the lock
+			byte[] b = new byte[parser.bookLen];
+			for (int i=0;i<b.length;i++) b[i] = frame.get(parser.bookOff + i);
+			send(sock, MessageCodec.textFrame(MessageCodec.REPLY, 
+			"fail "+books.clientName(client)+" "+
+			new String(b, java.nio.charset.StandardCharsets.UTF_8)));
+			return;
+		}
+		Request r = freeRequests.isEmpty() ? new Request() : freeRequests.pop();
+		r.set(sock, client, books.clientName(client), book, parser.op);
+		r.trace = trace;
+		Tracing.received(trace, this.pid, clocks.now(), book, parser.op);
+		if (sequencer != null)
+		{
+			sequencer.submit(r);
+			return;
+		}
+		int stripe = stripeOf(book);
+		Stripe st = stripes[stripe];
+		if (st == null)
+		{
+			st = new Stripe(stripe, getServerCount());
+			stripes[stripe] = st;
+		}
+		if (st.queue.isEmpty()) active.add(st);
+		st.queue.add(r);
+	}
+
+	/**
+	*	Drives the lock state machine of every stripe with queued commands. An
+	*	idle stripe asks for the lock once its batch is full or its oldest
+	*	command has waited batchDelay, a stripe whose lock was granted runs its
+	*	critical section. Never blocks.
+	*	@return long - milliseconds until a waiting batch is due, 0 if none is
+	*	and -1 if a critical section ran and the remaining stripes should be
+	*	checked again without waiting for new messages.
+	*/
+	private long advanceLocks()
+	{
+		if (transfer.syncing()) return 0; // commands wait for the books
+		long next = 0;
+		boolean progress = false;
+		long now = System.currentTimeMillis();
+		int kept = 0; // stripes still active are moved to the front in order
+		for (int i=0;i<active.size();i++)
+		{
+			Stripe st = active.get(i);
+			if (!st.requested)
 			{
-				if (books[i][0].equals(bookID))
+				// give the batch a chance to fill up
+				long deadline = st.queue.peek().arrived + batchDelay;
+				if (st.queue.size() < batchMax && now < deadline)
 				{
-					if (cmd.equals("reserve") && books[i][1].equals("free")){
-						books[i][1] = "reserved";
-						books[i][2] = clientID;
-						ret = clientID+" "+bookID;
-					} else if (cmd.equals("return") && books[i][1].equals("reserved") 
-						&& books[i][2].equals(clientID))
-					{
-						books[i][1] = "free";
-						books[i][2] = null;
-						ret = "free "+clientID+" "+bookID;
-					} else {
-						ret = "fail "+clientID+" "+bookID;
-					}
+					if (next == 0 || deadline - now < next) next = deadline - now;
+					active.set(kept++, st);
+					continue;
 				}
+				st.requested = true;
+				st.requestedAt = System.nanoTime();
+				Arrays.fill(st.need, 0);
+				lock(st.id);
+				Tracing.lockRequest(st.queue.peek().trace, this.pid, clocks.now(), st.id,
+				st.queue.size());
 			}
-			/* if (needLock){ */
-			/* 	debug("processBook(): PROCESSING "+ret); */
-			/* } else { */
-			/* 	debug("processBook(): SYNCHRONIZING "+ret,CYAN); */
-			/* } */
-			if (needLock && !ret.substring(0,4).equals("fail")) 
-				broadcast("COMMAND "+this.pid+" "+vector_clock[this.pid]+
-				" "+cmd+" "+clientID+" "+bookID);
-			if (needLock) unlock(this.pid);
-			debug(bookStatus(),CYAN);
+			if (waitForLock(st))
+			{
+				/* debug("advanceLocks(): lock received.("+ */
+				/* (System.nanoTime()-st.requestedAt)/1000000.0+" ms)",YELLOW); */
+				st.grantedAt = System.nanoTime();
+				metrics.lockWait.record(st.grantedAt - st.requestedAt);
+				Tracing.lockGrant(st.queue.peek().trace, this.pid, clocks.now(), st.id,
+				st.grantedAt - st.requestedAt);
+				commitBatch(st);
+				st.requested = false;
+				progress = true;
+				if (st.queue.isEmpty()) continue;
+			}
+			active.set(kept++, st);
+		}
+		while (active.size() > kept) active.remove(active.size() - 1);
+		return progress && !active.isEmpty() ? -1 : next;
+	}
+
+	/**
+	*	Runs the critical section of a stripe (group commit). Every queued
+	*	command on the stripe, up to batchMax, is applied and replicated with a
+	*	single COMMAND_BATCH broadcast, the lock is released and the clients are
+	*	sent their replies. When the release of the mutex is a plain UNLOCK
+	*	broadcast, the last frame goes out as a COMMIT that carries the UNLOCK
+	*	too, so a lock round costs one broadcast less.
+	*	@param Stripe st - stripe whose lock is held by this process.
+	*/
+	private void commitBatch(Stripe st)
+	{
+		batch.clear();
+		while (!st.queue.isEmpty() && batch.size() < batchMax)
+			batch.add(st.queue.poll());
+
+		// a fused UNLOCK carries the clock tick of the release
+		boolean fused = mutex.fusesUnlock();
+		long clock = fused ? tick() : clocks.now();
+		out.clear();
+		int start = -1;
+		for (Request r : batch)
+		{
+			long version = transfer.applied(this.pid) + 1;
+			r.outcome = processBook(r.client, r.book, r.op, this.pid, version);
+			Tracing.apply(r.trace, this.pid, clock, this.pid, r.book,
+			r.outcome != FAILED);
+			if (r.outcome == FAILED) continue;
+			if (start >= 0 && out.remaining() < 1024 + 3*r.clientID.length())
+			{
+				// frame is full, send what we have and start another one
+				MessageCodec.end(out, start);
+				out.flip();
+				broadcast(out);
+				out.clear();
+				start = -1;
+			}
+			if (start < 0) start = beginBatch(clock, st.id, version);
+			MessageCodec.putVarint(out, r.op);
+			MessageCodec.putVarint(out, r.book);
+			MessageCodec.putString(out, r.clientID);
+			MessageCodec.putVarint(out, r.trace);
+			Tracing.broadcast(r.trace, this.pid, clock, st.id);
+		}
+		if (fused)
+		{
+			if (start < 0) start = beginBatch(clock, st.id, transfer.applied(pid) + 1);
+			out.put(start + MessageCodec.HEADER, MessageCodec.COMMIT);
+			mutex.releaseLocally(st.id);
 		}
-		return ret;
+		if (start >= 0)
+		{
+			MessageCodec.end(out, start);
+			out.flip();
+			broadcast(out);
+		}
+		if (!fused) unlock(st.id);
+		metrics.lockHold.record(System.nanoTime() - st.grantedAt);
+		Tracing.lockRelease(batch.isEmpty() ? 0 : batch.get(0).trace, this.pid,
+		clocks.now(), st.id);
+		if (dumpBooks) log.log(Log.INFO, CYAN, bookStatus());
+
+		for (Request r : batch) reply(r, r.outcome);
+		batch.clear();
 	}
 
 	/**
-	* Sets lock for a given process.
-	* @param int process - process asking for the mutex lock
+	*	Starts a COMMAND_BATCH frame in the scratch buffer. The frame depends on
+	*	every command applied here before its first one (see CommitOrder.java).
+	*	@param long clock - clock the frame is stamped with.
+	*	@param int stripe - stripe of the critical section.
+	*	@param long version - version of the first command of the frame.
+	*	@return int - start of the frame, see MessageCodec.begin().
 	*/
-	private void lock(int process)
+	private int beginBatch(long clock, int stripe, long version)
 	{
-		if (this.pid == process) { 
-			/* debug("lock(): setting lock for process "+process,YELLOW); */
-			broadcast("LOCK "+this.pid+" "+vector_clock[this.pid]);
-		} 
-		/* else { */
-		/* 	debug("lock(): setting lock for process "+process,CYAN); */
-		/* } */
-		cs_flag[process] = true;
+		int start = MessageCodec.begin(out, MessageCodec.COMMAND_BATCH);
+		MessageCodec.putVarint(out, this.pid);
+		MessageCodec.putVarint(out, clock);
+		MessageCodec.putVarint(out, clientCount);
+		MessageCodec.putVarint(out, stripe);
+		MessageCodec.putVarint(out, version);
+		MessageCodec.putVarint(out, getServerCount());
+		for (int i=0;i<getServerCount();i++)
+			MessageCodec.putVarint(out, i == pid ? version - 1 : transfer.applied(i));
+		return start;
 	}
 
 	/**
-	* Releases lock for a given process.
-	* @param int process - process asking to release lock.
+	*	Sends a committed client command its response and recycles the command.
+	*	@param Request r - the command.
+	*	@param int outcome - FAILED, RESERVED or RETURNED.
 	*/
-	private void unlock(int process)
+	void reply(Request r, int outcome)
 	{
-		cs_flag[process] = false;
-		updateClock(process, vector_clock[process]);
-		if (this.pid == process) {
-			/* debug("unlock(): unlocking process "+process,YELLOW); */
-			broadcast("UNLOCK "+this.pid+" "+vector_clock[this.pid]);
-		} 
-		/* else { */
-		/* 	debug("unlock(): unlocking process "+process,CYAN); */
-		/* } */
+		// not durable, the server is stopping and the client hears nothing
+		if (syncLog() && r.sock.isOpen())
+			send(r.sock, encodeReply(outcome, r.client, r.book));
+		metrics.request.record(System.nanoTime() - r.started);
+		Tracing.reply(r.trace, this.pid, clocks.now(), outcome,
+		System.nanoTime() - r.started);
+		r.sock = null;
+		freeRequests.push(r);
 	}
-	
+
+	/**
+	*	Encodes the response to a book command into the reply buffer, the text
+	*	being "Cx By", "free Cx By" or "fail Cx By".
+	*	@param int outcome - FAILED, RESERVED or RETURNED.
+	*	@param int client - interned client ID.
+	*	@param int book - index of the book.
+	*	@return ByteBuffer - the REPLY frame, valid until the next call.
+	*/
+	private ByteBuffer encodeReply(int outcome, int client, int book)
+	{
+		byte[] name = books.clientBytes(client);
+		int digits = 1;
+		for (int n=book;n>=10;n/=10) digits++;
+		replyOut.clear();
+		int start = MessageCodec.begin(replyOut, MessageCodec.REPLY);
+		MessageCodec.putVarint(replyOut, (outcome == RESERVED ? 0 : 5) +
+		name.length + 2 + digits);
+		if (outcome == FAILED) 
+			replyOut.put((byte) 'f').put((byte) 'a').put((byte) 'i').put((byte) 'l');
+		if (outcome == RETURNED) 
+			replyOut.put((byte) 'f').put((byte) 'r').put((byte) 'e').put((byte) 'e');
+		if (outcome != RESERVED) replyOut.put((byte) ' ');
+		replyOut.put(name).put((byte) ' ').put((byte) 'b');
+		for (int i=digits-1, n=book;i>=0;i--, n/=10)
+			replyOut.put(replyOut.position() + i, (byte) ('0' + n % 10));
+		replyOut.position(replyOut.position() + digits);
+		MessageCodec.end(replyOut, start);
+		replyOut.flip();
+		return replyOut;
+	}
+
 	/**
-	* Waits until all other processes with a lower clock count execute and set
-	* their cs_flag to false.
-	* @return Boolean - indicates whether or not the lock was successfully 
-	* received.
+	*	Applies a book command to the catalog. Callers must either hold the lock
+	*	of the book's stripe, be replaying a command that was committed by the
+	*	server holding it or be applying the log of the sequencer. A command
+	*	that changes the catalog is recorded under its version at the server
+	*	that committed it, a command whose version was already applied (by a
+	*	state transfer) is skipped.
+	*	@param int client - interned ID of the client submitting the command.
+	*	@param int book - index of the book.
+	*	@param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*	@param int origin - server that committed the command.
+	*	@param long version - version the command gets if it changes the books.
+	*	@return int - FAILED, RESERVED or RETURNED.
 	*/
-	private boolean waitForLock()
+	int processBook(int client, int book, int op, int origin, long version)
 	{
-		long startTime = System.nanoTime();
-		/* debug("waitForLock(): entering.",YELLOW); */
-		boolean lock = true;
-		while (lock)
+		/* debug("processBook(): ENTERING: "+op+" "+client+" "+book); */
+		if (book < 0 || book >= bookNum || version <= transfer.applied(origin)) 
+			return FAILED;
+		if (op == MessageCodec.OP_RESERVE && books.reserve(book, client))
+		{
+			logCommand(origin, version, op, book, books.clientName(client));
+			return RESERVED;
+		} else if (op == MessageCodec.OP_RETURN && books.release(book, client))
 		{
-			boolean othersWaiting = false;
-			int lowestClock = (int) Collections.min(Arrays.asList(vector_clock));
-			int lowestProcessWaiting = this.pid;
+			logCommand(origin, version, op, book, books.clientName(client));
+			return RETURNED;
+		}
+		return FAILED;
+	}
 
-			// check that other processes have not asked to access critical section
-			for (int i=0; i< cs_flag.length; i++) 
-			{
-				if (i != pid && cs_flag[i]) {
-					othersWaiting = true;
-					if (i < pid) lowestProcessWaiting = i;
-				}
-			}
+	/**
+	*	Applies the commands of a COMMAND_BATCH or COMMIT, see processFrame().
+	*	The frame was checked whole by CommitOrder.admit().
+	*	@param int p - server that committed them.
+	*	@param long version - version of the first one at that server.
+	*	@param ByteBuffer frame - {<op> <By> <Cx> <trace>}...
+	*/
+	void applyCommands(int p, long version, ByteBuffer frame)
+	{
+		while (frame.hasRemaining())
+		{
+			int order = (int) MessageCodec.getVarint(frame);
+			int book = (int) MessageCodec.getVarint(frame);
+			int client = books.internClient(frame);
+			long trace = MessageCodec.getVarint(frame);
+			stage(p, version++, order, book, client, trace);
+		}
+		applyStaged();
+		transfer.advance(p, version - 1);
+		commits.applied(p, version - 1);
+		if (dumpBooks) log.log(Log.INFO, CYAN, bookStatus());
+	}
 
-			if (lowestClock == vector_clock[this.pid] && !othersWaiting ||
-					this.pid <= lowestProcessWaiting) 
-			{
-				// If others are not waiting and this process has lowest clock then the
-				// lock for the critical section should be given to this section. 			
-				// if another process is asking for the lock yet it has the same clock
-				// count, then the one with the lowest process id takes precedence.
-				lock = false;
-		  } else {
-				// Else, check sockets for updates.
-				/* debug("OTHERS WAITING",RED); */
-				checkSockets();
-			}
+	/**
+	*	Stages a replicated command to be applied with the others of its batch
+	*	by applyStaged(), which gives the same result as processBook().
+	*	@param int origin - server that committed the command, -1 for a book of
+	*	a snapshot.
+	*	@param long version - version of the command at that server.
+	*	@param int order - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*	@param int book - index of the book.
+	*	@param int client - interned client ID.
+	*	@return int - index of the command in the batch, see stagedOutcome().
+	*/
+	int stage(int origin, long version, int order, int book, int client)
+	{
+		return stage(origin, version, order, book, client, 0);
+	}
+
+	/**
+	*	Same as stage() for a command that carries a trace ID.
+	*	@param int origin - server that committed the command.
+	*	@param long version - version of the command at that server.
+	*	@param int order - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*	@param int book - index of the book.
+	*	@param int client - interned client ID.
+	*	@param long trace - trace ID of the command, 0 if none.
+	*	@return int - index of the command in the batch, see stagedOutcome().
+	*/
+	int stage(int origin, long version, int order, int book, int client,
+	long trace)
+	{
+		boolean skip = book < 0 || book >= bookNum || 
+			origin >= 0 && version <= transfer.applied(origin);
+		return applier.add(origin, version, order, book, client, trace, skip);
+	}
+
+	/**
+	*	Applies the commands staged since the last call, on several threads if
+	*	the batch is large (see ApplyPool.java), then records the ones that
+	*	changed the books in the order they were staged.
+	*/
+	void applyStaged()
+	{
+		long t = System.nanoTime();
+		applier.run();
+		metrics.apply.record(System.nanoTime() - t);
+		for (int i=0;i<applier.size();i++)
+		{
+			if (applier.trace(i) != 0)
+				Tracing.apply(applier.trace(i), this.pid, clocks.now(), applier.origin(i),
+				applier.book(i), applier.ok(i));
+			if (!applier.ok(i) || applier.origin(i) < 0) continue;
+			logCommand(applier.origin(i), applier.version(i), applier.op(i),
+			applier.book(i), applier.clientID(i));
 		}
-		long endTime = System.nanoTime();
-		/* debug("waitForLock(): lock received.("+(endTime-startTime)/1000000.0+" ms)" */
-		/* ,YELLOW); */
-		return true;
 	}
 
 	/**
-	* Checks sockets for events.
+	*	@param int i - index of a command applied by the last applyStaged().
+	*	@return int - FAILED, RESERVED or RETURNED.
 	*/
-	private void checkSockets()
+	int stagedOutcome(int i)
 	{
-		try 
+		return applier.outcome(i);
+	}
+
+	/**
+	*	Records a command that changed the books for state transfer and appends
+	*	it to the write-ahead log, if there is one. It reaches the disk with the
+	*	next syncLog().
+	*	@param int origin - server that committed the command.
+	*	@param long version - version of the command at that server.
+	*	@param int order - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*	@param int book - index of the book.
+	*	@param String clientID - ID of the client.
+	*/
+	private void logCommand(int origin, long version, int order, int book,
+	String clientID)
+	{
+		transfer.record(origin, version, order, book, clientID);
+		if (wal == null) return;
+		try
 		{
-			String cmd = "";
-			SocketChannel sc = null;
-			selector.select();
-			Set<SelectionKey> selectedKeys = selector.selectedKeys();
-			Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-			// NOTE: converting to arraylist here to avoid
-			// ConcurrentModificationException on the Iterator.
-			ArrayList<SelectionKey> copy = new ArrayList<SelectionKey>();
-			while (keyIterator.hasNext()){
-				copy.add(keyIterator.next());
-				keyIterator.remove();
-			}
-			/* while (keyIterator.hasNext()) */
-			for (SelectionKey key: copy)
-			{
-				/* SelectionKey key = keyIterator.next(); */
+			wal.append(clocks.now(), origin, version, order, book,
+			clientID);
+		} catch (IOException e) {
+			walFailed("logCommand()", e);
+		}
+	}
 
-				if(key.isAcceptable()) 
-				{
-					// a connection was accepted by a ServerSocketChannel.
-					ServerSocketChannel ssc = (ServerSocketChannel)key.channel();
-					sc = ssc.accept();
-					/* debug("checkSockets(): accepted connection "+getIP(sc)); */
-					connectClient(sc);
-				} else if (key.isConnectable()) 
-				{
-					// a connection was established with a remote server.
-					sc = (SocketChannel)key.channel();
+	/**
+	*	Forces the commands logged since the last call to disk with a single
+	*	fsync. Called before any reply goes out, so a client never hears of a
+	*	command that a crash could still lose, and once per pass of the main
+	*	loop for the commands replicated from other servers.
+	*	@return boolean - false if the commands are not durable, the reply must
+	*	then not be sent.
+	*/
+	private boolean syncLog()
+	{
+		if (wal == null) return true;
+		if (walFailed) return false;
+		try
+		{
+			wal.sync();
+			return true;
+		} catch (IOException e) {
+			walFailed("syncLog()", e);
+			return false;
+		}
+	}
 
-				} else if (key.isReadable()) 
-				{
-					// a channel is ready for reading
-					sc = (SocketChannel)key.channel();
-					/* debug("checkSockets(): receiving."+getIP(sc)); */
-					// receive data on SocketChannel
-					recv(sc);
-				} else if (key.isWritable()) 
+	/**
+	*	Stops the server once the write-ahead log failed (a full disk, a failed
+	*	write back of the mapping...). Its books are ahead of the log, so it
+	*	answers no client any more and leaves it to a restart to recover from
+	*	the log and catch up with the other servers through SYNC.
+	*	@param String where - method the log failed in.
+	*	@param IOException e - the failure.
+	*/
+	private void walFailed(String where, IOException e)
+	{
+		if (!walFailed)
+			log.log(Log.ERROR, RED, where+": write-ahead log failed, stopping. {}", e);
+		walFailed = true;
+		stop();
+	}
+
+	/**
+	* Returns the lock stripe a book belongs to.
+	* @param int book - index of the book.
+	* @return int - stripe guarding the book.
+	*/
+	private int stripeOf(int book)
+	{
+		return book % lockStripes;
+	}
+
+	/**
+	* Asks the mutex for the lock of a stripe.
+	* @param int stripe - stripe the lock is asked for.
+	*/
+	private void lock(int stripe)
+	{
+		/* debug("lock(): asking for stripe "+stripe,YELLOW); */
+		mutex.request(stripe);
+	}
+
+	/**
+	* Releases the lock of a stripe held by this process.
+	* @param int stripe - stripe the lock is released for.
+	*/
+	private void unlock(int stripe)
+	{
+		/* debug("unlock(): releasing stripe "+stripe,YELLOW); */
+		mutex.release(stripe);
+	}
+	
+	/**
+	* Checks whether this process holds the lock of a stripe and applied the
+	* commands of the former holders. Never blocks, advanceLocks() checks
+	* again after new messages have arrived.
+	* @param Stripe st - stripe the lock was asked for.
+	* @return Boolean - indicates whether or not this process holds the lock.
+	*/
+	private boolean waitForLock(Stripe st)
+	{
+		return commits.caughtUp(st.need) && mutex.granted(st.id);
+	}
+
+	/**
+	* Puts the vector of commands this server knows of into the arguments of a
+	* mutex message that hands a lock on, see CommitOrder.java.
+	* @param long[] args - arguments of the message.
+	* @param int i - index of <n>, followed by <v1..vn>.
+	*/
+	void putCommitted(long[] args, int i)
+	{
+		args[i++] = getServerCount();
+		for (int j=0;j<getServerCount();j++) args[i++] = commits.known(j);
+	}
+
+	/**
+	* Takes in the vector of commands a mutex message handing on the lock of a
+	* stripe carried. The critical section waits until they are applied.
+	* @param int stripe - stripe of the lock.
+	* @param ByteBuffer frame - rest of the message positioned at <n>.
+	*/
+	void takeCommitted(int stripe, ByteBuffer frame)
+	{
+		long[] v = new long[MessageCodec.getCount(frame)];
+		for (int i=0;i<v.length;i++) v[i] = MessageCodec.getVarint(frame);
+		commits.heard(v);
+		Stripe st = stripes[stripe];
+		if (st == null || !st.requested) return;
+		for (int i=0;i<v.length && i<st.need.length;i++)
+			if (v[i] > st.need[i]) st.need[i] = v[i];
+	}
+
+	/**
+	* @return int - number of clients connected to the cluster as far as this
+	* server knows.
+	*/
+	int clientCount()
+	{
+		return clientCount;
+	}
+
+	/**
+	* Takes in the client count another server piggybacked on a message.
+	* @param int count - client count of that server.
+	*/
+	void noteClients(int count)
+	{
+		if (count > clientCount) clientCount = count;
+	}
+
+	/**
+	* @return BookCatalog - books of this server.
+	*/
+	BookCatalog books()
+	{
+		return books;
+	}
+
+	/**
+	* @return Log - logger of this server.
+	*/
+	Log log()
+	{
+		return log;
+	}
+
+	/**
+	* @return int - process id of this server.
+	*/
+	int getPid()
+	{
+		return pid;
+	}
+
+	/**
+	* @return int - number of servers in the cluster, including this one.
+	*/
+	int getServerCount()
+	{
+		return clocks.size();
+	}
+
+	/**
+	* @param int p - ID of a server.
+	* @return boolean - whether or not this server is connected to it.
+	*/
+	boolean isPeerUp(int p)
+	{
+		return peers[p] != null && peers[p].isOpen();
+	}
+
+	/**
+	* Called by StateTransfer.java once the books are up to date.
+	*/
+	void synced()
+	{
+		long last = 0;
+		for (int i=0;i<getServerCount();i++) 
+			last = Math.max(last, transfer.applied(i));
+		if (sequencer != null) sequencer.resume(last);
+		commits.drain();
+		log.log(Log.INFO, CYAN, "synced: {} reserved books", books.reservedCount());
+	}
+
+	/**
+	* Called by AntiEntropy.java once it overwrote a range of books with the
+	* ones of another server.
+	* @param int first - index of the first book of the range.
+	* @param int last - index right after the last book of the range.
+	*/
+	void repaired(int first, int last)
+	{
+		log.log(Log.WARN, RED, "anti-entropy: repaired b{} to b{}", first, last-1);
+		// the repair is not a command, only a checkpoint makes it durable
+		try
+		{
+			if (wal != null) wal.checkpoint();
+		} catch (IOException e) {
+			log.log(Log.ERROR, RED, "repaired():IOException. {}", e.getMessage());
+		}
+	}
+
+	/**
+	* Advances the clock of this process for a local event.
+	* @return long - the new clock value.
+	*/
+	long tick()
+	{
+		updateClock(this.pid, 0);
+		return clocks.now();
+	}
+
+	/**
+	* Sends a message to a single server.
+	* @param int p - ID of the server.
+	* @param ByteBuffer msg - encoded frame to be sent.
+	* @return boolean - whether or not the message was sent.
+	*/
+	boolean sendTo(int p, ByteBuffer msg)
+	{
+		return isPeerUp(p) && send(peers[p], msg);
+	}
+
+	/**
+	* Executes the frames the reactor read from the sockets.
+	* @param long timeout - most milliseconds to block for, 0 blocks until there
+	* is at least one frame and -1 does not block at all.
+	*/
+	private void checkSockets(long timeout)
+	{
+		// leave the other work of the main loop a turn every EVENTS frames
+		Reactor.Event e = reactor.take(timeout);
+		for (int i=0;e != null;i++)
+		{
+			try
+			{
+				if (e.frame == null)
 				{
-					// a channel is ready for writing
-					sc = (SocketChannel)key.channel();
+					// the other end closed the connection, or a send gave up on it
+					if (e.conn.error != null)
+						log.log(Log.WARN, RED, "send():IOException sending to {}. {}",
+						getIP(e.conn), e.conn.error);
+					disconnect(e.conn);
+				} else if (e.conn.isOpen()) {
+					processFrame(e.conn, e.frame);
 				}
-
-				// remove key from selected keys after processing.
-				/* keyIterator.remove(); */
+			} catch (IOException x)
+			{
+				log.log(Log.WARN, RED, "checkSockets():IOException. Message corrupted "+
+				"or there is a connection problem with {}.", getIP(e.conn));
+				disconnect(e.conn);
+			} catch (BufferUnderflowException | IllegalArgumentException x)
+			{
+				// a length or varint runs past the end of the frame
+				log.log(Log.WARN, RED, "checkSockets(): malformed frame from {}. {}",
+				getIP(e.conn), x.toString());
+				disconnect(e.conn);
+			} catch (Exception x) 
+			{
+				// the frame could not be handled, do not trust the rest of the stream
+				log.log(Log.ERROR, RED, "mainLoop(): Exception {}", x);
+				disconnect(e.conn);
 			}
-		} catch (Exception e) 
-		{
-			debug("mainLoop(): Exception ",RED);
-			e.printStackTrace();
-			/* terminate(); */
+			if (i == EVENTS) break;
+			e = reactor.take(-1);
 		}
 	}
 
 	/**
-	* Terminates the program.
+	* Terminates the program. Called by the main thread, the frames and
+	* buffers it sends with are not shared with other threads. Other threads
+	* call stop() instead.
 	*/
-	public void terminate()
+	public synchronized void terminate()
 	{
+		if (terminated) return;
+		terminated = true;
 		try
 		{
 			serverSocketCh.close();
-			// close all server sockets
-			for (SocketChannel sock : servers_sock){
-				System.out.println("Closing server connection to..."+getIP(sock));
-				send(sock,"SOCKET_CLOSE");
+			// close all server sockets. The lists are copied since the main loop
+			// may still be handling disconnects.
+			for (Reactor.Connection sock : new ArrayList<Reactor.Connection>(servers_sock)){
+				log.log(Log.INFO, null, "Closing server connection to...{}", getIP(sock));
+				// written directly, the main loop no longer flushes
+				try
+				{
+					sock.send(encode(MessageCodec.SOCKET_CLOSE), null);
+				} catch (IOException e) {
+					// closing anyway
+				}
 				sock.close();
 			}
 			// close all client sockets 
-			for (SocketChannel sock : clients_sock){
+			for (Reactor.Connection sock : new ArrayList<Reactor.Connection>(clients_sock)){
 				/* System.out.println("Closing client connection to..."+getIP(sock)); */
 				sock.close();
 			}
-			System.out.println("Program terminated.");
-			return;
+			if (reactor != null) reactor.close();
+			metrics.close();
+			if (wal != null) wal.close();
+			if (dumpBooks && books != null) log.log(Log.INFO, CYAN, bookStatus());
+			log.log(Log.INFO, null, "Program terminated.");
+			log.close();
 		} catch (IOException e) {
-			debug("terminate():IOException.");
-			return;
+			log.log(Log.WARN, null, "terminate():IOException.");
+			log.close();
+		} finally {
+			finished.countDown();
 		}
 	}
 
 	/**
-	* Returns the IP address and port of of a given SocketChannel.
-	* @param SocketChannel sock - the desired SocketChannel to the ip address for
-	* @return String - IP of the SocketChannel given.
+	* Returns the IP address and port of of a given connection.
+	* @param Reactor.Connection sock - the desired connection to the ip address for
+	* @return String - IP of the connection given.
 	*/
-	private String getIP(SocketChannel sock)
+	private String getIP(Reactor.Connection sock)
 	{
-		Socket socket = sock.socket();
-		String ip = sock.socket().getInetAddress().getHostAddress();
+		Socket socket = sock.sock.socket();
+		String ip = socket.getInetAddress().getHostAddress();
 		int port = socket.getPort();
 		return ip+":"+port;
 	}
@@ -718,13 +1449,13 @@ public class LibraryServer
 			{
 				if (messageCount > messageMax)
 				{
-					debug("Sleeping",RED);
+					log.log(Log.INFO, RED, "Sleeping");
 					this.messageCount = 0;
 					// FIXME: remove socket from the arraylist and avoid concurrent
 					// modification exception.
-					for (SocketChannel sock : clients_sock)
+					for (Reactor.Connection sock : clients_sock)
 					{
-						if (sock.isConnected())
+						if (sock.sock.isConnected())
 						{
 							/* System.out.println("Closing client connection to..."+getIP(sock)); */
 							sock.close();
@@ -741,34 +1472,30 @@ public class LibraryServer
 	}
 
 	/**
-	* Returns the vector_clock in string form.
-	* @return String - vector_clock in String form.
+	* Returns the vector clock in string form.
+	* @return String - vector clock in String form.
 	*/
 	private String getClocks()
 	{
-		String ret = "Clocks: [  ";
-		for(int i=0;i<vector_clock.length;i++)
-			ret += vector_clock[i]+"  ";
-		return ret+"]";
+		return clocks.toString();
 	}
 
 	/**
-	* Takes in a message and a desired size in bytes, then returns a byte array
-	* that is padded with spaces at the end if the size of the message is less
-	* than the specified size.
-	* @param String message - Desired message to convert to a byte array.
-	* @param int size - Desired size of the byte array.
-	* @return byte[] - Resulting byte array containing message and padded with
-	* spaces.
+	* Encodes a frame made of an opcode and integer arguments into the scratch
+	* buffer. The frame is valid until the next call to encode.
+	* @param byte opcode - type of the message.
+	* @param long... args - arguments of the message.
+	* @return ByteBuffer - the encoded frame, ready to be sent.
 	*/
-	public static byte[] makeBytes(String message, int size)
+	ByteBuffer encode(byte opcode, long... args)
 	{
-		byte[] ret = new byte[size];
-		System.arraycopy(message.getBytes(),0,ret,0,message.getBytes().length);
-		String padder = "#";
-		for (int i=message.getBytes().length; i<ret.length; i++)
-			ret[i] = (byte) 32; // spaces
-		return ret;
+		out.clear();
+		int start = MessageCodec.begin(out, opcode);
+		for (int i=0;i<args.length;i++)
+			MessageCodec.putVarint(out, args[i]);
+		MessageCodec.end(out, start);
+		out.flip();
+		return out;
 	}
 
 	/**
@@ -776,49 +1503,20 @@ public class LibraryServer
 	*/
 	private String bookStatus()
 	{
-		String ret = "BOOKS: [ ";
-		for (int i=0;i<books.length;i++)
+		StringBuilder ret = new StringBuilder("BOOKS: [ ");
+		for (int i=0;i<books.size();i++)
 		{
-			if (books[i][1].equals("free")){
-				ret+= GREEN+books[i][1]+" "+ENDC;
+			if (books.isFree(i)){
+				ret.append(GREEN).append("free ").append(ENDC);
 			} else {
-				ret+= RED+books[i][2]+" "+ENDC;
+				ret.append(RED).append(books.clientName(books.holder(i))).append(' ')
+				.append(ENDC);
 			}
 		}
-		ret+= " ]";
-		return ret;
+		ret.append(" ]");
+		return ret.toString();
 	}
 
-	/**
-	* Used to print debug messages.
-	* @param String msg - debug message to be printed out
-	*/
-	private void debug(String msg)
-	{
-		if (debug) System.out.println("["+getTime()+"] DEBUG: "+msg);
-	}
-	
-	/**
-	* Used to print debug messages.
-	* @param String msg - debug message to be printed out.
-	* @param String color - desired color for messages.
-	*/
-	private void debug(String msg, String color)
-	{
-		if (debug) System.out.println("["+getTime()+"] "+color+"DEBUG: "+msg+ENDC);
-	}
-
-	/**
-	* Returns the current time in HH:mm:ss
-	*/
-	private String getTime()
-	{
-		DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss:SS");
-		Date date = new Date();
-		return YELLOW+dateFormat.format(date)+ENDC;
-	}
-
-
 	/**
 	* Counts how many servers are connected to this node.
 	* @return int - indicates how many servers are connected to this node.
@@ -826,8 +1524,8 @@ public class LibraryServer
 	private int countServers()
 	{
 		int c = 0;
-		for (SocketChannel sock : servers_sock){
-			if (sock.isConnected()){
+		for (Reactor.Connection sock : servers_sock){
+			if (sock.sock.isConnected()){
 				c++;
 			}
 		}
@@ -835,22 +1533,54 @@ public class LibraryServer
 	}
 
 
+	/**
+	* Refreshes the gauges of the metrics, once per pass of the main loop.
+	*/
+	private void sampleMetrics()
+	{
+		long queued = 0;
+		for (Reactor.Connection sock : servers_sock) queued += sock.queued();
+		metrics.set(Metrics.PEERS, servers_sock.size());
+		metrics.set(Metrics.CLIENTS, clients_sock.size());
+		metrics.set(Metrics.BACKLOG, reactor.backlog());
+		metrics.set(Metrics.ACTIVE, active.size());
+		metrics.set(Metrics.PEER_QUEUED, queued);
+	}
+
 	/**
 	* Main server loop.
 	*/
 	private void mainLoop()
 	{
-		// catch keyboardInterrupt
+		// catch keyboardInterrupt. The main loop terminates the server, the hook
+		// only waits for it so that the wal and the log are flushed before the
+		// JVM exits.
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 				public void run() {
-					terminate();
+					LibraryServer.this.stop();
+					try
+					{
+						finished.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// exiting anyway
+					}
 				}
 		 });
 		/* debug("Entering mainLoop()"); */
-		while (true)
+		long timeout = 0;
+		while (running)
 		{
 			checkSleep();
-			checkSockets();
+			checkSockets(timeout);
+			timeout = advanceLocks();
+			sampleMetrics();
+			if (sequencer != null && sequencer.flush() && dumpBooks)
+				log.log(Log.INFO, CYAN, bookStatus());
+			syncLog();
+			long now = System.currentTimeMillis();
+			antiEntropy.tick(now);
+			long due = antiEntropy.due(now);
+			if (due > 0 && (timeout == 0 || timeout > due)) timeout = due;
 			/* for (SocketChannel sock : clients_sock){ */
 			/* 	if (!sock.isConnected()){ */
 			/* 		clients_sock.remove(sock); */
@@ -862,6 +1592,7 @@ public class LibraryServer
 			/* 	} */
 			/* } */
 		}
+		terminate();
 	}
 
 	public static void main(String[] args)
@@ -873,4 +1604,60 @@ public class LibraryServer
 			System.out.println("Error: Please provide a port number.");
 		}
 	}
+
+	/**
+	* Lock state of a stripe that has client commands queued on it.
+	*/
+	private static class Stripe
+	{
+		int id; // index of the stripe
+		ArrayDeque<Request> queue; // commands waiting for the lock, in order
+		boolean requested; // whether the lock has been asked for
+		long requestedAt; // time the lock was asked for in nanoseconds
+		long grantedAt; // time the lock was granted in nanoseconds
+		long[] need; // commands the lock was handed on after, see CommitOrder
+
+		Stripe(int id, int servNum)
+		{
+			this.id = id;
+			this.queue = new ArrayDeque<Request>();
+			this.requested = false;
+			this.need = new long[servNum];
+		}
+	}
+
+	/**
+	* A client command waiting to be committed. Commands are recycled once
+	* answered, see reply().
+	*/
+	static class Request
+	{
+		Reactor.Connection sock; // client the reply is sent to
+		int client; // interned client ID
+		String clientID;
+		int book; // index of the book
+		int op; // MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN
+		long arrived; // time the command was queued in milliseconds
+		long started; // time the command was read in nanoseconds
+		long trace; // trace ID, 0 if none (see Tracing.java)
+		int outcome; // FAILED, RESERVED or RETURNED once applied
+
+		/**
+		* @param Reactor.Connection sock - client the reply is sent to.
+		* @param int client - interned client ID.
+		* @param String clientID - ID of the client.
+		* @param int book - index of the book.
+		* @param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+		*/
+		void set(Reactor.Connection sock, int client, String clientID, int book, int op)
+		{
+			this.sock = sock;
+			this.client = client;
+			this.clientID = clientID;
+			this.book = book;
+			this.op = op;
+			this.arrived = System.currentTimeMillis();
+			this.started = System.nanoTime();
+		}
+	}
 }
@@ -0,0 +1,473 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * FILE: LoadGenerator.java
+ *
+ * Load generation mode of LibraryClient.java, to find out how much a cluster
+ * takes before changing its configuration:
+ *
+ *   java LibraryClient load [-c clients] [-r rate] [-t think] [-d seconds]
+ *                           [-i interval] [-b books] [-z exponent] [-m mix]
+ *                           [-h held] [-p prefix] [-n iothreads]
+ *
+ * or "test [options]" at the prompt of the client. Every simulated client
+ * has a connection of its own to a random server of clientConfig.dat and at
+ * most one command outstanding, as a LibraryClient would. The connections
+ * are non-blocking and share the I/O threads of a Reactor.java, and a single
+ * thread drives all the clients from the frames they get, so thousands of
+ * clients cost a few threads (options, defaults):
+ *
+ *   -c   simulated clients (1000)
+ *   -r   commands per second across all clients for an open loop, each
+ *        client sending at random (Poisson) arrival times whether or not the
+ *        previous reply came back (0: closed loop)
+ *   -t   ms a client waits after a reply before its next command in a closed
+ *        loop (0)
+ *   -d   length of the run in seconds (30)
+ *   -i   seconds between two lines of statistics (1)
+ *   -b   books, b0 to b(b-1) (1000)
+ *   -z   Zipf exponent of the popularity of the books, b0 being the most
+ *        popular (0: uniform)
+ *   -m   fraction of the commands that are reserves (0.5). A return gives
+ *        back the last book the client got, and a client holding no book
+ *        reserves one.
+ *   -h   most books a client holds at once, it returns one once it has
+ *        that many (4)
+ *   -p   prefix of the client IDs, followed by the number of the client
+ *        (load)
+ *   -n   I/O threads (1)
+ *
+ * Latencies go into Metrics.java histograms. In an open loop they are
+ * measured from the time a command was due rather than sent, so a command
+ * held back by a slow reply to the previous one counts the time it waited
+ * and the tail is not hidden by the client slowing down with the servers
+ * (coordinated omission). Commands sent more than a millisecond behind
+ * schedule are counted as late. In a closed loop there is no schedule and
+ * latencies are measured from the time the command was sent.
+ *
+ * Every interval a line with the throughput and the p50, p99 and p99.9 of
+ * the interval is printed, then the same for the whole run.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class LoadGenerator
+{
+	private static final int EVENTS = 1024; // most frames per pass of the loop
+
+	private int clients = 1000; // simulated clients
+	private double rate; // commands per second for an open loop, 0 if closed
+	private long thinkNs; // wait between a reply and the next command, closed
+	private int seconds = 30; // length of the run
+	private int interval = 1; // seconds between two lines of statistics
+	private int books = 1000; // books in the library
+	private double zipf; // exponent of the popularity of the books, 0 uniform
+	private double mix = 0.5; // fraction of reserves
+	private int hold = 4; // most books a client holds
+	private String prefix = "load"; // prefix of the client IDs
+	private int ioThreads = 1; // threads reading the connections
+
+	private ArrayList<String> servers; // addresses of the servers
+	private double[] cdf; // cumulated popularity of the books, null if uniform
+	private Random rnd; // draws books, servers and arrival times
+	private Reactor reactor; // reads the connections
+	private Log log; // errors of the reactor
+	private IdentityHashMap<Reactor.Connection,Sim> byConn; // client of a connection
+	private PriorityQueue<Sim> timers; // clients with a command due, by time
+	private ByteBuffer out; // scratch buffer commands are encoded into
+
+	// statistics
+	private Metrics.Histogram total; // latencies of the whole run
+	private Metrics.Histogram current; // latencies of the current interval
+	private long fails; // commands the servers refused, this interval
+	private long errors; // commands lost with their connection, this interval
+	private long late; // commands sent behind schedule, this interval
+	private long allFails, allErrors, allLate; // same for the whole run
+
+	/**
+	* @param ArrayList<String> servers - addresses of the servers (ip:port).
+	*/
+	public LoadGenerator(ArrayList<String> servers)
+	{
+		this.servers = servers;
+		rnd = new Random();
+		byConn = new IdentityHashMap<Reactor.Connection,Sim>();
+		timers = new PriorityQueue<Sim>(11, new Comparator<Sim>()
+		{
+			public int compare(Sim a, Sim b)
+			{
+				return Long.compare(a.timer, b.timer);
+			}
+		});
+		out = ByteBuffer.allocate(1024);
+	}
+
+	/**
+	* Reads the options of the run.
+	* @param String[] args - options, see the top of the file.
+	* @param int from - index of the first option.
+	*/
+	public void configure(String[] args, int from)
+	{
+		for (int i=from;i+1<args.length;i+=2)
+		{
+			String v = args[i+1];
+			if (args[i].equals("-c")) clients = Integer.parseInt(v);
+			else if (args[i].equals("-r")) rate = Double.parseDouble(v);
+			else if (args[i].equals("-t")) thinkNs = Long.parseLong(v) * 1000000L;
+			else if (args[i].equals("-d")) seconds = Integer.parseInt(v);
+			else if (args[i].equals("-i")) interval = Math.max(1, Integer.parseInt(v));
+			else if (args[i].equals("-b")) books = Integer.parseInt(v);
+			else if (args[i].equals("-z")) zipf = Double.parseDouble(v);
+			else if (args[i].equals("-m")) mix = Double.parseDouble(v);
+			else if (args[i].equals("-h")) hold = Math.max(1, Integer.parseInt(v));
+			else if (args[i].equals("-p")) prefix = v;
+			else if (args[i].equals("-n")) ioThreads = Integer.parseInt(v);
+			else throw new IllegalArgumentException("unknown option "+args[i]);
+		}
+	}
+
+	/**
+	* Connects the clients and drives them for the length of the run,
+	* printing the statistics as it goes.
+	*/
+	public void run() throws IOException
+	{
+		if (zipf > 0)
+		{
+			// P(rank k) ~ 1/k^s, drawn by binary search on the cumulated weights
+			cdf = new double[books];
+			double sum = 0;
+			for (int k=0;k<books;k++) cdf[k] = sum += 1 / Math.pow(k + 1, zipf);
+			for (int k=0;k<books;k++) cdf[k] /= sum;
+		}
+		total = new Metrics.Histogram("total");
+		current = new Metrics.Histogram("interval");
+		log = new Log(Log.WARN);
+		reactor = new Reactor(ioThreads, log);
+		reactor.start(null);
+		System.out.println(clients+" clients, "+(rate > 0 ? "open loop at "+
+		rate+" commands/s" : "closed loop, "+thinkNs/1000000+" ms think time")+
+		", "+books+" books"+(zipf > 0 ? " (zipf "+zipf+")" : "")+", "+
+		Math.round(mix * 100)+"% reserves");
+
+		for (int i=0;i<clients;i++) connect(new Sim(prefix+i));
+		long start = System.nanoTime();
+		if (rate > 0)
+		{
+			for (Sim s : byConn.values())
+			{
+				s.timer = start + arrival();
+				schedule(s);
+			}
+		}
+		System.out.println(String.format("%8s %10s %9s %9s %9s %9s %7s %7s %7s",
+		"time", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "fails", "errors",
+		"late"));
+		long end = start + seconds * 1000000000L;
+		long tick = start + interval * 1000000000L;
+		long lastTick = start;
+		while (true)
+		{
+			long now = System.nanoTime();
+			if (now >= tick)
+			{
+				print((now - start) / 1000000000L+"s", current, now - lastTick, fails,
+				errors, late);
+				allFails += fails;
+				allErrors += errors;
+				allLate += late;
+				fails = errors = late = 0;
+				current = new Metrics.Histogram("interval");
+				lastTick = now;
+				tick += interval * 1000000000L;
+			}
+			if (now >= end) break;
+			// commands that are due
+			while (!timers.isEmpty() && timers.peek().timer <= now)
+			{
+				Sim s = timers.poll();
+				s.scheduled = false;
+				due(s, now);
+			}
+			long wake = Math.min(tick, end);
+			if (!timers.isEmpty()) wake = Math.min(wake, timers.peek().timer);
+			long ms = (wake - System.nanoTime()) / 1000000L;
+			Reactor.Event e = reactor.take(ms <= 0 ? -1 : ms);
+			// leave the timers a turn every EVENTS frames
+			for (int i=0;e != null && i < EVENTS;i++)
+			{
+				handle(e);
+				if (i + 1 < EVENTS) e = reactor.take(-1);
+			}
+		}
+		allFails += fails;
+		allErrors += errors;
+		allLate += late;
+		print("total", total, System.nanoTime() - start, allFails, allErrors,
+		allLate);
+		for (Reactor.Connection c : byConn.keySet()) c.close();
+		reactor.close();
+		log.close();
+	}
+
+	/**
+	* A client command is due: sent now if the client is idle, queued until
+	* the reply to its previous one otherwise.
+	* @param Sim s - the client.
+	* @param long now - current time in ns.
+	*/
+	private void due(Sim s, long now)
+	{
+		if (rate > 0)
+		{
+			s.backlog(s.timer);
+			s.timer += arrival();
+			schedule(s);
+		} else {
+			s.backlog(now);
+		}
+		if (s.ready && !s.busy) send(s, now);
+	}
+
+	/**
+	* Sends the oldest command a client has waiting.
+	* @param Sim s - the client.
+	* @param long now - current time in ns.
+	*/
+	private void send(Sim s, long now)
+	{
+		if (s.waiting == 0) return;
+		long intended = s.dueAt[s.first];
+		s.first = (s.first + 1) % s.dueAt.length;
+		s.waiting--;
+		if (now - intended > 1000000L && rate > 0) late++;
+		s.intended = rate > 0 ? intended : now;
+		s.busy = true;
+		s.reserve = s.held == 0 || (s.held < hold && rnd.nextDouble() < mix);
+		s.book = s.reserve ? pick() : s.holds[s.held - 1];
+		out.clear();
+		int start = MessageCodec.begin(out, MessageCodec.REQUEST);
+		MessageCodec.putString(out, s.id+" b"+s.book+(s.reserve ? " reserve" :
+		" return"));
+		MessageCodec.end(out, start);
+		out.flip();
+		reactor.send(s.conn, out, null);
+	}
+
+	/**
+	* Handles a frame or a closed connection.
+	* @param Reactor.Event e - the event.
+	*/
+	private void handle(Reactor.Event e) throws IOException
+	{
+		Sim s = byConn.get(e.conn);
+		if (s == null) return;
+		long now = System.nanoTime();
+		if (e.frame == null)
+		{
+			// the server went away, the command in flight is lost
+			byConn.remove(e.conn);
+			e.conn.close();
+			if (s.busy) errors++;
+			s.busy = false;
+			s.ready = false;
+			connect(s);
+			return;
+		}
+		byte op = e.frame.get();
+		if (op == MessageCodec.CLIENT_ID)
+		{
+			s.ready = true;
+			if (rate == 0) s.backlog(now);
+			send(s, now);
+			return;
+		}
+		if (op != MessageCodec.REPLY || !s.busy) return;
+		long ns = now - s.intended;
+		current.record(ns);
+		total.record(ns);
+		String reply = MessageCodec.getString(e.frame);
+		if (reply.startsWith("fail"))
+		{
+			fails++;
+		} else if (s.reserve) {
+			if (s.held == s.holds.length)
+				s.holds = Arrays.copyOf(s.holds, s.held * 2);
+			s.holds[s.held++] = s.book;
+		} else {
+			s.held--;
+		}
+		s.busy = false;
+		if (rate > 0)
+		{
+			send(s, now);
+		} else if (thinkNs > 0) {
+			s.timer = now + thinkNs;
+			schedule(s);
+		} else {
+			s.backlog(now);
+			send(s, now);
+		}
+	}
+
+	/**
+	* Connects a client to a random server, trying the others if it fails.
+	* @param Sim s - the client.
+	*/
+	private void connect(Sim s) throws IOException
+	{
+		int first = rnd.nextInt(servers.size());
+		for (int i=0;i<servers.size();i++)
+		{
+			String[] a = servers.get((first + i) % servers.size()).split(":");
+			try
+			{
+				SocketChannel sock = SocketChannel.open();
+				sock.socket().connect(new InetSocketAddress(a[0],
+				Integer.parseInt(a[1])), 3000);
+				sock.socket().setTcpNoDelay(true);
+				s.conn = reactor.register(sock, Reactor.Connection.SERVER);
+				byConn.put(s.conn, s);
+				s.conn.send(MessageCodec.textFrame(MessageCodec.HELLO_CLIENT, ""), null);
+				return;
+			} catch (IOException e) {
+				// try the next one
+			}
+		}
+		throw new IOException("no server to connect "+s.id+" to");
+	}
+
+	/**
+	* Puts a client on the timers for its next command.
+	* @param Sim s - the client, with its timer set.
+	*/
+	private void schedule(Sim s)
+	{
+		if (s.scheduled) timers.remove(s);
+		s.scheduled = true;
+		timers.add(s);
+	}
+
+	/**
+	* @return long - ns to the next command of an open loop client.
+	*/
+	private long arrival()
+	{
+		double mean = clients / rate * 1e9;
+		return (long) (-Math.log(1 - rnd.nextDouble()) * mean);
+	}
+
+	/**
+	* @return int - a book drawn from the popularity distribution.
+	*/
+	private int pick()
+	{
+		if (cdf == null) return rnd.nextInt(books);
+		int k = Arrays.binarySearch(cdf, rnd.nextDouble());
+		return Math.min(books - 1, k < 0 ? -k - 1 : k);
+	}
+
+	/**
+	* Prints a line of statistics.
+	* @param String label - first column.
+	* @param Metrics.Histogram h - latencies, in ns.
+	* @param long ns - time they were recorded over.
+	* @param long fails - commands refused.
+	* @param long errors - commands lost.
+	* @param long late - commands sent behind schedule.
+	*/
+	private static void print(String label, Metrics.Histogram h, long ns,
+	long fails, long errors, long late)
+	{
+		System.out.println(String.format("%8s %10.0f %9.3f %9.3f %9.3f %9.3f %7d "+
+		"%7d %7d", label, h.count() * 1e9 / ns, h.quantile(0.5) / 1e6,
+		h.quantile(0.99) / 1e6, h.quantile(0.999) / 1e6, h.quantile(1) / 1e6, fails,
+		errors, late));
+	}
+
+	/**
+	* A simulated client.
+	*/
+	private static class Sim
+	{
+		String id; // client ID sent with its commands
+		Reactor.Connection conn; // its connection
+		boolean ready; // whether the server acknowledged it
+		long timer; // time its next command is due, see timers
+		boolean scheduled; // whether it is on the timers
+		long[] dueAt = new long[4]; // due times of its waiting commands, a ring
+		int first; // oldest waiting command in dueAt
+		int waiting; // number of waiting commands
+		long intended; // time the command in flight was due
+		boolean busy; // whether a command is in flight
+		boolean reserve; // whether the command in flight is a reserve
+		int book; // book of the command in flight
+		int[] holds = new int[4]; // books it holds
+		int held; // number of books it holds
+
+		Sim(String id)
+		{
+			this.id = id;
+		}
+
+		/**
+		* Queues a command until the client is free to send it.
+		* @param long time - time the command was due.
+		*/
+		void backlog(long time)
+		{
+			if (waiting == dueAt.length)
+			{
+				long[] d = new long[dueAt.length * 2];
+				for (int i=0;i<waiting;i++) d[i] = dueAt[(first + i) % dueAt.length];
+				dueAt = d;
+				first = 0;
+			}
+			dueAt[(first + waiting) % dueAt.length] = time;
+			waiting++;
+		}
+	}
+
+	/**
+	* Reads the addresses of the servers from a client config file.
+	* @param String path - the config file.
+	* @return ArrayList<String> - the addresses (ip:port).
+	*/
+	static ArrayList<String> servers(String path) throws IOException
+	{
+		ArrayList<String> list = new ArrayList<String>();
+		Scanner s = new Scanner(new File(path));
+		int n = s.nextInt();
+		while (s.hasNextLine() && list.size() < n)
+		{
+			String line = s.nextLine().trim();
+			if (line.contains(":")) list.add(line);
+		}
+		s.close();
+		return list;
+	}
+
+	/**
+	* @param String[] args - options, see the top of the file.
+	*/
+	public static void main(String[] args) throws IOException
+	{
+		LoadGenerator g = new LoadGenerator(servers("clientConfig.dat"));
+		g.configure(args, 0);
+		g.run();
+	}
+}
@@ -0,0 +1,357 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FILE: Log.java
+ *
+ * Level based logger that keeps console I/O off the threads doing the work.
+ * A message below the level of the logger is dropped before anything is
+ * built. Otherwise the caller only fills a preallocated record in a bounded
+ * ring (a multi-producer, single-consumer queue with the same layout as the
+ * event ring of Reactor.java) and returns. A background writer thread takes
+ * the records in order, builds the lines and writes them out through a
+ * buffer that is flushed whenever the ring runs dry.
+ *
+ * A message may be a template whose {} are replaced by up to two arguments
+ * on the writer thread, so the string concatenation is only paid off the hot
+ * path. The arguments must not change after the call (strings, boxed
+ * numbers...). When the last argument is a Throwable its stack trace is
+ * written after the line. Timestamps are formatted once per second and the
+ * milliseconds appended by hand.
+ *
+ * The writer is only woken up once every half ring of messages, otherwise
+ * it wakes up by itself every few milliseconds, so logging a message does
+ * not cost a system call. When the ring is full the message is dropped and
+ * counted rather than making the caller wait.
+ *
+ * The cost of a message for the caller is measured by Bench.java
+ * (log.message and log.skipped).
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Log
+{
+	// levels, a message is written if its level is at most the logger's
+	static final int ERROR = 0;
+	static final int WARN = 1;
+	static final int INFO = 2;
+	static final int DEBUG = 3;
+	static final int TRACE = 4;
+
+	private static final String[] NAMES = {"ERROR", "WARN", "INFO", "DEBUG",
+		"TRACE"};
+	private static final int RING = 4096; // records in the ring, a power of two
+	private static final long IDLE = 5000000L; // ns the writer sleeps when idle
+
+	private static final String YELLOW = "\u001B[33m";
+	private static final String ENDC = "\033[0m";
+
+	private volatile int level; // most verbose level written out
+	private Record[] ring; // records for the writer, reused in turn
+	private AtomicLongArray seqs; // sequence of every slot of the ring
+	private AtomicLong tail; // next slot to be claimed by a caller
+	private AtomicLong dropped; // messages dropped because the ring was full
+	private Thread writer; // thread writing the records out
+	private volatile boolean closed; // set once close() was called
+
+	// writer thread only
+	private long head; // next slot to be written out
+	private long reported; // dropped messages already reported
+	private Writer out; // buffered standard output, or the writer given
+	private StringBuilder line; // line being built
+	private SimpleDateFormat seconds; // formats the second of a timestamp
+	private long second = -1; // second the cached prefix was formatted for
+	private String prefix; // HH:mm:ss: of that second
+
+	/**
+	* Starts a logger writing to the standard output.
+	* @param int level - most verbose level written out.
+	*/
+	public Log(int level)
+	{
+		this(level, new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(FileDescriptor.out)), 1 << 16));
+	}
+
+	/**
+	* Starts a logger writing to a writer, see Bench.java.
+	* @param int level - most verbose level written out.
+	* @param Writer out - where the messages are written, buffered.
+	*/
+	Log(int level, Writer out)
+	{
+		this.level = level;
+		ring = new Record[RING];
+		seqs = new AtomicLongArray(RING);
+		for (int i=0;i<RING;i++)
+		{
+			ring[i] = new Record();
+			seqs.set(i, i);
+		}
+		tail = new AtomicLong();
+		dropped = new AtomicLong();
+		this.out = out;
+		line = new StringBuilder(256);
+		seconds = new SimpleDateFormat("HH:mm:ss:");
+		writer = new Thread("log")
+		{
+			public void run()
+			{
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	* @param String name - name of a level, error, warn, info, debug or trace.
+	* @return int - the level.
+	*/
+	public static int parse(String name)
+	{
+		for (int i=0;i<NAMES.length;i++)
+			if (NAMES[i].equalsIgnoreCase(name)) return i;
+		throw new IllegalArgumentException("unknown log level "+name);
+	}
+
+	/**
+	* @param int level - most verbose level written out from now on.
+	*/
+	public void setLevel(int level)
+	{
+		this.level = level;
+	}
+
+	/**
+	* Whether messages of a level are written out. Callers check it before
+	* building a message that is expensive to build.
+	* @param int level - level of the message.
+	* @return boolean - true if it would be written out.
+	*/
+	public boolean enabled(int level)
+	{
+		return level <= this.level;
+	}
+
+	/**
+	* Logs a message.
+	* @param int level - level of the message.
+	* @param String color - escape sequence the message is colored with, null
+	* for none.
+	* @param String msg - the message.
+	*/
+	public void log(int level, String color, String msg)
+	{
+		if (level <= this.level) publish(level, color, msg, 0, null, null);
+	}
+
+	/**
+	* Logs a template with one argument, formatted on the writer thread.
+	* @param int level - level of the message.
+	* @param String color - escape sequence the message is colored with.
+	* @param String fmt - the message, the {} is replaced by the argument.
+	* @param Object a - argument, must not change after the call.
+	*/
+	public void log(int level, String color, String fmt, Object a)
+	{
+		if (level <= this.level) publish(level, color, fmt, 1, a, null);
+	}
+
+	/**
+	* Logs a template with two arguments, formatted on the writer thread.
+	* @param int level - level of the message.
+	* @param String color - escape sequence the message is colored with.
+	* @param String fmt - the message, the {}s are replaced by the arguments.
+	* @param Object a - first argument, must not change after the call.
+	* @param Object b - second argument, must not change after the call.
+	*/
+	public void log(int level, String color, String fmt, Object a, Object b)
+	{
+		if (level <= this.level) publish(level, color, fmt, 2, a, b);
+	}
+
+	/**
+	* Writes out every message logged so far and stops the writer. Messages
+	* logged afterwards are dropped.
+	*/
+	public void close()
+	{
+		if (closed) return;
+		closed = true;
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	* Fills the next slot of the ring and publishes it for the writer.
+	* @param int level - level of the message.
+	* @param String color - escape sequence the message is colored with.
+	* @param String fmt - the message or template.
+	* @param int args - number of arguments of the template.
+	* @param Object a - first argument.
+	* @param Object b - second argument.
+	*/
+	private void publish(int level, String color, String fmt, int args,
+	Object a, Object b)
+	{
+		long pos;
+		while (true)
+		{
+			pos = tail.get();
+			long seq = seqs.get((int) (pos & (RING - 1)));
+			if (seq == pos)
+			{
+				if (tail.compareAndSet(pos, pos + 1)) break;
+			} else if (seq < pos || closed) {
+				// full, the writer is behind
+				dropped.incrementAndGet();
+				LockSupport.unpark(writer);
+				return;
+			}
+		}
+		int i = (int) (pos & (RING - 1));
+		Record r = ring[i];
+		r.time = System.currentTimeMillis();
+		r.level = level;
+		r.color = color;
+		r.fmt = fmt;
+		r.args = args;
+		r.a = a;
+		r.b = b;
+		seqs.set(i, pos + 1);
+		// wake the writer every half ring, before it can fill up
+		if ((pos & (RING / 2 - 1)) == 0) LockSupport.unpark(writer);
+	}
+
+	/**
+	* Writer thread: writes the records out in order until the logger is
+	* closed and the ring is empty.
+	*/
+	private void drain()
+	{
+		while (true)
+		{
+			boolean stop = closed;
+			int n = 0;
+			while (true)
+			{
+				int i = (int) (head & (RING - 1));
+				if (seqs.get(i) != head + 1) break;
+				Record r = ring[i];
+				write(r.time, r.level, r.color, r.fmt, r.args, r.a, r.b);
+				r.fmt = null;
+				r.a = null;
+				r.b = null;
+				seqs.set(i, head + RING);
+				head++;
+				n++;
+			}
+			long lost = dropped.get();
+			if (lost != reported)
+			{
+				write(System.currentTimeMillis(), WARN, null,
+				"log: {} messages dropped, the ring was full", 1, lost - reported,
+				null);
+				reported = lost;
+				n++;
+			}
+			if (n > 0)
+			{
+				try
+				{
+					out.flush();
+				} catch (IOException e) {
+					// nowhere to report it
+				}
+			}
+			if (stop && n == 0) return;
+			if (n == 0) LockSupport.parkNanos(this, IDLE);
+		}
+	}
+
+	/**
+	* Builds a line and writes it to the buffer.
+	* @param long time - time of the message in milliseconds.
+	* @param int level - level of the message.
+	* @param String color - escape sequence the message is colored with.
+	* @param String fmt - the message or template.
+	* @param int args - number of arguments of the template.
+	* @param Object a - first argument.
+	* @param Object b - second argument.
+	*/
+	private void write(long time, int level, String color, String fmt, int args,
+	Object a, Object b)
+	{
+		StringBuilder s = line;
+		s.setLength(0);
+		if (time / 1000 != second)
+		{
+			second = time / 1000;
+			prefix = seconds.format(new Date(time));
+		}
+		int ms = (int) (time % 1000);
+		s.append('[').append(YELLOW).append(prefix);
+		if (ms < 100) s.append('0');
+		if (ms < 10) s.append('0');
+		s.append(ms).append(ENDC).append("] ");
+		if (color != null) s.append(color);
+		s.append(NAMES[level]).append(": ");
+		int from = 0;
+		for (int k=0;k<args;k++)
+		{
+			int at = fmt.indexOf("{}", from);
+			if (at < 0) break;
+			s.append(fmt, from, at).append(k == 0 ? a : b);
+			from = at + 2;
+		}
+		s.append(fmt, from, fmt.length());
+		if (color != null) s.append(ENDC);
+		s.append('\n');
+		Object last = args == 2 ? b : args == 1 ? a : null;
+		try
+		{
+			out.append(s);
+			if (last instanceof Throwable)
+			{
+				PrintWriter w = new PrintWriter(out);
+				((Throwable) last).printStackTrace(w);
+				w.flush();
+			}
+		} catch (IOException e) {
+			// nowhere to report it
+		}
+	}
+
+	/**
+	* A message waiting in the ring.
+	*/
+	private static class Record
+	{
+		long time; // time of the message in milliseconds
+		int level; // level of the message
+		String color; // escape sequence of the message, null for none
+		String fmt; // message or template
+		int args; // number of arguments of the template
+		Object a; // first argument
+		Object b; // second argument
+	}
+}
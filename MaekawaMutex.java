@@ -0,0 +1,439 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Comparator;
+
+/**
+ * FILE: MaekawaMutex.java
+ *
+ * Maekawa's quorum based mutual exclusion. The servers of serverConfig.dat are
+ * laid out row by row on a grid of ceil(sqrt(N)) columns and the quorum of a
+ * server is its row plus its column, so any two quorums intersect and a lock
+ * round only involves about 2*sqrt(N) servers. Every server is a voter that
+ * grants its vote to one request per stripe at a time, queueing the others
+ * by (clock, pid). Deadlocks are avoided with FAILED, INQUIRE and RELINQUISH:
+ * a voter holding its vote for a request that is overtaken by an earlier one
+ * INQUIREs the holder, which RELINQUISHes the vote if it already knows it
+ * cannot get all of its votes.
+ *
+ *   LOCK        <Pn> <Pn.clock> <stripe>  REQUEST, stamped with its timestamp
+ *   REPLY_LOCK  <Pn> <Pn.clock> <stripe> <n> <v1..vn>  vote (LOCKED), with
+ *               the commands its voter knows of (see CommitOrder.java)
+ *   FAILED      <Pn> <Pn.clock> <stripe>  the vote went to an earlier request
+ *   INQUIRE     <Pn> <Pn.clock> <stripe>  asks the holder to give the vote back
+ *   RELINQUISH  <Pn> <Pn.clock> <stripe>  gives the vote back
+ *   UNLOCK      <Pn> <Pn.clock> <stripe>  RELEASE, sent to the quorum
+ *
+ * Quorum members that are down are skipped, the same way the other mutex
+ * algorithms stop waiting on lost peers, and asked again when they come back.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class MaekawaMutex implements DistributedMutex
+{
+	// orders requests by timestamp, ties broken by process id
+	private static final Comparator<Req> ORDER = new Comparator<Req>() {
+		public int compare(Req a, Req b)
+		{
+			return before(a.clock, a.pid, b.clock, b.pid) ? -1 :
+				before(b.clock, b.pid, a.clock, a.pid) ? 1 : 0;
+		}
+	};
+
+	private LibraryServer server; // server the mutex belongs to
+	private int pid; // process id of the server
+	private int[] quorum; // servers whose votes are needed, including this one
+	private HashMap<Integer,StripeState> stripes; // stripes in use
+
+	/**
+	* @param LibraryServer server - server the mutex belongs to.
+	*/
+	public MaekawaMutex(LibraryServer server)
+	{
+		this.server = server;
+		this.pid = server.getPid();
+		this.quorum = quorum(pid, server.getServerCount());
+		stripes = new HashMap<Integer,StripeState>();
+	}
+
+	/**
+	* Computes the grid quorum of a server: every server in its row and in its
+	* column. Missing cells of a partial last row are left out, the column of
+	* the other server then provides the intersection.
+	* @param int p - ID of the server.
+	* @param int n - number of servers.
+	* @return int[] - IDs of the servers in the quorum.
+	*/
+	public static int[] quorum(int p, int n)
+	{
+		int cols = (int) Math.ceil(Math.sqrt(n));
+		int row = p / cols;
+		int col = p % cols;
+		ArrayList<Integer> q = new ArrayList<Integer>();
+		for (int i=row*cols;i<Math.min(n,(row+1)*cols);i++) q.add(i);
+		for (int i=col;i<n;i+=cols) if (i != p) q.add(i);
+		int[] ret = new int[q.size()];
+		for (int i=0;i<ret.length;i++) ret[i] = q.get(i);
+		return ret;
+	}
+
+	public void request(int stripe)
+	{
+		StripeState st = state(stripe);
+		st.requesting = true;
+		st.failed = false;
+		st.votes = 0;
+		st.clock = server.tick();
+		for (int q : quorum)
+		{
+			st.voted[q] = false;
+			st.inquired[q] = false;
+		}
+		for (int q : quorum)
+		{
+			if (q == pid || server.isPeerUp(q))
+			{
+				deliver(q, MessageCodec.LOCK, st.clock, stripe);
+			} else {
+				// skip quorum members that are down
+				st.voted[q] = true;
+				st.votes++;
+			}
+		}
+	}
+
+	public boolean granted(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null || !st.requesting || st.votes < quorum.length) return false;
+		st.inCS = true;
+		return true;
+	}
+
+	public void release(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null) return;
+		st.inCS = false;
+		st.requesting = false;
+		for (int q : quorum)
+		{
+			if (q == pid || server.isPeerUp(q))
+				deliver(q, MessageCodec.UNLOCK, server.clocks.now(), stripe);
+		}
+		cleanup(stripe, st);
+	}
+
+	public boolean fusesUnlock()
+	{
+		return false; // the release goes to the quorum only
+	}
+
+	public void releaseLocally(int stripe)
+	{
+		release(stripe);
+	}
+
+	public void receive(byte op, int p, long clock, int stripe, ByteBuffer frame)
+	{
+		StripeState st = state(stripe);
+		if (op == MessageCodec.LOCK)
+		{
+			vote(st, stripe, p, clock);
+		} else if (op == MessageCodec.UNLOCK) {
+			if (st.votedFor == p)
+			{
+				st.votedFor = -1;
+				voteNext(st, stripe);
+			} else {
+				// asked again on peerUp() and released before this vote came
+				forget(st, p);
+			}
+		} else if (op == MessageCodec.RELINQUISH) {
+			if (st.votedFor == p)
+			{
+				// put the holder back in line and vote for the earliest request
+				st.waiting.add(new Req(st.votedClock, p));
+				st.votedFor = -1;
+				voteNext(st, stripe);
+			}
+		} else if (op == MessageCodec.REPLY_LOCK) {
+			if (st.requesting && !st.voted[p])
+			{
+				st.voted[p] = true;
+				st.votes++;
+				if (frame != null) server.takeCommitted(stripe, frame);
+			}
+		} else if (op == MessageCodec.FAILED) {
+			if (st.requesting)
+			{
+				st.failed = true;
+				// we will not get every vote soon, give back the ones asked for
+				for (int q : quorum) if (st.inquired[q]) relinquish(st, stripe, q);
+			}
+		} else if (op == MessageCodec.INQUIRE) {
+			if (st.requesting && !st.inCS && st.votes < quorum.length)
+			{
+				if (st.failed) relinquish(st, stripe, p);
+				else st.inquired[p] = true;
+			}
+		}
+		cleanup(stripe, st);
+	}
+
+	/**
+	* Takes back the votes counted for a quorum member that comes back, which
+	* were skipped while it was down or given by its former run, and sends it
+	* the requests of this server with their original timestamps.
+	*/
+	public void peerUp(int p)
+	{
+		if (!isQuorum(p)) return;
+		for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+		{
+			StripeState st = e.getValue();
+			if (!st.requesting) continue;
+			st.inquired[p] = false;
+			if (st.voted[p])
+			{
+				st.voted[p] = false;
+				st.votes--;
+			}
+			deliver(p, MessageCodec.LOCK, st.clock, e.getKey());
+		}
+	}
+
+	public void peerDown(int p)
+	{
+		Iterator<Integer> it = new ArrayList<Integer>(stripes.keySet()).iterator();
+		while (it.hasNext())
+		{
+			int stripe = it.next();
+			StripeState st = stripes.get(stripe);
+			// requester side: stop waiting for its vote
+			if (st.requesting && isQuorum(p) && !st.voted[p])
+			{
+				st.voted[p] = true;
+				st.votes++;
+			}
+			// voter side: forget its request and any vote it held
+			forget(st, p);
+			if (st.votedFor == p)
+			{
+				st.votedFor = -1;
+				voteNext(st, stripe);
+			}
+			cleanup(stripe, st);
+		}
+	}
+
+	/**
+	* Handles a REQUEST as a voter.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	* @param int p - server asking.
+	* @param long clock - timestamp of the request.
+	*/
+	private void vote(StripeState st, int stripe, int p, long clock)
+	{
+		if (st.votedFor < 0)
+		{
+			grant(st, stripe, p, clock);
+			return;
+		}
+		Req r = new Req(clock, p);
+		Req head = st.waiting.peek();
+		st.waiting.add(r);
+		if (before(clock, p, st.votedClock, st.votedFor) && st.waiting.peek() == r)
+		{
+			// the new request is the earliest, the one it overtook must yield
+			if (head != null && !head.failed)
+			{
+				head.failed = true;
+				deliver(head.pid, MessageCodec.FAILED, server.clocks.now(), stripe);
+			}
+			if (!st.inquireSent)
+			{
+				st.inquireSent = true;
+				deliver(st.votedFor, MessageCodec.INQUIRE, server.clocks.now(),
+				stripe);
+			}
+		} else {
+			r.failed = true;
+			deliver(p, MessageCodec.FAILED, server.clocks.now(), stripe);
+		}
+	}
+
+	/**
+	* Drops the request of a server waiting for the vote of this one.
+	* @param StripeState st - state of the stripe.
+	* @param int p - server that asked.
+	*/
+	private void forget(StripeState st, int p)
+	{
+		Iterator<Req> w = st.waiting.iterator();
+		while (w.hasNext()) if (w.next().pid == p) w.remove();
+	}
+
+	/**
+	* Gives the vote of this server to the earliest waiting request, if any.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	*/
+	private void voteNext(StripeState st, int stripe)
+	{
+		Req r = st.waiting.poll();
+		if (r != null) grant(st, stripe, r.pid, r.clock);
+	}
+
+	/**
+	* Gives the vote of this server to a request.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	* @param int p - server the vote goes to.
+	* @param long clock - timestamp of its request.
+	*/
+	private void grant(StripeState st, int stripe, int p, long clock)
+	{
+		st.votedFor = p;
+		st.votedClock = clock;
+		st.inquireSent = false;
+		deliver(p, MessageCodec.REPLY_LOCK, server.clocks.now(), stripe);
+	}
+
+	/**
+	* Gives a vote this server holds back to its voter.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	* @param int q - voter.
+	*/
+	private void relinquish(StripeState st, int stripe, int q)
+	{
+		st.inquired[q] = false;
+		if (!st.voted[q]) return;
+		st.voted[q] = false;
+		st.votes--;
+		deliver(q, MessageCodec.RELINQUISH, server.clocks.now(), stripe);
+	}
+
+	/**
+	* Sends a mutex message, or handles it right away if it is for this server.
+	* @param int to - ID of the receiving server.
+	* @param byte op - opcode of the message.
+	* @param long clock - clock the message is stamped with.
+	* @param int stripe - stripe the message is about.
+	*/
+	private void deliver(int to, byte op, long clock, int stripe)
+	{
+		if (to == pid)
+		{
+			receive(op, pid, clock, stripe, null);
+		} else if (op == MessageCodec.REPLY_LOCK) {
+			// the vote may overtake the commands of the former holder
+			long[] args = new long[4 + server.getServerCount()];
+			args[0] = pid;
+			args[1] = clock;
+			args[2] = stripe;
+			server.putCommitted(args, 3);
+			server.sendTo(to, server.encode(op, args));
+		} else {
+			server.sendTo(to, server.encode(op, pid, clock, stripe));
+		}
+	}
+
+	/**
+	* @param int p - ID of a server.
+	* @return boolean - whether or not it is in the quorum of this server.
+	*/
+	private boolean isQuorum(int p)
+	{
+		for (int q : quorum) if (q == p) return true;
+		return false;
+	}
+
+	/**
+	* Drops the state of a stripe nobody is using.
+	* @param int stripe - index of the stripe.
+	* @param StripeState st - state of the stripe.
+	*/
+	private void cleanup(int stripe, StripeState st)
+	{
+		if (!st.requesting && st.votedFor < 0 && st.waiting.isEmpty())
+			stripes.remove(stripe);
+	}
+
+	/**
+	* Returns the state of a stripe, creating it if needed.
+	* @param int stripe - index of the stripe.
+	* @return StripeState - state of the stripe.
+	*/
+	private StripeState state(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null)
+		{
+			st = new StripeState(server.getServerCount());
+			stripes.put(stripe, st);
+		}
+		return st;
+	}
+
+	/**
+	* @return boolean - whether or not request (c1, p1) comes before (c2, p2).
+	*/
+	private static boolean before(long c1, int p1, long c2, int p2)
+	{
+		return c1 < c2 || c1 == c2 && p1 < p2;
+	}
+
+	/**
+	* A request waiting for the vote of this server.
+	*/
+	private static class Req
+	{
+		long clock; // timestamp of the request
+		int pid; // process asking for the lock
+		boolean failed; // whether FAILED was sent for it
+
+		Req(long clock, int pid)
+		{
+			this.clock = clock;
+			this.pid = pid;
+		}
+	}
+
+	/**
+	* State of a stripe, both as a voter and as a requester.
+	*/
+	private static class StripeState
+	{
+		// voter
+		int votedFor; // server holding the vote, -1 if none
+		long votedClock; // timestamp of the request holding the vote
+		boolean inquireSent; // whether the holder was asked to give it back
+		PriorityQueue<Req> waiting; // requests waiting for the vote
+
+		// requester
+		boolean requesting; // whether this server asked for the stripe
+		boolean inCS; // whether this server is in the critical section
+		boolean failed; // whether a FAILED arrived for the request
+		long clock; // timestamp of the request
+		boolean[] voted; // quorum members whose vote is held
+		boolean[] inquired; // quorum members that asked for their vote back
+		int votes; // number of votes held
+
+		StripeState(int servNum)
+		{
+			votedFor = -1;
+			waiting = new PriorityQueue<Req>(4, ORDER);
+			voted = new boolean[servNum];
+			inquired = new boolean[servNum];
+		}
+	}
+}
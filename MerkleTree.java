@@ -0,0 +1,162 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * FILE: MerkleTree.java
+ *
+ * Hash tree over the books of a BookCatalog, used by AntiEntropy.java to find
+ * the book ranges on which two replicas differ. The books are cut into leaves
+ * of leafSize consecutive books laid out on a complete binary tree stored as
+ * an array (node 1 is the root, the children of node i are 2i and 2i+1).
+ * Every reserved book contributes a 64 bit hash of its index and holder, and
+ * a node holds the sum of the hashes of the books under it. Since the sum
+ * does not depend on order, a reserve or return updates the tree by adding
+ * one difference along a single path, O(log n) with no rehashing.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class MerkleTree
+{
+	private int leafSize; // number of books per leaf
+	private int leaves; // number of leaves, a power of two
+	private long[] nodes; // nodes[i] = hash of node i, nodes[0] is unused
+
+	private static final VarHandle NODES = // atomic access to the nodes
+		MethodHandles.arrayElementVarHandle(long[].class);
+
+	/**
+	* Creates the tree of a catalog where every book is free.
+	* @param int size - number of books in the library.
+	* @param int leafSize - number of books per leaf.
+	*/
+	public MerkleTree(int size, int leafSize)
+	{
+		this.leafSize = Math.max(1, leafSize);
+		int n = Math.max(1, (size + this.leafSize - 1) / this.leafSize);
+		leaves = Integer.highestOneBit(n);
+		if (leaves < n) leaves <<= 1;
+		nodes = new long[2*leaves];
+	}
+
+	/**
+	* @return int - index of the root node.
+	*/
+	public int root()
+	{
+		return 1;
+	}
+
+	/**
+	* @param int node - index of a node.
+	* @return long - hash of the node.
+	*/
+	public long hash(int node)
+	{
+		return nodes[node];
+	}
+
+	/**
+	* @param int node - index of a node.
+	* @return boolean - whether or not the node is a leaf.
+	*/
+	public boolean isLeaf(int node)
+	{
+		return node >= leaves;
+	}
+
+	/**
+	* @param int node - index of a node.
+	* @return boolean - whether or not the index belongs to the tree.
+	*/
+	public boolean isNode(int node)
+	{
+		return node >= 1 && node < nodes.length;
+	}
+
+	/**
+	* @param int node - index of a leaf.
+	* @return int - index of the first book under the leaf.
+	*/
+	public int firstBook(int node)
+	{
+		return (node - leaves) * leafSize;
+	}
+
+	/**
+	* @return int - number of books per leaf.
+	*/
+	public int leafSize()
+	{
+		return leafSize;
+	}
+
+	/**
+	* Adds or removes the contribution of a reserved book.
+	* @param int book - index of the book.
+	* @param long h - hash of the book, see bookHash().
+	* @param boolean add - true when the book is reserved, false when returned.
+	*/
+	public void update(int book, long h, boolean add)
+	{
+		if (!add) h = -h;
+		for (int i = leaves + book / leafSize; i >= 1; i >>= 1) nodes[i] += h;
+	}
+
+	/**
+	* Same as update(), for threads updating books under different leaves at
+	* the same time. The leaf belongs to the caller, the nodes above it are
+	* shared and added to atomically.
+	* @param int book - index of the book.
+	* @param long h - hash of the book, see bookHash().
+	* @param boolean add - true when the book is reserved, false when returned.
+	*/
+	public void updateShared(int book, long h, boolean add)
+	{
+		if (!add) h = -h;
+		int i = leaves + book / leafSize;
+		nodes[i] += h;
+		for (i >>= 1; i >= 1; i >>= 1) NODES.getAndAdd(nodes, i, h);
+	}
+
+	/**
+	* Resets the tree to a catalog where every book is free.
+	*/
+	public void clear()
+	{
+		java.util.Arrays.fill(nodes, 0);
+	}
+
+	/**
+	* Hashes a client ID.
+	* @param String clientID - ID of the client.
+	* @return long - 64 bit hash of the ID.
+	*/
+	public static long clientHash(String clientID)
+	{
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		for (int i=0;i<clientID.length();i++)
+		{
+			h ^= clientID.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	* Hashes a reserved book.
+	* @param int book - index of the book.
+	* @param long client - clientHash() of the holder.
+	* @return long - 64 bit hash of the pair.
+	*/
+	public static long bookHash(int book, long client)
+	{
+		// splitmix64 finalizer
+		long z = client + (book + 1) * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,543 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+
+/**
+ * FILE: MessageCodec.java
+ *
+ * Binary wire protocol shared by LibraryServer.java and LibraryClient.java.
+ * Every frame is a 4 byte big-endian length followed by that many bytes of
+ * body. The first byte of the body is the opcode of the message, the rest are
+ * its arguments. Integers are written as unsigned LEB128 varints and strings
+ * as a varint length followed by UTF-8 bytes.
+ *
+ *   HELLO_CLIENT                          client -> server handshake
+ *   HELLO_SERVER  <Pn>                    server -> server handshake
+ *   CLIENT_ID     <Cx>                    handshake ACK sent to a client
+ *   REQUEST       <text> [<trace>]        client command (ex: c1 b2 reserve),
+ *                                         see Tracing.java for <trace>
+ *   REPLY         <text>                  response to a client command
+ *   LOCK          <Pn> <Pn.clock> <stripe>
+ *   UNLOCK        <Pn> <Pn.clock> <stripe>
+ *   COMMAND       <Pn> <Pn.clock> <op> <By> <Cx>  (no longer sent)
+ *   COMMAND_BATCH <Pn> <Pn.clock> <clients> <stripe> <first> <n> <d1..dn>
+ *                 {<op> <By> <Cx> <trace>}...  (see CommitOrder.java)
+ *   COMMIT        <Pn> <Pn.clock> <clients> <stripe> <first> <n> <d1..dn>
+ *                 {<op> <By> <Cx> <trace>}...
+ *                 last COMMAND_BATCH of a critical section, fused with the
+ *                 UNLOCK of the stripe
+ *   SYNC          <Pn> <Pn.clock> <v1..vn>  (see StateTransfer.java)
+ *   CLIENT_COUNT  <Pn> <count> <Pn.clock>  (no longer sent, the count rides
+ *                 on COMMAND_BATCH, COMMIT, FORWARD and LOG as <clients>)
+ *   SOCKET_CLOSE
+ *   REPLY_LOCK    <Pn> <Pn.clock> <stripe>  (see the DistributedMutex classes)
+ *   FAILED        <Pn> <Pn.clock> <stripe>  (see MaekawaMutex.java)
+ *   INQUIRE       <Pn> <Pn.clock> <stripe>
+ *   RELINQUISH    <Pn> <Pn.clock> <stripe>
+ *   TOKEN         <Pn> <Pn.clock> <stripe> ...  (see TokenMutex.java)
+ *   CENSUS        <Pn> <Pn.clock> 0 <epoch>
+ *   HOLDINGS      <Pn> <Pn.clock> 0 <census> <epoch> <more> ...
+ *   FORWARD       <Pn> <Pn.clock> <clients> <reqId> <op> <By> <Cx> <trace>
+ *                 (see Sequencer.java)
+ *   LOG           <Pn> <Pn.clock> <clients>
+ *                 {<seq> <origin> <reqId> <op> <By> <Cx> <trace>}...
+ *   LEADER        <Pn> <Pn.clock> <seq>
+ *   FOLLOW        <Pn> <Pn.clock> <seq> <more>
+ *                 {<seq> <origin> <reqId> <op> <By> <Cx> <trace>}...
+ *   SNAPSHOT      <Pn> <Pn.clock> <books> <n> <v1..vn>  (see StateTransfer.java)
+ *   SNAPSHOT_CHUNK <Pn> <Pn.clock> {<gap> <Cx>}...
+ *   DELTA         <Pn> <Pn.clock> {<origin> <version> <op> <By> <Cx>}...
+ *   SYNC_DONE     <Pn> <Pn.clock> <n> <v1..vn>
+ *   MERKLE        <Pn> <Pn.clock> <n> <v1..vn> {<node> <hash>}...  (see
+ *                 AntiEntropy.java)
+ *   REPAIR        <Pn> <Pn.clock> <n> <v1..vn> <leaf> {<gap> <Cx>}...
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class MessageCodec
+{
+	// opcodes
+	public static final byte HELLO_CLIENT = 1;
+	public static final byte HELLO_SERVER = 2;
+	public static final byte CLIENT_ID = 3;
+	public static final byte REQUEST = 4;
+	public static final byte REPLY = 5;
+	public static final byte LOCK = 6;
+	public static final byte UNLOCK = 7;
+	public static final byte COMMAND = 8;
+	public static final byte SYNC = 9;
+	public static final byte CLIENT_COUNT = 10;
+	public static final byte SOCKET_CLOSE = 11;
+	public static final byte COMMAND_BATCH = 12;
+	public static final byte REPLY_LOCK = 13;
+	public static final byte FAILED = 14;
+	public static final byte INQUIRE = 15;
+	public static final byte RELINQUISH = 16;
+	public static final byte TOKEN = 17;
+	public static final byte FORWARD = 18;
+	public static final byte LOG = 19;
+	public static final byte LEADER = 20;
+	public static final byte SNAPSHOT = 21;
+	public static final byte SNAPSHOT_CHUNK = 22;
+	public static final byte DELTA = 23;
+	public static final byte SYNC_DONE = 24;
+	public static final byte MERKLE = 25;
+	public static final byte REPAIR = 26;
+	public static final byte COMMIT = 27;
+	public static final byte CENSUS = 28;
+	public static final byte HOLDINGS = 29;
+	public static final byte FOLLOW = 30;
+
+	// book operations carried by COMMAND
+	public static final int OP_RESERVE = 0;
+	public static final int OP_RETURN = 1;
+
+	public static final int HEADER = 4; // size of the length prefix
+	public static final int MAX_FRAME = 1 << 20; // largest accepted body
+
+	private static final String[] NAMES = {"0", "HELLO_CLIENT", "HELLO_SERVER",
+		"CLIENT_ID", "REQUEST", "REPLY", "LOCK", "UNLOCK", "COMMAND", "SYNC",
+		"CLIENT_COUNT", "SOCKET_CLOSE", "COMMAND_BATCH", "REPLY_LOCK", "FAILED",
+		"INQUIRE", "RELINQUISH", "TOKEN", "FORWARD", "LOG", "LEADER", "SNAPSHOT",
+		"SNAPSHOT_CHUNK", "DELTA", "SYNC_DONE", "MERKLE", "REPAIR", "COMMIT",
+		"CENSUS", "HOLDINGS", "FOLLOW"};
+
+	/**
+	* @param int op - opcode of a message.
+	* @return String - name of the opcode, its number if it is unknown.
+	*/
+	public static String name(int op)
+	{
+		return op >= 0 && op < NAMES.length ? NAMES[op] : String.valueOf(op);
+	}
+
+	/**
+	* @param byte op - opcode of a message.
+	* @return boolean - whether or not the message belongs to the mutex
+	* algorithm, in which case it starts with <Pn> <Pn.clock> <stripe>.
+	*/
+	public static boolean isMutex(byte op)
+	{
+		return op == LOCK || op == UNLOCK || op == REPLY_LOCK || op == FAILED ||
+			op == INQUIRE || op == RELINQUISH || op == TOKEN || op == CENSUS ||
+			op == HOLDINGS;
+	}
+
+	/**
+	* @param byte op - opcode of a message.
+	* @return boolean - whether or not the message belongs to the sequencer, in
+	* which case it starts with <Pn> <Pn.clock>.
+	*/
+	public static boolean isSequencer(byte op)
+	{
+		return op == FORWARD || op == LOG || op == LEADER || op == FOLLOW;
+	}
+
+	/**
+	* @param byte op - opcode of a message.
+	* @return boolean - whether or not the message answers a SYNC, in which
+	* case it starts with <Pn> <Pn.clock>.
+	*/
+	public static boolean isTransfer(byte op)
+	{
+		return op == SNAPSHOT || op == SNAPSHOT_CHUNK || op == DELTA ||
+			op == SYNC_DONE;
+	}
+
+	/**
+	* @param byte op - opcode of a message.
+	* @return boolean - whether or not the message belongs to anti-entropy, in
+	* which case it starts with <Pn> <Pn.clock> <n> <v1..vn>.
+	*/
+	public static boolean isAntiEntropy(byte op)
+	{
+		return op == MERKLE || op == REPAIR;
+	}
+
+	/**
+	* Starts a frame at the current position of the buffer by reserving the
+	* length prefix and writing the opcode.
+	* @param ByteBuffer buf - buffer to encode into.
+	* @param byte opcode - type of the message.
+	* @return int - position of the frame, to be handed to end().
+	*/
+	public static int begin(ByteBuffer buf, byte opcode)
+	{
+		int start = buf.position();
+		buf.putInt(0);
+		buf.put(opcode);
+		return start;
+	}
+
+	/**
+	* Finishes a frame started with begin() by filling in its length prefix.
+	* @param ByteBuffer buf - buffer the frame was encoded into.
+	* @param int start - value returned by begin().
+	*/
+	public static void end(ByteBuffer buf, int start)
+	{
+		buf.putInt(start, buf.position() - start - HEADER);
+	}
+
+	/**
+	* Writes a non-negative integer as an unsigned LEB128 varint.
+	* @param ByteBuffer buf - buffer to write to.
+	* @param long v - value to be written.
+	*/
+	public static void putVarint(ByteBuffer buf, long v)
+	{
+		while ((v & ~0x7FL) != 0)
+		{
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	/**
+	* Reads an unsigned LEB128 varint. A frame cut short throws
+	* BufferUnderflowException and a varint longer than a long throws
+	* IllegalArgumentException, the connection it came on is then closed.
+	* @param ByteBuffer buf - buffer to read from.
+	* @return long - value read.
+	*/
+	public static long getVarint(ByteBuffer buf)
+	{
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			if (shift == 70) throw new IllegalArgumentException("varint too long");
+			b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+
+	/**
+	* Reads the length of a string or the number of entries of a vector, every
+	* entry taking at least one byte. Throws BufferUnderflowException if that
+	* many bytes are not left in the frame.
+	* @param ByteBuffer buf - buffer to read from.
+	* @return int - the length.
+	*/
+	public static int getCount(ByteBuffer buf)
+	{
+		long n = getVarint(buf);
+		if (n < 0 || n > buf.remaining()) throw new BufferUnderflowException();
+		return (int) n;
+	}
+
+	/**
+	* @param ByteBuffer buf - buffer to look at, left untouched.
+	* @return boolean - whether or not a whole varint starts at its position.
+	*/
+	public static boolean hasVarint(ByteBuffer buf)
+	{
+		int end = Math.min(buf.limit(), buf.position() + 10);
+		for (int i=buf.position();i<end;i++) if (buf.get(i) >= 0) return true;
+		return false;
+	}
+
+	/**
+	* Checks a frame made of records of the same layout: varints, a string
+	* written with putString(), then more varints. Frames of replicated
+	* commands are checked whole before any of their commands is staged, so
+	* that a frame cut short is rejected without applying part of it.
+	* @param ByteBuffer frame - the records, left untouched.
+	* @param int before - varints before the string of a record.
+	* @param int after - varints after it.
+	* @return int - number of records.
+	*/
+	public static int records(ByteBuffer frame, int before, int after)
+	{
+		ByteBuffer buf = frame.duplicate();
+		int n = 0;
+		while (buf.hasRemaining())
+		{
+			for (int i=0;i<before;i++) getVarint(buf);
+			int len = getCount(buf);
+			buf.position(buf.position() + len);
+			for (int i=0;i<after;i++) getVarint(buf);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	* Writes a string as a varint length followed by its UTF-8 bytes.
+	* @param ByteBuffer buf - buffer to write to.
+	* @param String s - string to be written.
+	*/
+	public static void putString(ByteBuffer buf, String s)
+	{
+		int len = s.length();
+		int i = 0;
+		while (i < len && s.charAt(i) < 0x80) i++;
+		if (i == len)
+		{
+			// ASCII, the usual case, is written without encoding to an array
+			putVarint(buf, len);
+			for (i=0;i<len;i++) buf.put((byte) s.charAt(i));
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		putVarint(buf, b.length);
+		buf.put(b);
+	}
+
+	/**
+	* Reads a string written with putString().
+	* @param ByteBuffer buf - buffer to read from.
+	* @return String - string read.
+	*/
+	public static String getString(ByteBuffer buf)
+	{
+		int len = getCount(buf);
+		if (!buf.hasArray())
+		{
+			// direct or mapped buffer
+			byte[] b = new byte[len];
+			buf.get(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len,
+		StandardCharsets.UTF_8);
+		buf.position(buf.position() + len);
+		return s;
+	}
+
+	/**
+	* Encodes a frame whose body is an opcode followed by a single string.
+	* @param byte opcode - type of the message.
+	* @param String s - argument of the message.
+	* @return ByteBuffer - the frame, ready to be written.
+	*/
+	public static ByteBuffer textFrame(byte opcode, String s)
+	{
+		return requestFrame(opcode, s, 0);
+	}
+
+	/**
+	* Builds a frame carrying a single string followed by a trace ID, which is
+	* left out when it is 0 (see Tracing.java).
+	* @param byte opcode - type of the message.
+	* @param String s - text of the message.
+	* @param long trace - trace ID of a REQUEST, 0 if none.
+	* @return ByteBuffer - frame ready to be written.
+	*/
+	public static ByteBuffer requestFrame(byte opcode, String s, long trace)
+	{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER + 1 + 5 + b.length + 10);
+		int start = begin(buf, opcode);
+		putVarint(buf, b.length);
+		buf.put(b);
+		if (trace != 0) putVarint(buf, trace);
+		end(buf, start);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	* Per-connection accumulation buffer. Bytes read from the socket are
+	* appended to it and any number of complete frames can then be taken out,
+	* while a partial frame stays buffered until the rest of it arrives. The
+	* buffer is direct so the socket reads straight into it, and frames are
+	* handed out through a single reused view. Consumed bytes are only moved
+	* out of the way once no complete frame is left.
+	*/
+	public static class Decoder
+	{
+		private ByteBuffer acc; // accumulated bytes, kept in write mode
+		private ByteBuffer frame; // view handed out for the frames
+		private int start; // position of the first byte not consumed yet
+		private boolean handedOut; // whether frame is valid
+
+		public Decoder()
+		{
+			acc = ByteBuffer.allocateDirect(4096);
+			frame = acc.duplicate();
+		}
+
+		/**
+		* Reads whatever is available on the channel into the buffer.
+		* @param SocketChannel sock - channel to read from.
+		* @return int - number of bytes read, -1 on end of stream.
+		*/
+		public int read(SocketChannel sock) throws IOException
+		{
+			if (!acc.hasRemaining()) compact();
+			if (!acc.hasRemaining()) grow(acc.capacity() * 2);
+			return sock.read(acc);
+		}
+
+		/**
+		* Appends bytes that were read by other means.
+		* @param byte[] b - bytes to append.
+		* @param int off - offset in b.
+		* @param int len - number of bytes to append.
+		*/
+		public void append(byte[] b, int off, int len)
+		{
+			if (acc.remaining() < len) compact();
+			if (acc.remaining() < len) grow(acc.position() + len);
+			acc.put(b, off, len);
+		}
+
+		/**
+		* Takes the next complete frame out of the buffer. The returned view is
+		* positioned at the opcode and is only valid until the next call.
+		* @return ByteBuffer - body of the frame or null if no complete frame is
+		* buffered.
+		*/
+		public ByteBuffer next() throws IOException
+		{
+			if (handedOut)
+			{
+				// drop the frame handed out by the previous call
+				start = frame.limit();
+				handedOut = false;
+			}
+			int avail = acc.position() - start;
+			if (avail < HEADER)
+			{
+				compact();
+				return null;
+			}
+			int len = acc.getInt(start);
+			if (len < 1 || len > MAX_FRAME)
+				throw new IOException("Invalid frame length "+len);
+			if (avail < HEADER + len)
+			{
+				compact();
+				if (acc.capacity() < HEADER + len) grow(HEADER + len);
+				return null;
+			}
+			frame.limit(start + HEADER + len);
+			frame.position(start + HEADER);
+			handedOut = true;
+			return frame;
+		}
+
+		/**
+		* Moves the bytes not consumed yet to the front of the buffer.
+		*/
+		private void compact()
+		{
+			if (start == 0) return;
+			acc.flip();
+			acc.position(start);
+			acc.compact();
+			start = 0;
+		}
+
+		/**
+		* Replaces the buffer with a larger one keeping its contents.
+		* @param int size - minimum capacity of the new buffer.
+		*/
+		private void grow(int size)
+		{
+			ByteBuffer b = ByteBuffer.allocateDirect(Math.max(size,
+			acc.capacity() * 2));
+			acc.flip();
+			acc.position(start);
+			b.put(acc);
+			acc = b;
+			frame = acc.duplicate();
+			start = 0;
+		}
+	}
+
+	/**
+	* Parses the text of a REQUEST (ex: c1 b2 reserve) in place, without
+	* creating Strings. The text must be made of exactly three words separated
+	* by single spaces once surrounding whitespace is trimmed.
+	*/
+	public static class RequestParser
+	{
+		public int clientOff; // position of the client ID in the frame
+		public int clientLen; // length of the client ID in bytes
+		public int bookOff; // position of the book ID in the frame
+		public int bookLen; // length of the book ID in bytes
+		public long book; // number of the book ID bN, -1 if malformed
+		public int op; // OP_RESERVE, OP_RETURN or -1 for anything else
+
+		/**
+		* @param ByteBuffer frame - REQUEST frame positioned after its opcode. It
+		* is left positioned after the text.
+		* @return boolean - whether or not the text has three words. It is false
+		* for a frame cut short too.
+		*/
+		public boolean parse(ByteBuffer frame)
+		{
+			if (!hasVarint(frame)) return false;
+			long len = getVarint(frame);
+			if (len < 0 || len > frame.remaining()) return false;
+			int from = frame.position(), to = from + (int) len;
+			frame.position(to);
+			while (from < to && (frame.get(from) & 0xFF) <= ' ') from++;
+			while (to > from && (frame.get(to-1) & 0xFF) <= ' ') to--;
+			int sp1 = indexOf(frame, from, to);
+			int sp2 = sp1 < 0 ? -1 : indexOf(frame, sp1+1, to);
+			if (sp2 < 0 || indexOf(frame, sp2+1, to) >= 0) return false;
+			clientOff = from;
+			clientLen = sp1 - from;
+			bookOff = sp1 + 1;
+			bookLen = sp2 - sp1 - 1;
+			book = -1;
+			if (bookLen >= 2 && bookLen <= 11 && frame.get(bookOff) == 'b')
+			{
+				long n = 0;
+				for (int i=bookOff+1;i<sp2;i++)
+				{
+					int c = frame.get(i);
+					if (c < '0' || c > '9')
+					{
+						n = -1;
+						break;
+					}
+					n = n*10 + (c - '0');
+				}
+				book = n;
+			}
+			op = equals(frame, sp2+1, to, "reserve") ? OP_RESERVE :
+				equals(frame, sp2+1, to, "return") ? OP_RETURN : -1;
+			return true;
+		}
+
+		/**
+		* @param ByteBuffer b - buffer to search.
+		* @param int from - first position searched.
+		* @param int to - position after the last one searched.
+		* @return int - position of the first space in [from, to), -1 if none.
+		*/
+		private static int indexOf(ByteBuffer b, int from, int to)
+		{
+			for (int i=from;i<to;i++) if (b.get(i) == ' ') return i;
+			return -1;
+		}
+
+		/**
+		* @param ByteBuffer b - buffer to compare.
+		* @param int from - first position compared.
+		* @param int to - position after the last one compared.
+		* @param String word - ASCII word.
+		* @return boolean - whether or not the bytes in [from, to) spell word.
+		*/
+		private static boolean equals(ByteBuffer b, int from, int to, String word)
+		{
+			if (to - from != word.length()) return false;
+			for (int i=0;i<word.length();i++)
+				if (b.get(from+i) != word.charAt(i)) return false;
+			return true;
+		}
+	}
+}
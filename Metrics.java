@@ -0,0 +1,339 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * FILE: Metrics.java
+ *
+ * Measurements of a LibraryServer.java, recorded by the threads doing the
+ * work and read by a small HTTP server on another thread. Recording only
+ * adds to preallocated atomic counters, so it takes no lock and allocates
+ * nothing, and a reader never stops a recorder.
+ *
+ * Times go into histograms of log-linear buckets, 8 per power of two (about
+ * 12% wide), from which quantiles are computed when they are read:
+ *
+ *   lock_wait     from asking for the lock of a stripe to getting it
+ *   lock_hold     from getting the lock to releasing it
+ *   apply         applying a batch of replicated commands
+ *   request       from reading a client command to sending its reply
+ *
+ * Counters are kept for the frames sent and received per opcode and for the
+ * passes of the selector loops of the Reactor.java, gauges for the number of
+ * connected servers and clients, the events waiting for the execution
+ * thread, the stripes with queued commands and the bytes queued to peers.
+ * The execution thread refreshes the gauges once per pass of its loop. The
+ * connections are also counted per peer and per client, in a gauge labeled
+ * with the ID of the server or the client (ex: connections{peer="2"}), which
+ * the execution thread updates as they connect and disconnect.
+ *
+ * With the metrics option on, everything is served in the Prometheus text
+ * format on the loopback interface:
+ *
+ *   curl http://127.0.0.1:<port>/metrics
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Metrics
+{
+	// gauges
+	static final int PEERS = 0; // connected servers
+	static final int CLIENTS = 1; // connected clients
+	static final int BACKLOG = 2; // events waiting for the execution thread
+	static final int ACTIVE = 3; // stripes with queued commands
+	static final int PEER_QUEUED = 4; // bytes queued to all the servers
+
+	private static final String[] GAUGES = {"peers", "clients", "events_backlog",
+		"active_stripes", "peer_queued_bytes"};
+
+	final Histogram lockWait = new Histogram("lock_wait");
+	final Histogram lockHold = new Histogram("lock_hold");
+	final Histogram apply = new Histogram("apply");
+	final Histogram request = new Histogram("request");
+
+	private AtomicLongArray sent; // frames sent per opcode
+	private AtomicLongArray received; // frames received per opcode
+	private AtomicLongArray gauges; // last value of every gauge
+	private ConcurrentHashMap<Reactor.Connection,String> labels; // by connection
+	private Reactor reactor; // counts the passes of its selector loops
+	private HttpServer http; // serves the metrics, null until serve()
+
+	public Metrics()
+	{
+		sent = new AtomicLongArray(256);
+		received = new AtomicLongArray(256);
+		gauges = new AtomicLongArray(GAUGES.length);
+		labels = new ConcurrentHashMap<Reactor.Connection,String>();
+	}
+
+	/**
+	* @param Reactor reactor - reactor whose selector loops are counted.
+	*/
+	public void setReactor(Reactor reactor)
+	{
+		this.reactor = reactor;
+	}
+
+	/**
+	* Counts a frame sent.
+	* @param ByteBuffer frame - the whole frame, at its length prefix.
+	*/
+	public void sent(ByteBuffer frame)
+	{
+		int op = frame.get(frame.position() + MessageCodec.HEADER) & 0xff;
+		sent.incrementAndGet(op);
+	}
+
+	/**
+	* Counts a frame received.
+	* @param byte op - opcode of the frame.
+	*/
+	public void received(byte op)
+	{
+		received.incrementAndGet(op & 0xff);
+	}
+
+	/**
+	* @param int gauge - PEERS, CLIENTS, BACKLOG, ACTIVE or PEER_QUEUED.
+	* @param long value - current value of the gauge.
+	*/
+	public void set(int gauge, long value)
+	{
+		gauges.lazySet(gauge, value);
+	}
+
+	/**
+	* Counts a connection once its handshake tells who is at the other end.
+	* @param Reactor.Connection c - the connection.
+	* @param String label - peer or client.
+	* @param String id - ID of the server or of the client.
+	*/
+	public void connected(Reactor.Connection c, String label, String id)
+	{
+		labels.put(c, label+"=\""+id+"\"");
+	}
+
+	/**
+	* Stops counting a connection, if it was.
+	* @param Reactor.Connection c - the connection.
+	*/
+	public void disconnected(Reactor.Connection c)
+	{
+		labels.remove(c);
+	}
+
+	/**
+	* Starts serving the metrics over HTTP on a thread of its own.
+	* @param int port - port to listen to on the loopback interface.
+	*/
+	public void serve(int port) throws IOException
+	{
+		http = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		http.createContext("/metrics", new HttpHandler()
+		{
+			public void handle(HttpExchange ex) throws IOException
+			{
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+				ex.getResponseHeaders().set("Content-Type",
+				"text/plain; version=0.0.4");
+				ex.sendResponseHeaders(200, body.length);
+				OutputStream os = ex.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		http.start();
+	}
+
+	/**
+	* Stops the HTTP server.
+	*/
+	public void close()
+	{
+		if (http != null) http.stop(0);
+	}
+
+	/**
+	* @return String - every metric in the Prometheus text format.
+	*/
+	public String render()
+	{
+		StringBuilder s = new StringBuilder(4096);
+		lockWait.render(s);
+		lockHold.render(s);
+		apply.render(s);
+		request.render(s);
+		counters(s, "frames_sent_total", sent);
+		counters(s, "frames_received_total", received);
+		if (reactor != null)
+		{
+			s.append("# TYPE library_selector_loops_total counter\n")
+			.append("library_selector_loops_total ").append(reactor.selects())
+			.append('\n');
+		}
+		for (int i=0;i<GAUGES.length;i++)
+		{
+			s.append("# TYPE library_").append(GAUGES[i]).append(" gauge\n")
+			.append("library_").append(GAUGES[i]).append(' ').append(gauges.get(i))
+			.append('\n');
+		}
+		// a server may be connected twice, once each way
+		TreeMap<String,Integer> connections = new TreeMap<String,Integer>();
+		for (String label : labels.values())
+		{
+			Integer n = connections.get(label);
+			connections.put(label, n == null ? 1 : n + 1);
+		}
+		s.append("# TYPE library_connections gauge\n");
+		for (Map.Entry<String,Integer> e : connections.entrySet())
+		{
+			s.append("library_connections{").append(e.getKey()).append("} ")
+			.append(e.getValue()).append('\n');
+		}
+		return s.toString();
+	}
+
+	/**
+	* Renders a counter per opcode, skipping the ones never counted.
+	* @param StringBuilder s - where the counters are rendered.
+	* @param String name - name of the counter.
+	* @param AtomicLongArray counts - count of every opcode.
+	*/
+	private static void counters(StringBuilder s, String name,
+	AtomicLongArray counts)
+	{
+		s.append("# TYPE library_").append(name).append(" counter\n");
+		for (int op=0;op<counts.length();op++)
+		{
+			long n = counts.get(op);
+			if (n == 0) continue;
+			s.append("library_").append(name).append("{op=\"")
+			.append(MessageCodec.name(op)).append("\"} ").append(n).append('\n');
+		}
+	}
+
+	/**
+	* Histogram of durations in nanoseconds. A value v >= 8 falls in bucket
+	* 8*(e-2) + the 3 bits after the highest one, e being the position of the
+	* highest bit, values below 8 have a bucket each.
+	*/
+	static class Histogram
+	{
+		private static final int SUB = 3; // 2^SUB buckets per power of two
+		private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+		private String name; // name of the metric, without prefix or unit
+		private AtomicLongArray buckets; // count of every bucket
+		private AtomicLong count; // number of values recorded
+		private AtomicLong sum; // sum of the values recorded
+		private AtomicLong max; // highest value recorded
+
+		/**
+		* @param String name - name of the metric.
+		*/
+		Histogram(String name)
+		{
+			this.name = name;
+			buckets = new AtomicLongArray((64 - SUB) << SUB);
+			count = new AtomicLong();
+			sum = new AtomicLong();
+			max = new AtomicLong();
+		}
+
+		/**
+		* Records a duration.
+		* @param long ns - the duration in nanoseconds, negative ones count as 0.
+		*/
+		void record(long ns)
+		{
+			if (ns < 0) ns = 0;
+			buckets.incrementAndGet(bucket(ns));
+			count.incrementAndGet();
+			sum.addAndGet(ns);
+			long m = max.get();
+			while (ns > m && !max.compareAndSet(m, ns)) m = max.get();
+		}
+
+		/**
+		* @param long v - a value, at least 0.
+		* @return int - the bucket it falls in.
+		*/
+		static int bucket(long v)
+		{
+			if (v < (1 << SUB)) return (int) v;
+			int e = 63 - Long.numberOfLeadingZeros(v);
+			int sub = (int) (v >>> (e - SUB)) & ((1 << SUB) - 1);
+			return ((e - SUB + 1) << SUB) + sub;
+		}
+
+		/**
+		* @param int b - a bucket.
+		* @return long - highest value that falls in it.
+		*/
+		static long high(int b)
+		{
+			if (b < (1 << SUB)) return b;
+			int e = (b >> SUB) + SUB - 1;
+			long mantissa = (1 << SUB) + (b & ((1 << SUB) - 1));
+			return ((mantissa + 1) << (e - SUB)) - 1;
+		}
+
+		/**
+		* @return long - number of values recorded.
+		*/
+		long count()
+		{
+			return count.get();
+		}
+
+		/**
+		* @param double q - a quantile, between 0 and 1.
+		* @return long - upper bound of the bucket holding it, in nanoseconds.
+		*/
+		long quantile(double q)
+		{
+			long n = 0;
+			for (int b=0;b<buckets.length();b++) n += buckets.get(b);
+			if (n == 0) return 0;
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int b=0;b<buckets.length();b++)
+			{
+				seen += buckets.get(b);
+				if (seen >= rank) return Math.min(high(b), max.get());
+			}
+			return max.get();
+		}
+
+		/**
+		* Renders the histogram as a Prometheus summary in seconds.
+		* @param StringBuilder s - where the histogram is rendered.
+		*/
+		void render(StringBuilder s)
+		{
+			String metric = "library_"+name+"_seconds";
+			s.append("# TYPE ").append(metric).append(" summary\n");
+			for (double q : QUANTILES)
+			{
+				s.append(metric).append("{quantile=\"").append(q).append("\"} ")
+				.append(quantile(q) / 1e9).append('\n');
+			}
+			s.append(metric).append("_sum ").append(sum.get() / 1e9).append('\n');
+			s.append(metric).append("_count ").append(count.get()).append('\n');
+			s.append(metric).append("_max ").append(max.get() / 1e9).append('\n');
+		}
+	}
+}
@@ -0,0 +1,795 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * FILE: Reactor.java
+ *
+ * Socket I/O of LibraryServer.java, split off the thread that runs the book
+ * state machine. An acceptor thread accepts connections and deals them out
+ * to N I/O threads, each running its own Selector. An I/O thread owns the
+ * connections registered with it (a Connection is the attachment of its
+ * SelectionKey), reads them and cuts the bytes into frames, and hands every
+ * frame to the single execution thread through a lock-free queue. Frames of
+ * one connection keep their order, and the execution thread sees a closed
+ * connection as an event after its last frame, so the state machine itself
+ * stays single threaded and needs no locking.
+ *
+ * The queue is a bounded ring of preallocated events (a multi-producer,
+ * single-consumer version of Vyukov's bounded queue). Every slot owns a
+ * direct buffer the frame is copied into, and is reused once the execution
+ * thread takes the next event, so frames up to SLOT bytes go through without
+ * allocating. An I/O thread that finds the ring full waits for a free slot.
+ *
+ * Sending never blocks the execution thread. A Connection writes right away
+ * what the socket takes when nothing is queued before it, and queues the rest
+ * for its I/O thread, which is told to watch OP_WRITE and flushes the queue
+ * with gathering writes once the peer reads again. Queued bytes are copied
+ * once: a broadcast shares one read-only copy between all the connections
+ * that could not take it. A connection whose queue grows past its limit is
+ * given up, so one slow peer costs memory up to that limit and no latency to
+ * the others.
+ *
+ * Frames sent through the reactor can also be coalesced. The first frame a
+ * connection gets in a window is written right away, the ones that follow
+ * are staged and written together once the ring runs dry, once the
+ * connection has coalesce bytes staged, or once the oldest of them waited
+ * window nanoseconds. An idle server writes every frame before it waits for
+ * the next event, so the window only opens under load, as wide as the
+ * backlog of events in the ring, and only for connections that get several
+ * frames in it.
+ *
+ * Bench.java answers REQUEST frames over loopback through 1, 2, 4... I/O
+ * threads, without and with coalescing, and reports the frames per second,
+ * the round trip latency and the bytes allocated by the server side threads
+ * per frame (reactor and reactor.coalesce).
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Reactor
+{
+	private static final int RING = 8192; // events in the ring, a power of two
+	private static final int SLOT = 4096; // size of the buffer of an event
+
+	private IoThread[] io; // threads reading the connections
+	private Thread acceptor; // thread accepting connections, null if none
+	private Event[] ring; // events for the execution thread, reused in turn
+	private AtomicLongArray seqs; // sequence of every slot of the ring
+	private AtomicLong tail; // next slot to be claimed by an I/O thread
+	private long head; // next slot to be taken by the execution thread
+	private long taken; // slot handed out by take(), -1 if none
+	private volatile Thread waiting; // execution thread while it is parked
+	private volatile boolean closed; // set once close() was called
+	private int next; // I/O thread the next connection goes to
+
+	// coalescing, execution thread only
+	private int coalesce; // bytes staged per connection before a write, 0 if off
+	private long window; // most nanoseconds a staged frame waits
+	private ArrayList<Connection> staged; // connections with staged frames
+	private long stagedSince; // time the oldest staged frame was staged
+	private long pass; // number of windows flushed so far
+	private ArrayDeque<Connection> lost; // connections a send gave up on
+	private Event lostEvent; // event handing out a lost connection
+	private Log log; // where the I/O threads report their errors
+
+	/**
+	* @param int threads - number of I/O threads, at least one.
+	* @param Log log - where the I/O threads report their errors.
+	*/
+	public Reactor(int threads, Log log)
+	{
+		this.log = log;
+		ring = new Event[RING];
+		seqs = new AtomicLongArray(RING);
+		for (int i=0;i<RING;i++)
+		{
+			ring[i] = new Event();
+			seqs.set(i, i); // free for the producer claiming position i
+		}
+		tail = new AtomicLong();
+		taken = -1;
+		io = new IoThread[Math.max(1, threads)];
+		staged = new ArrayList<Connection>();
+		lost = new ArrayDeque<Connection>();
+		lostEvent = new Event();
+	}
+
+	/**
+	* Turns coalescing of the frames sent with send() on or off.
+	* @param int bytes - bytes staged per connection before they are written,
+	* 0 turns coalescing off.
+	* @param long micros - most microseconds a staged frame waits.
+	*/
+	public void coalesce(int bytes, long micros)
+	{
+		coalesce = Math.max(0, bytes);
+		window = Math.max(0, micros) * 1000L;
+	}
+
+	/**
+	* Starts the I/O threads and, if a server socket is given, the acceptor.
+	* @param ServerSocketChannel ssc - socket to accept connections on, may be
+	* null. It is switched to blocking mode.
+	*/
+	public void start(ServerSocketChannel ssc) throws IOException
+	{
+		for (int i=0;i<io.length;i++)
+		{
+			io[i] = new IoThread(i);
+			io[i].start();
+		}
+		if (ssc == null) return;
+		ssc.configureBlocking(true);
+		acceptor = new Thread("acceptor")
+		{
+			public void run()
+			{
+				while (!closed)
+				{
+					try
+					{
+						SocketChannel sock = ssc.accept();
+						sock.socket().setTcpNoDelay(true);
+						register(sock, Connection.UNKNOWN);
+					} catch (IOException e) {
+						// the socket was closed by close()
+						if (!ssc.isOpen()) return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	* @return ArrayList<Thread> - the acceptor, if any, and the I/O threads.
+	*/
+	ArrayList<Thread> threads()
+	{
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		if (acceptor != null) threads.add(acceptor);
+		for (IoThread t : io) threads.add(t);
+		return threads;
+	}
+
+	/**
+	* Hands a connected channel to the next I/O thread. Accepted channels are
+	* registered by the acceptor, the server registers the ones it opened.
+	* @param SocketChannel sock - connected channel.
+	* @param byte kind - Connection.UNKNOWN until a handshake is read,
+	* Connection.CLIENT or Connection.SERVER.
+	* @return Connection - the connection of the channel.
+	*/
+	public Connection register(SocketChannel sock, byte kind) throws IOException
+	{
+		sock.configureBlocking(false);
+		IoThread t;
+		synchronized (this)
+		{
+			t = io[next];
+			next = (next + 1) % io.length;
+		}
+		Connection c = new Connection(sock, kind, t.selector);
+		t.pending.add(c);
+		t.selector.wakeup();
+		return c;
+	}
+
+	/**
+	* Takes the next event for the execution thread. The event, and its
+	* frame, are only valid until the next call. Only one thread may call
+	* this. Connections lost by send() come out as closed connections.
+	* @param long timeout - most milliseconds to wait for, 0 waits until there
+	* is an event and -1 does not wait at all.
+	* @return Event - the next event or null if none came in time.
+	*/
+	public Event take(long timeout)
+	{
+		if (taken >= 0)
+		{
+			// hand the slot of the previous event back to the producers
+			seqs.set((int) (taken & (RING - 1)), taken + RING);
+			taken = -1;
+		}
+		Event e = poll();
+		if (e == null)
+		{
+			// nothing left to coalesce with
+			flush();
+		} else if (!staged.isEmpty() && System.nanoTime() - stagedSince >= window) {
+			flush();
+		}
+		if (!lost.isEmpty())
+		{
+			if (e != null)
+			{
+				// leave the event in the ring for the next call
+				head--;
+				taken = -1;
+			}
+			lostEvent.conn = lost.poll();
+			return lostEvent;
+		}
+		if (e != null || timeout < 0) return e;
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		waiting = Thread.currentThread();
+		// an I/O thread that queues an event after this poll sees waiting set
+		// and unparks us, so no event can slip in unnoticed
+		while ((e = poll()) == null && !closed)
+		{
+			if (timeout == 0)
+			{
+				LockSupport.park(this);
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) break;
+				LockSupport.parkNanos(this, left);
+			}
+		}
+		waiting = null;
+		return e;
+	}
+
+	/**
+	* Sends a frame on a connection, staged with the other frames of the
+	* connection if coalescing is on. A connection that fails is closed and
+	* handed out by take(). Execution thread only.
+	* @param Connection c - connection to send on.
+	* @param ByteBuffer msg - frame(s) to send, its position is left untouched.
+	* @param ByteBuffer copy - see Connection.send(), ignored when coalescing.
+	* @return ByteBuffer - see Connection.send().
+	*/
+	public ByteBuffer send(Connection c, ByteBuffer msg, ByteBuffer copy)
+	{
+		try
+		{
+			if (coalesce == 0 || msg.remaining() > coalesce) return c.send(msg, copy);
+			if (c.pass != pass)
+			{
+				// nothing to wait for yet, the first frame of the window goes out
+				c.pass = pass;
+				return c.send(msg, copy);
+			}
+			c.stage(msg, coalesce);
+			if (!c.staged)
+			{
+				if (staged.isEmpty()) stagedSince = System.nanoTime();
+				c.staged = true;
+				staged.add(c);
+			}
+		} catch (IOException e) {
+			lose(c, e);
+		}
+		return copy;
+	}
+
+	/**
+	* Writes the frames staged on every connection. Execution thread only.
+	*/
+	public void flush()
+	{
+		pass++;
+		for (int i=0;i<staged.size();i++)
+		{
+			Connection c = staged.get(i);
+			c.staged = false;
+			try
+			{
+				c.unstage();
+			} catch (IOException e) {
+				lose(c, e);
+			}
+		}
+		staged.clear();
+	}
+
+	/**
+	* Gives up a connection a send failed on.
+	* @param Connection c - the connection.
+	* @param IOException e - why.
+	*/
+	private void lose(Connection c, IOException e)
+	{
+		if (c.error != null) return;
+		c.error = e;
+		try
+		{
+			c.close();
+		} catch (IOException x) {
+			// closed anyway
+		}
+		lost.add(c);
+	}
+
+	/**
+	* @return long - passes of the selector loops of all the I/O threads, read
+	* from any thread.
+	*/
+	public long selects()
+	{
+		long n = 0;
+		for (IoThread t : io) if (t != null) n += t.selects;
+		return n;
+	}
+
+	/**
+	* @return long - events published and not taken yet. Execution thread
+	* only.
+	*/
+	public long backlog()
+	{
+		return tail.get() - head;
+	}
+
+	/**
+	* Wakes up the execution thread if it waits in take().
+	*/
+	public void wakeup()
+	{
+		Thread t = waiting;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	/**
+	* Stops the acceptor and the I/O threads. Channels are closed by their
+	* owner.
+	*/
+	public void close()
+	{
+		closed = true;
+		for (IoThread t : io) if (t != null) t.selector.wakeup();
+		wakeup();
+	}
+
+	/**
+	* @return Event - the next published event or null if there is none.
+	*/
+	private Event poll()
+	{
+		int i = (int) (head & (RING - 1));
+		if (seqs.get(i) != head + 1) return null;
+		taken = head++;
+		return ring[i];
+	}
+
+	/**
+	* Copies a frame into the next slot of the ring and publishes it for the
+	* execution thread. Called by the I/O threads.
+	* @param Connection c - connection the frame was read on.
+	* @param ByteBuffer frame - body of the frame, null if the connection was
+	* closed.
+	*/
+	private void post(Connection c, ByteBuffer frame)
+	{
+		long pos;
+		while (true)
+		{
+			pos = tail.get();
+			long seq = seqs.get((int) (pos & (RING - 1)));
+			if (seq == pos)
+			{
+				if (tail.compareAndSet(pos, pos + 1)) break;
+			} else if (seq < pos) {
+				// full, the execution thread is behind
+				if (closed) return;
+				wakeup();
+				Thread.yield();
+			}
+		}
+		int i = (int) (pos & (RING - 1));
+		Event e = ring[i];
+		e.conn = c;
+		e.frame = null;
+		if (frame != null)
+		{
+			if (frame.remaining() > SLOT)
+			{
+				e.frame = ByteBuffer.allocate(frame.remaining());
+			} else {
+				if (e.buf == null) e.buf = ByteBuffer.allocateDirect(SLOT);
+				e.frame = e.buf;
+				e.frame.clear();
+			}
+			e.frame.put(frame).flip();
+		}
+		seqs.set(i, pos + 1);
+		wakeup();
+	}
+
+	/**
+	* A connection to a client or a server, attached to its SelectionKey. It
+	* is a WritableByteChannel, so frames of any size can be written to it in
+	* order without blocking.
+	*/
+	public static class Connection implements WritableByteChannel
+	{
+		static final byte UNKNOWN = 0; // handshake not read yet
+		static final byte CLIENT = 1;
+		static final byte SERVER = 2;
+		private static final int GATHER = 64; // most buffers per gathering write
+
+		final SocketChannel sock; // the channel
+		byte kind; // UNKNOWN, CLIENT or SERVER, set by the execution thread
+		long limit; // most bytes queued before the connection is given up
+		IOException error; // why the reactor gave up the connection, or null
+		private MessageCodec.Decoder in; // frames being read, I/O thread only
+		private ByteBuffer out; // frames staged by the execution thread
+		private boolean staged; // whether the reactor lists it as staged
+		private long pass; // window the connection last sent in
+
+		// outbound queue, guarded by the connection
+		private Selector selector; // selector of the owning I/O thread
+		private SelectionKey key; // key of the channel, null until registered
+		private ArrayDeque<Object> queue; // ByteBuffers and Regions to write
+		private long queued; // bytes queued in buffers
+		private ByteBuffer[] gather; // buffers of a gathering write
+
+		Connection(SocketChannel sock, byte kind, Selector selector)
+		{
+			this.sock = sock;
+			this.kind = kind;
+			this.limit = Long.MAX_VALUE;
+			this.in = new MessageCodec.Decoder();
+			this.selector = selector;
+			this.queue = new ArrayDeque<Object>();
+			this.pass = -1;
+		}
+
+		/**
+		* Sends bytes without blocking: whatever the socket takes is written
+		* now if nothing waits before it, the rest is queued for the I/O thread.
+		* Frames staged by Reactor.send() go first.
+		* @param ByteBuffer msg - bytes to send, its position is left untouched.
+		* @param ByteBuffer copy - read-only copy of msg, from its position to
+		* its limit, already queued on another connection, or null.
+		* @return ByteBuffer - the copy of msg the queue holds on to, so the
+		* next connection of a broadcast can share it, or copy if none was made.
+		*/
+		public ByteBuffer send(ByteBuffer msg, ByteBuffer copy) throws IOException
+		{
+			unstage();
+			return put(msg, copy);
+		}
+
+		/**
+		* Appends a frame to the staged ones, writing those first if it does
+		* not fit. Execution thread only.
+		* @param ByteBuffer msg - frame(s) to stage, its position is left
+		* untouched.
+		* @param int size - size of the staging buffer.
+		*/
+		void stage(ByteBuffer msg, int size) throws IOException
+		{
+			if (out == null) out = ByteBuffer.allocateDirect(size);
+			if (msg.remaining() > out.remaining()) unstage();
+			int pos = msg.position();
+			out.put(msg);
+			msg.position(pos);
+		}
+
+		/**
+		* Writes the staged frames. Execution thread only.
+		*/
+		void unstage() throws IOException
+		{
+			if (out == null || out.position() == 0) return;
+			out.flip();
+			try
+			{
+				put(out, null);
+			} finally {
+				out.clear();
+			}
+		}
+
+		/**
+		* See send(), without the staged frames.
+		*/
+		private ByteBuffer put(ByteBuffer msg, ByteBuffer copy)
+		throws IOException
+		{
+			int pos = msg.position();
+			try
+			{
+				synchronized (this)
+				{
+					if (queue.isEmpty()) sock.write(msg);
+					if (!msg.hasRemaining()) return copy;
+					if (copy == null)
+					{
+						ByteBuffer src = msg.duplicate();
+						src.position(pos);
+						copy = ByteBuffer.allocate(src.remaining());
+						copy.put(src).flip();
+						copy = copy.asReadOnlyBuffer();
+					}
+					ByteBuffer view = copy.duplicate();
+					view.position(msg.position() - pos);
+					queue.add(view);
+					queued += view.remaining();
+					if (queued > limit)
+						throw new IOException("more than "+limit+" bytes queued");
+					watchWrite();
+					return copy;
+				}
+			} finally {
+				msg.position(pos);
+			}
+		}
+
+		/**
+		* Sends a range of a file, with FileChannel.transferTo() so the bytes
+		* are not copied through the heap. The file is closed once sent, or
+		* when the connection is.
+		* @param FileChannel ch - file to send from.
+		* @param long pos - offset of the first byte.
+		* @param long end - offset after the last byte.
+		*/
+		public void transfer(FileChannel ch, long pos, long end) throws IOException
+		{
+			unstage();
+			synchronized (this)
+			{
+				if (queue.isEmpty())
+				{
+					long n;
+					while (pos < end && (n = ch.transferTo(pos, end - pos, sock)) > 0)
+						pos += n;
+				}
+				if (pos >= end)
+				{
+					ch.close();
+					return;
+				}
+				queue.add(new Region(ch, pos, end));
+				watchWrite();
+			}
+		}
+
+		/**
+		* Queues a whole buffer, see send().
+		* @param ByteBuffer src - bytes to write.
+		* @return int - number of bytes taken, all of them.
+		*/
+		public int write(ByteBuffer src) throws IOException
+		{
+			int n = src.remaining();
+			send(src, null);
+			src.position(src.limit());
+			return n;
+		}
+
+		/**
+		* @return boolean - whether or not the channel is open.
+		*/
+		public boolean isOpen()
+		{
+			return sock.isOpen();
+		}
+
+		/**
+		* Closes the channel and drops whatever is still queued.
+		*/
+		public void close() throws IOException
+		{
+			synchronized (this)
+			{
+				for (Object o : queue)
+				{
+					if (o instanceof Region) ((Region) o).ch.close();
+				}
+				queue.clear();
+				queued = 0;
+			}
+			if (out != null) out.clear();
+			sock.close();
+		}
+
+		/**
+		* @return long - number of bytes waiting in the queue, files excluded.
+		*/
+		public synchronized long queued()
+		{
+			return queued;
+		}
+
+		/**
+		* Asks the I/O thread to watch OP_WRITE. Holds the lock.
+		*/
+		private void watchWrite()
+		{
+			// before registration the I/O thread looks at the queue itself
+			if (key == null || !key.isValid()) return;
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			selector.wakeup();
+		}
+
+		/**
+		* Registers the channel with the selector of its I/O thread.
+		*/
+		private synchronized void register() throws IOException
+		{
+			int ops = SelectionKey.OP_READ;
+			if (!queue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+			key = sock.register(selector, ops, this);
+		}
+
+		/**
+		* Writes as much of the queue as the socket takes, runs of buffers with
+		* one gathering write. Stops watching OP_WRITE once the queue is empty.
+		* Called by the I/O thread.
+		*/
+		private synchronized void flush() throws IOException
+		{
+			if (gather == null) gather = new ByteBuffer[GATHER];
+			while (!queue.isEmpty())
+			{
+				Object head = queue.peek();
+				if (head instanceof Region)
+				{
+					Region r = (Region) head;
+					r.pos += r.ch.transferTo(r.pos, r.end - r.pos, sock);
+					if (r.pos < r.end) return;
+					queue.poll();
+					r.ch.close();
+					continue;
+				}
+				int n = 0;
+				for (Object o : queue)
+				{
+					if (n == GATHER || !(o instanceof ByteBuffer)) break;
+					gather[n++] = (ByteBuffer) o;
+				}
+				queued -= sock.write(gather, 0, n);
+				boolean full = gather[n-1].hasRemaining();
+				for (int i=0;i<n;i++)
+				{
+					if (!gather[i].hasRemaining()) queue.poll();
+					gather[i] = null;
+				}
+				if (full) return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	* Part of a file queued on a connection.
+	*/
+	private static class Region
+	{
+		final FileChannel ch; // file to send from
+		long pos; // offset of the next byte to send
+		final long end; // offset after the last byte
+
+		Region(FileChannel ch, long pos, long end)
+		{
+			this.ch = ch;
+			this.pos = pos;
+			this.end = end;
+		}
+	}
+
+	/**
+	* A frame read on a connection, or the end of the connection.
+	*/
+	public static class Event
+	{
+		Connection conn; // connection the frame was read on
+		ByteBuffer frame; // body of the frame at its opcode, null if closed
+		private ByteBuffer buf; // pooled buffer of the slot, null until used
+	}
+
+	/**
+	* Selector thread reading the connections it owns.
+	*/
+	private class IoThread extends Thread implements Consumer<SelectionKey>
+	{
+		final Selector selector; // selector of the owned connections
+		final ConcurrentLinkedQueue<Connection> pending; // to be registered
+		volatile long selects; // passes of the selector loop, see selects()
+
+		IoThread(int i) throws IOException
+		{
+			super("io-"+i);
+			setDaemon(true);
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<Connection>();
+		}
+
+		public void run()
+		{
+			while (!closed)
+			{
+				try
+				{
+					// keys are handed to accept() without an iterator or a selected set
+					selector.select(this);
+					selects++; // only this thread writes it
+					Connection c;
+					while ((c = pending.poll()) != null)
+					{
+						try
+						{
+							c.register();
+						} catch (IOException e) {
+							post(c, null);
+						}
+					}
+				} catch (IOException e) {
+					log.log(Log.ERROR, null, "reactor: {} failed to select", getName(), e);
+				}
+			}
+			try
+			{
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		/**
+		* Handles a key selected by the selector.
+		* @param SelectionKey key - key of a connection.
+		*/
+		public void accept(SelectionKey key)
+		{
+			Connection c = (Connection) key.attachment();
+			if (key.isValid() && key.isWritable()) write(key, c);
+			if (key.isValid() && key.isReadable()) read(key, c);
+		}
+
+		/**
+		* Flushes the queue of a connection the peer started reading again.
+		* @param SelectionKey key - key of the connection.
+		* @param Connection c - the connection.
+		*/
+		private void write(SelectionKey key, Connection c)
+		{
+			try
+			{
+				c.flush();
+			} catch (IOException e) {
+				// closed by either end, the reader reports it
+				key.cancel();
+				post(c, null);
+			}
+		}
+
+		/**
+		* Reads a connection and queues every complete frame.
+		* @param SelectionKey key - key of the connection.
+		* @param Connection c - the connection.
+		*/
+		private void read(SelectionKey key, Connection c)
+		{
+			try
+			{
+				int n = c.in.read(c.sock);
+				ByteBuffer frame;
+				while ((frame = c.in.next()) != null) post(c, frame);
+				if (n >= 0) return;
+			} catch (IOException e) {
+				// closed by either end, or a corrupt frame
+			}
+			key.cancel();
+			post(c, null);
+		}
+	}
+}
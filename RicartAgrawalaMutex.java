@@ -0,0 +1,184 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FILE: RicartAgrawalaMutex.java
+ *
+ * Ricart-Agrawala mutual exclusion. A server asks for a stripe by sending a
+ * timestamped REQUEST (LOCK) to every peer and enters once all live peers have
+ * sent a REPLY_LOCK. A server that receives a REQUEST replies right away
+ * unless it is inside the critical section of that stripe, or is asking for
+ * it with an earlier (clock, pid). In that case it defers the reply until it
+ * leaves. There is no release broadcast, so a lock round costs 2(N-1)
+ * messages instead of the 3(N-1) of LamportMutex.java.
+ *
+ *   LOCK        <Pn> <Pn.clock> <stripe>  REQUEST, stamped with its timestamp
+ *   REPLY_LOCK  <Pn> <Pn.clock> <stripe>  permission to enter
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class RicartAgrawalaMutex implements DistributedMutex
+{
+	private LibraryServer server; // server the mutex belongs to
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private HashMap<Integer,StripeState> stripes; // stripes in use
+
+	/**
+	* @param LibraryServer server - server the mutex belongs to.
+	*/
+	public RicartAgrawalaMutex(LibraryServer server)
+	{
+		this.server = server;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		stripes = new HashMap<Integer,StripeState>();
+	}
+
+	public void request(int stripe)
+	{
+		StripeState st = state(stripe);
+		st.requesting = true;
+		st.clock = server.tick();
+		st.missing = 0;
+		for (int i=0;i<servNum;i++)
+		{
+			st.awaiting[i] = i != pid && server.isPeerUp(i);
+			if (st.awaiting[i]) st.missing++;
+		}
+		server.broadcast(server.encode(MessageCodec.LOCK, pid, st.clock, stripe));
+	}
+
+	public boolean granted(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null || !st.requesting || st.missing > 0) return false;
+		st.inCS = true;
+		return true;
+	}
+
+	public void release(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null) return;
+		st.inCS = false;
+		st.requesting = false;
+		// answer everyone who asked while we were ahead of them
+		for (int i=0;i<servNum;i++)
+		{
+			if (st.deferred[i])
+			{
+				st.deferred[i] = false;
+				server.sendTo(i, server.encode(MessageCodec.REPLY_LOCK, pid,
+				server.tick(), stripe));
+			}
+		}
+		stripes.remove(stripe);
+	}
+
+	public boolean fusesUnlock()
+	{
+		return false; // the release answers the deferred servers only
+	}
+
+	public void releaseLocally(int stripe)
+	{
+		release(stripe);
+	}
+
+	public void receive(byte op, int p, long clock, int stripe, ByteBuffer frame)
+	{
+		if (op == MessageCodec.LOCK)
+		{
+			StripeState st = stripes.get(stripe);
+			if (st != null && (st.inCS || st.requesting &&
+				(st.clock < clock || st.clock == clock && pid < p)))
+			{
+				st.deferred[p] = true;
+			} else {
+				server.sendTo(p, server.encode(MessageCodec.REPLY_LOCK, pid,
+				server.tick(), stripe));
+			}
+		} else if (op == MessageCodec.REPLY_LOCK) {
+			StripeState st = stripes.get(stripe);
+			if (st != null && st.awaiting[p])
+			{
+				st.awaiting[p] = false;
+				st.missing--;
+			}
+		}
+	}
+
+	/**
+	* Sends the requests of this server to a server that comes back, with
+	* their original timestamps, and waits for its reply too.
+	*/
+	public void peerUp(int p)
+	{
+		for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+		{
+			StripeState st = e.getValue();
+			st.deferred[p] = false;
+			if (!st.requesting) continue;
+			if (!st.awaiting[p])
+			{
+				st.awaiting[p] = true;
+				st.missing++;
+			}
+			server.sendTo(p, server.encode(MessageCodec.LOCK, pid, st.clock,
+			e.getKey()));
+		}
+	}
+
+	public void peerDown(int p)
+	{
+		for (StripeState st : stripes.values())
+		{
+			st.deferred[p] = false;
+			if (st.awaiting[p])
+			{
+				st.awaiting[p] = false;
+				st.missing--;
+			}
+		}
+	}
+
+	/**
+	* Returns the state of a stripe, creating it if needed.
+	* @param int stripe - index of the stripe.
+	* @return StripeState - state of the stripe.
+	*/
+	private StripeState state(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null)
+		{
+			st = new StripeState(servNum);
+			stripes.put(stripe, st);
+		}
+		return st;
+	}
+
+	/**
+	* Request of this server on a stripe.
+	*/
+	private static class StripeState
+	{
+		boolean requesting; // whether this server asked for the stripe
+		boolean inCS; // whether this server is in the critical section
+		long clock; // timestamp of the request
+		boolean[] awaiting; // peers whose REPLY_LOCK has not arrived yet
+		int missing; // number of peers still to reply
+		boolean[] deferred; // peers whose REPLY_LOCK is held back
+
+		StripeState(int servNum)
+		{
+			awaiting = new boolean[servNum];
+			deferred = new boolean[servNum];
+		}
+	}
+}
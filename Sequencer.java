@@ -0,0 +1,571 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FILE: Sequencer.java
+ *
+ * Leader sequenced replication for LibraryServer.java, used instead of the
+ * distributed mutex when serverConfig.dat has "replication sequencer". One
+ * server is the leader. It applies every reserve/return command as soon as it
+ * gets it, numbers it and streams the ordered log to the followers. Followers
+ * forward the commands of their clients to the leader and apply the log in
+ * order, replying to a client once its own command comes back in the log.
+ * A write costs one hop to the leader plus pipelined replication, with no
+ * lock round at all.
+ *
+ * The first server up leads and announces itself to every server that
+ * connects. When the leader is lost, the live server with the lowest ID
+ * takes over. The old leader may have sent part of its log to only some of
+ * the followers, so the new leader first asks every live follower for the
+ * entries after its own sequence number (LEADER, answered by FOLLOW). It
+ * applies the longest of those suffixes, sends every follower the entries it
+ * misses and only then sequences anything new. Every server keeps the last
+ * history entries of the log for this. The followers forward their
+ * outstanding commands to the new leader again, which drops those whose
+ * (origin, reqId) is already in the log, so that no command is applied twice.
+ * The origin gets its reply from the log entry instead.
+ *
+ *   FORWARD  <Pn> <Pn.clock> <clients> <reqId> <op> <By> <Cx> <trace>
+ *   LOG      <Pn> <Pn.clock> <clients>
+ *            {<seq> <origin> <reqId> <op> <By> <Cx> <trace>}...
+ *   LEADER   <Pn> <Pn.clock> <seq>
+ *   FOLLOW   <Pn> <Pn.clock> <seq> <more>
+ *            {<seq> <origin> <reqId> <op> <By> <Cx> <trace>}...
+ *            sequence number of the follower and its entries after the
+ *            <seq> of the LEADER it answers, <more> is 1 if another FOLLOW
+ *            frame follows.
+ *
+ * <clients> is the client count of the sender (see LibraryServer.clientCount()),
+ * the followers tell the leader and the leader tells everyone. <trace> is
+ * the trace ID of the command, 0 if none (see Tracing.java).
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Sequencer
+{
+	private LibraryServer server; // server the sequencer belongs to
+	private BookCatalog books; // catalog of the server
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private int leader; // ID of the leader, -1 while unknown
+	private long seq; // sequence number of the last applied command
+	private long nextReq; // ID of the last command forwarded to the leader
+	private LinkedHashMap<Long,LibraryServer.Request> forwarded; // by reqId
+	private ArrayList<LibraryServer.Request> ready; // leader: awaiting reply
+	private ByteBuffer log; // leader: LOG frame being filled
+	private int logStart; // position of the LOG frame, -1 if empty
+	private ByteBuffer fwd; // follower: FORWARD frame being sent
+	private ArrayList<Long> mineReq; // follower: our commands in a LOG frame
+	private ArrayList<Integer> mineIdx; // and their index in the batch
+	private long[] lastReq; // highest reqId of every server in the log
+
+	// last entries of the log, entry s at index s % capacity
+	private long first; // sequence number of the oldest entry kept
+	private int[] kOrigin;
+	private long[] kReq;
+	private byte[] kOp;
+	private int[] kBook;
+	private int[] kClient;
+	private long[] kTrace;
+
+	// leader taking over
+	private boolean recovering; // whether the followers are being asked
+	private boolean[] awaiting; // followers that have not answered yet
+	private long[] followerSeq; // sequence number every follower answered
+	private ArrayList<Forward> pending; // commands forwarded meanwhile
+
+	/**
+	* @param LibraryServer server - server the sequencer belongs to.
+	* @param int capacity - number of log entries kept for a new leader.
+	*/
+	public Sequencer(LibraryServer server, int capacity)
+	{
+		this.server = server;
+		this.books = server.books();
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		this.leader = -1;
+		this.seq = 0;
+		this.nextReq = 0;
+		forwarded = new LinkedHashMap<Long,LibraryServer.Request>();
+		ready = new ArrayList<LibraryServer.Request>();
+		log = ByteBuffer.allocate(64*1024);
+		logStart = -1;
+		fwd = ByteBuffer.allocate(1024);
+		mineReq = new ArrayList<Long>();
+		mineIdx = new ArrayList<Integer>();
+		lastReq = new long[servNum];
+		first = 1;
+		capacity = Math.max(1, capacity);
+		kOrigin = new int[capacity];
+		kReq = new long[capacity];
+		kOp = new byte[capacity];
+		kBook = new int[capacity];
+		kClient = new int[capacity];
+		kTrace = new long[capacity];
+		awaiting = new boolean[servNum];
+		followerSeq = new long[servNum];
+		pending = new ArrayList<Forward>();
+	}
+
+	/**
+	* Called once the server has connected to the cluster. A server that finds
+	* nobody else up leads, the others wait for the leader to announce itself.
+	*/
+	public void start()
+	{
+		for (int i=0;i<servNum;i++) if (i != pid && server.isPeerUp(i)) return;
+		becomeLeader();
+	}
+
+	/**
+	* @return boolean - whether or not this server is the leader.
+	*/
+	public boolean isLeader()
+	{
+		return leader == pid;
+	}
+
+	/**
+	* Takes a command from a client of this server.
+	* @param LibraryServer.Request r - the command.
+	*/
+	public void submit(LibraryServer.Request r)
+	{
+		if (isLeader() && !recovering)
+		{
+			r.outcome = append(pid, 0, r.op, r.book, r.client, r.trace);
+			ready.add(r);
+		} else {
+			forwarded.put(++nextReq, r);
+			forward(nextReq, r);
+		}
+	}
+
+	/**
+	* Sends the LOG entries collected during this pass of the main loop and
+	* replies to the clients of the leader whose commands they carry.
+	* @return boolean - whether or not anything was sent.
+	*/
+	public boolean flush()
+	{
+		boolean sent = logStart >= 0 || !ready.isEmpty();
+		if (logStart >= 0)
+		{
+			MessageCodec.end(log, logStart);
+			log.flip();
+			server.broadcast(log);
+			log.clear();
+			logStart = -1;
+		}
+		for (LibraryServer.Request r : ready) server.reply(r, r.outcome);
+		ready.clear();
+		return sent;
+	}
+
+	/**
+	* Handles a sequencer message from another server.
+	* @param byte op - opcode of the message.
+	* @param int p - ID of the sending server.
+	* @param long clock - clock the message is stamped with.
+	* @param ByteBuffer frame - rest of the message.
+	*/
+	public void receive(byte op, int p, long clock, ByteBuffer frame)
+	{
+		if (op == MessageCodec.FORWARD)
+		{
+			server.noteClients((int) MessageCodec.getVarint(frame));
+			long reqId = MessageCodec.getVarint(frame);
+			int cmd = (int) MessageCodec.getVarint(frame);
+			int book = (int) MessageCodec.getVarint(frame);
+			int client = books.internClient(frame);
+			long trace = MessageCodec.getVarint(frame);
+			// a forward that reaches a server which is not (or not yet) the leader
+			// is dropped. The follower keeps it in forwarded and sends it again to
+			// the leader announced by LEADER
+			if (!isLeader()) return;
+			if (recovering)
+				pending.add(new Forward(p, reqId, cmd, book, client, trace));
+			else if (reqId > lastReq[p]) append(p, reqId, cmd, book, client, trace);
+		} else if (op == MessageCodec.LOG) {
+			if (p != leader) return;
+			int clients = (int) MessageCodec.getVarint(frame);
+			// nothing is remembered or staged from a frame cut short
+			MessageCodec.records(frame, 5, 1);
+			server.noteClients(clients);
+			mineReq.clear();
+			mineIdx.clear();
+			while (frame.hasRemaining())
+			{
+				long s = MessageCodec.getVarint(frame);
+				int origin = (int) MessageCodec.getVarint(frame);
+				long reqId = MessageCodec.getVarint(frame);
+				int cmd = (int) MessageCodec.getVarint(frame);
+				int book = (int) MessageCodec.getVarint(frame);
+				int client = books.internClient(frame);
+				long trace = MessageCodec.getVarint(frame);
+				if (s <= seq) continue; // already applied
+				remember(s, origin, reqId, cmd, book, client, trace);
+				int i = server.stage(p, s, cmd, book, client, trace);
+				if (origin == pid)
+				{
+					mineReq.add(reqId);
+					mineIdx.add(i);
+				}
+			}
+			// the whole frame is applied at once, then our clients get replies
+			server.applyStaged();
+			for (int k=0;k<mineReq.size();k++)
+			{
+				LibraryServer.Request r = forwarded.remove(mineReq.get(k));
+				if (r != null) server.reply(r, server.stagedOutcome(mineIdx.get(k)));
+			}
+		} else if (op == MessageCodec.LEADER) {
+			long s = MessageCodec.getVarint(frame);
+			if (isLeader() && (s < seq || s == seq && pid < p)) return;
+			leader = p;
+			// its own clients forward their commands again
+			recovering = false;
+			pending.clear();
+			follow(p, s);
+			// the new leader has not seen what we forwarded to the old one
+			for (Map.Entry<Long,LibraryServer.Request> e : forwarded.entrySet())
+				forward(e.getKey(), e.getValue());
+		} else if (op == MessageCodec.FOLLOW) {
+			if (!isLeader()) return;
+			long s = MessageCodec.getVarint(frame);
+			boolean more = MessageCodec.getVarint(frame) != 0;
+			MessageCodec.records(frame, 5, 1);
+			while (frame.hasRemaining())
+			{
+				long e = MessageCodec.getVarint(frame);
+				int origin = (int) MessageCodec.getVarint(frame);
+				long reqId = MessageCodec.getVarint(frame);
+				int cmd = (int) MessageCodec.getVarint(frame);
+				int book = (int) MessageCodec.getVarint(frame);
+				int client = books.internClient(frame);
+				long trace = MessageCodec.getVarint(frame);
+				if (recovering && e == seq + 1)
+					recover(origin, reqId, cmd, book, client, trace);
+			}
+			followerSeq[p] = s;
+			if (more || !recovering || !awaiting[p]) return;
+			awaiting[p] = false;
+			recovered();
+		}
+	}
+
+	/**
+	* Continues after a state transfer brought the books up to a sequence
+	* number.
+	* @param long s - sequence number of the last command the books reflect.
+	*/
+	public void resume(long s)
+	{
+		if (s <= seq) return;
+		seq = s;
+		first = s + 1; // the log before it is not known here
+	}
+
+	/**
+	* Announces this server to a server that just connected if it leads.
+	* @param int p - ID of the server.
+	*/
+	public void peerUp(int p)
+	{
+		lastReq[p] = 0; // it numbers its commands from 1 again
+		if (isLeader())
+			server.sendTo(p, server.encode(MessageCodec.LEADER, pid,
+			server.clocks.now(), seq));
+	}
+
+	/**
+	* Elects a new leader if the lost server was leading.
+	* @param int p - ID of the server.
+	*/
+	public void peerDown(int p)
+	{
+		if (recovering && awaiting[p])
+		{
+			awaiting[p] = false;
+			recovered();
+		}
+		if (p != leader) return;
+		leader = -1;
+		for (int i=0;i<servNum;i++)
+		{
+			if (i == pid)
+			{
+				becomeLeader();
+				return;
+			}
+			// the lowest live server takes over and will announce itself
+			if (server.isPeerUp(i)) return;
+		}
+	}
+
+	/**
+	* Takes over as leader: announces it and asks every live follower for the
+	* entries of the log after its own, see recovered().
+	*/
+	private void becomeLeader()
+	{
+		leader = pid;
+		recovering = true;
+		pending.clear();
+		for (int i=0;i<servNum;i++)
+		{
+			awaiting[i] = i != pid && server.isPeerUp(i);
+			followerSeq[i] = seq;
+		}
+		server.broadcast(server.encode(MessageCodec.LEADER, pid, server.tick(),
+		seq));
+		recovered();
+	}
+
+	/**
+	* Starts leading once every follower answered: sends every follower the
+	* entries of the log it misses, then sequences what was forwarded to the
+	* old leader but is not in the log, the commands of the clients of this
+	* server first.
+	*/
+	private void recovered()
+	{
+		for (int i=0;i<servNum;i++) if (awaiting[i]) return;
+		recovering = false;
+		for (int i=0;i<servNum;i++)
+		{
+			if (i != pid && server.isPeerUp(i) && followerSeq[i] < seq)
+				sendLog(i, followerSeq[i] + 1);
+		}
+		for (LibraryServer.Request r : forwarded.values())
+		{
+			r.outcome = append(pid, 0, r.op, r.book, r.client, r.trace);
+			ready.add(r);
+		}
+		forwarded.clear();
+		for (Forward f : pending)
+		{
+			if (f.reqId > lastReq[f.origin])
+				append(f.origin, f.reqId, f.cmd, f.book, f.client, f.trace);
+		}
+		pending.clear();
+	}
+
+	/**
+	* Leader taking over: applies an entry of the log of the old leader a
+	* follower had, replying to the client of this server it belongs to.
+	* @param int origin - server whose client sent the command.
+	* @param long reqId - ID of the command on that server.
+	* @param int cmd - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @param long trace - trace ID of the command, 0 if none.
+	*/
+	private void recover(int origin, long reqId, int cmd, int book, int client,
+	long trace)
+	{
+		int outcome = server.processBook(client, book, cmd, pid, seq+1);
+		remember(seq+1, origin, reqId, cmd, book, client, trace);
+		LibraryServer.Request r = origin == pid ? forwarded.remove(reqId) : null;
+		if (r != null)
+		{
+			r.outcome = outcome;
+			ready.add(r);
+		}
+	}
+
+	/**
+	* Answers a LEADER with the sequence number of this server and the entries
+	* of the log after the one of the leader.
+	* @param int p - ID of the leader.
+	* @param long s - sequence number of the leader.
+	*/
+	private void follow(int p, long s)
+	{
+		ByteBuffer out = ByteBuffer.allocate(64*1024);
+		long e = Math.max(s + 1, first);
+		do
+		{
+			out.clear();
+			int start = MessageCodec.begin(out, MessageCodec.FOLLOW);
+			MessageCodec.putVarint(out, pid);
+			MessageCodec.putVarint(out, server.clocks.now());
+			MessageCodec.putVarint(out, seq);
+			int more = out.position();
+			MessageCodec.putVarint(out, 0);
+			for (;e<=seq && out.remaining() >= 1024;e++) putEntry(out, e);
+			if (e <= seq) out.put(more, (byte) 1);
+			MessageCodec.end(out, start);
+			out.flip();
+			server.sendTo(p, out);
+		} while (e <= seq);
+	}
+
+	/**
+	* Leader: sends a follower the entries of the log from a sequence number.
+	* @param int p - ID of the follower.
+	* @param long from - sequence number of the first entry.
+	*/
+	private void sendLog(int p, long from)
+	{
+		for (long e=Math.max(from, first);e<=seq;e++)
+		{
+			if (logStart >= 0 && log.remaining() < 1024)
+			{
+				MessageCodec.end(log, logStart);
+				log.flip();
+				server.sendTo(p, log);
+				log.clear();
+				logStart = -1;
+			}
+			if (logStart < 0) beginLog();
+			putEntry(log, e);
+		}
+		if (logStart >= 0)
+		{
+			MessageCodec.end(log, logStart);
+			log.flip();
+			server.sendTo(p, log);
+			log.clear();
+			logStart = -1;
+		}
+	}
+
+	/**
+	* Sends a command of a client of this server to the leader.
+	* @param long reqId - ID of the command on this server.
+	* @param LibraryServer.Request r - the command.
+	*/
+	private void forward(long reqId, LibraryServer.Request r)
+	{
+		// sent once a leader announces itself, or sequenced once this server
+		// took over
+		if (leader < 0 || leader == pid) return;
+		if (fwd.capacity() < 80 + 3*r.clientID.length())
+			fwd = ByteBuffer.allocate(80 + 3*r.clientID.length());
+		fwd.clear();
+		int start = MessageCodec.begin(fwd, MessageCodec.FORWARD);
+		MessageCodec.putVarint(fwd, pid);
+		MessageCodec.putVarint(fwd, server.clocks.now());
+		MessageCodec.putVarint(fwd, server.clientCount());
+		MessageCodec.putVarint(fwd, reqId);
+		MessageCodec.putVarint(fwd, r.op);
+		MessageCodec.putVarint(fwd, r.book);
+		MessageCodec.putString(fwd, r.clientID);
+		MessageCodec.putVarint(fwd, r.trace);
+		MessageCodec.end(fwd, start);
+		fwd.flip();
+		Tracing.broadcast(r.trace, pid, server.clocks.now(), -1);
+		server.sendTo(leader, fwd);
+	}
+
+	/**
+	* Leader: applies a command, numbers it and adds it to the LOG frame.
+	* @param int origin - server whose client sent the command.
+	* @param long reqId - ID of the command on that server.
+	* @param int cmd - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @param long trace - trace ID of the command, 0 if none.
+	* @return int - LibraryServer.FAILED, RESERVED or RETURNED.
+	*/
+	private int append(int origin, long reqId, int cmd, int book, int client,
+	long trace)
+	{
+		int outcome = server.processBook(client, book, cmd, pid, seq+1);
+		Tracing.apply(trace, pid, server.clocks.now(), origin, book,
+		outcome != LibraryServer.FAILED);
+		String clientID = books.clientName(client);
+		if (logStart >= 0 && log.remaining() < 1024 + 3*clientID.length()) flush();
+		if (logStart < 0) beginLog();
+		remember(seq+1, origin, reqId, cmd, book, client, trace);
+		putEntry(log, seq);
+		Tracing.broadcast(trace, pid, server.clocks.now(), -1);
+		return outcome;
+	}
+
+	/**
+	* Starts a LOG frame in the log buffer.
+	*/
+	private void beginLog()
+	{
+		logStart = MessageCodec.begin(log, MessageCodec.LOG);
+		MessageCodec.putVarint(log, pid);
+		MessageCodec.putVarint(log, server.tick());
+		MessageCodec.putVarint(log, server.clientCount());
+	}
+
+	/**
+	* Keeps an entry of the log, the last one from now on.
+	* @param long s - sequence number of the entry.
+	* @param int origin - server whose client sent the command.
+	* @param long reqId - ID of the command on that server.
+	* @param int cmd - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param int client - interned client ID.
+	* @param long trace - trace ID of the command, 0 if none.
+	*/
+	private void remember(long s, int origin, long reqId, int cmd, int book,
+	int client, long trace)
+	{
+		// the entries before a gap cannot be handed on
+		if (s != seq + 1) first = s;
+		else if (s - first >= kOrigin.length) first = s - kOrigin.length + 1;
+		int i = (int) (s % kOrigin.length);
+		kOrigin[i] = origin;
+		kReq[i] = reqId;
+		kOp[i] = (byte) cmd;
+		kBook[i] = book;
+		kClient[i] = client;
+		kTrace[i] = trace;
+		seq = s;
+		if (origin >= 0 && origin < servNum && reqId > lastReq[origin])
+			lastReq[origin] = reqId;
+	}
+
+	/**
+	* Writes an entry that is kept into a LOG or FOLLOW frame.
+	* @param ByteBuffer buf - the frame.
+	* @param long s - sequence number of the entry.
+	*/
+	private void putEntry(ByteBuffer buf, long s)
+	{
+		int i = (int) (s % kOrigin.length);
+		MessageCodec.putVarint(buf, s);
+		MessageCodec.putVarint(buf, kOrigin[i]);
+		MessageCodec.putVarint(buf, kReq[i]);
+		MessageCodec.putVarint(buf, kOp[i]);
+		MessageCodec.putVarint(buf, kBook[i]);
+		MessageCodec.putString(buf, books.clientName(kClient[i]));
+		MessageCodec.putVarint(buf, kTrace[i]);
+	}
+
+	/**
+	* A command forwarded to a leader that is taking over.
+	*/
+	private static class Forward
+	{
+		int origin; // server whose client sent the command
+		long reqId; // ID of the command on that server
+		int cmd; // MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN
+		int book; // index of the book
+		int client; // interned client ID
+		long trace; // trace ID, 0 if none
+
+		Forward(int origin, long reqId, int cmd, int book, int client, long trace)
+		{
+			this.origin = origin;
+			this.reqId = reqId;
+			this.cmd = cmd;
+			this.book = book;
+			this.client = client;
+			this.trace = trace;
+		}
+	}
+}
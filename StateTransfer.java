@@ -0,0 +1,543 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * FILE: StateTransfer.java
+ *
+ * Brings the books of a server that joins the cluster up to date. Every
+ * command that changes the catalog gets a version: the number of catalog
+ * changes its origin server (the one that committed or sequenced it) has made
+ * so far. Each server tracks the version up to which it applied every
+ * command of an origin, a version vector, and keeps the most recent commands
+ * in a bounded history. A replicated frame is only applied after every
+ * command of its origin before it (see CommitOrder.java), so the vector never
+ * covers a command that was skipped.
+ *
+ * A joining server sends SYNC with its version vector to one live peer. If the
+ * history of the peer still holds everything after that vector, only those
+ * commands are sent back (DELTA), so a server that was briefly away catches up
+ * in time proportional to what it missed. Otherwise the peer sends a snapshot
+ * of the catalog (SNAPSHOT, then SNAPSHOT_CHUNK frames holding the reserved
+ * books) followed by the delta since the snapshot. When the peer keeps a
+ * write-ahead log its checkpoint file already holds these frames, and they are
+ * streamed straight from the file to the socket with FileChannel.transferTo.
+ * Everything is queued on the connection of the server asking (see
+ * Reactor.java), so a slow joiner never blocks the one serving it.
+ * SYNC_DONE ends the transfer with the version vector of the peer, which
+ * counts the commands that failed there too (see advance()). Replicated
+ * commands that arrive meanwhile are held back and applied afterwards,
+ * skipping those the transfer covered.
+ *
+ *   SYNC            <Pn> <Pn.clock> <v1..vn>
+ *   SNAPSHOT        <Pn> <Pn.clock> <books> <n> <v1..vn>
+ *   SNAPSHOT_CHUNK  <Pn> <Pn.clock> {<gap> <Cx>}...   gap from the previous book
+ *   DELTA           <Pn> <Pn.clock> {<origin> <version> <op> <By> <Cx>}...
+ *   SYNC_DONE       <Pn> <Pn.clock> <n> <v1..vn>
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class StateTransfer
+{
+	private static final int FRAME = 32*1024; // size frames are filled up to
+
+	private LibraryServer server; // server the transfer belongs to
+	private BookCatalog books; // catalog of the server
+	private WriteAheadLog wal; // log of the server, null if off
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private long[] applied; // version every command was applied up to, per
+	// server
+	private long[] floor; // highest version of every server not in history
+
+	// history of recent commands, a ring buffer
+	private int[] hOrigin;
+	private long[] hVersion;
+	private byte[] hOp;
+	private int[] hBook;
+	private String[] hClient;
+	private int head; // slot the next command goes into
+	private int count; // number of commands in the history
+
+	// joining side
+	private boolean syncing; // whether a transfer is in progress
+	private int source; // server the transfer comes from, -1 if none
+	private long[] snapshot; // version vector of the snapshot being loaded
+	private ArrayList<Held> held; // replicated frames received meanwhile
+	private ByteBuffer out; // buffer frames are encoded into
+
+	/**
+	* @param LibraryServer server - server the transfer belongs to.
+	* @param BookCatalog books - catalog of the server.
+	* @param WriteAheadLog wal - log of the server, null if off.
+	* @param long[] applied - version vector recovered along with the books.
+	* @param int capacity - number of commands kept in the history.
+	*/
+	public StateTransfer(LibraryServer server, BookCatalog books,
+	WriteAheadLog wal, long[] applied, int capacity)
+	{
+		this.server = server;
+		this.books = books;
+		this.wal = wal;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		this.applied = applied;
+		this.floor = applied.clone();
+		capacity = Math.max(1, capacity);
+		hOrigin = new int[capacity];
+		hVersion = new long[capacity];
+		hOp = new byte[capacity];
+		hBook = new int[capacity];
+		hClient = new String[capacity];
+		source = -1;
+		held = new ArrayList<Held>();
+		out = ByteBuffer.allocate(FRAME + 1024);
+	}
+
+	/**
+	* @param int origin - ID of a server.
+	* @return long - version every command of the server was applied up to.
+	*/
+	public long applied(int origin)
+	{
+		return applied[origin];
+	}
+
+	/**
+	* Records a command that changed the catalog.
+	* @param int origin - server that committed the command.
+	* @param long version - version of the command at its origin.
+	* @param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param String clientID - ID of the client.
+	*/
+	public void record(int origin, long version, int op, int book,
+	String clientID)
+	{
+		if (version > applied[origin]) applied[origin] = version;
+		if (count == hOrigin.length)
+		{
+			// the oldest command falls out of the history
+			if (hVersion[head] > floor[hOrigin[head]])
+				floor[hOrigin[head]] = hVersion[head];
+		} else {
+			count++;
+		}
+		hOrigin[head] = origin;
+		hVersion[head] = version;
+		hOp[head] = (byte) op;
+		hBook[head] = book;
+		hClient[head] = clientID;
+		head = (head + 1) % hOrigin.length;
+	}
+
+	/**
+	* Counts the commands of a replicated frame as applied, the ones that failed
+	* here too, so that the frames that depend on them are not held back for
+	* good (see CommitOrder.java). Only those that changed the catalog are in
+	* the history.
+	* @param int origin - server that committed the commands.
+	* @param long version - version of the last one at its origin.
+	*/
+	public void advance(int origin, long version)
+	{
+		if (version > applied[origin]) applied[origin] = version;
+	}
+
+	/**
+	* @return boolean - whether or not a transfer is in progress, during which
+	* the server must not commit commands of its own.
+	*/
+	public boolean syncing()
+	{
+		return syncing;
+	}
+
+	/**
+	* Asks the live server with the lowest ID for everything this server
+	* missed. Does nothing if no other server is up.
+	*/
+	public void request()
+	{
+		request(-1);
+	}
+
+	/**
+	* Asks a server for everything this server missed, or the live server with
+	* the lowest ID if it is down. Does nothing if no other server is up.
+	* @param int from - ID of the server to ask, -1 for none in particular.
+	*/
+	public void request(int from)
+	{
+		syncing = false;
+		source = -1;
+		snapshot = null; // a snapshot cut off halfway does not count
+		for (int k=-1;k<servNum;k++)
+		{
+			int i = k < 0 ? from : k;
+			if (i < 0 || i == pid || !server.isPeerUp(i)) continue;
+			long[] args = new long[2 + servNum];
+			args[0] = pid;
+			args[1] = server.tick();
+			for (int j=0;j<servNum;j++) args[2+j] = applied[j];
+			syncing = true;
+			source = i;
+			server.sendTo(i, server.encode(MessageCodec.SYNC, args));
+			return;
+		}
+	}
+
+	/**
+	* Answers a SYNC with a delta, or a snapshot and a delta if the history
+	* does not reach back far enough.
+	* @param Reactor.Connection sock - server asking.
+	* @param ByteBuffer frame - version vector of the server asking.
+	*/
+	public void serve(Reactor.Connection sock, ByteBuffer frame) throws IOException
+	{
+		long[] since = new long[servNum];
+		for (int i=0;i<servNum && frame.hasRemaining();i++)
+			since[i] = MessageCodec.getVarint(frame);
+		if (!covers(since)) since = sendSnapshot(sock);
+		sendDelta(sock, since);
+		long[] args = new long[3 + servNum];
+		args[0] = pid;
+		args[1] = server.tick();
+		args[2] = servNum;
+		for (int i=0;i<servNum;i++) args[3+i] = applied[i];
+		write(sock, server.encode(MessageCodec.SYNC_DONE, args));
+	}
+
+	/**
+	* Handles the frames of a transfer this server asked for.
+	* @param byte op - opcode of the message.
+	* @param int p - ID of the sending server.
+	* @param ByteBuffer frame - rest of the message.
+	*/
+	public void receive(byte op, int p, ByteBuffer frame)
+	{
+		if (!syncing || p != source) return;
+		if (op == MessageCodec.SNAPSHOT)
+		{
+			// versions only count once the whole snapshot is in
+			snapshot = load(op, books, frame);
+			Arrays.fill(applied, 0);
+		} else if (op == MessageCodec.SNAPSHOT_CHUNK) {
+			// same as load(), but the chunk is applied in parallel, once it was
+			// checked whole
+			MessageCodec.records(frame, 1, 0);
+			int book = -1;
+			while (frame.hasRemaining())
+			{
+				book += (int) MessageCodec.getVarint(frame);
+				server.stage(-1, 0, MessageCodec.OP_RESERVE, book,
+				books.internClient(frame));
+			}
+			server.applyStaged();
+		} else if (op == MessageCodec.DELTA) {
+			MessageCodec.records(frame, 4, 0);
+			while (frame.hasRemaining())
+			{
+				int origin = (int) MessageCodec.getVarint(frame);
+				long version = MessageCodec.getVarint(frame);
+				int cmd = (int) MessageCodec.getVarint(frame);
+				int book = (int) MessageCodec.getVarint(frame);
+				server.stage(origin, version, cmd, book, books.internClient(frame));
+			}
+			server.applyStaged();
+		} else if (op == MessageCodec.SYNC_DONE) {
+			int n = frame.hasRemaining() ? (int) MessageCodec.getVarint(frame) : 0;
+			for (int i=0;i<n;i++)
+			{
+				long v = MessageCodec.getVarint(frame);
+				if (i < servNum && v > applied[i]) applied[i] = v;
+			}
+			finish();
+		}
+	}
+
+	/**
+	* Holds back a replicated command frame received during a transfer. The
+	* commands of a COMMIT are held as a COMMAND_BATCH while the UNLOCK it
+	* carries is handled right away.
+	* @param Reactor.Connection conn - server the frame came from.
+	* @param ByteBuffer frame - frame positioned at its opcode.
+	* @return boolean - whether or not the frame was held, false for a COMMIT.
+	*/
+	public boolean hold(Reactor.Connection conn, ByteBuffer frame)
+	{
+		if (!syncing) return false;
+		byte op = frame.get(frame.position());
+		if (op != MessageCodec.COMMAND_BATCH && op != MessageCodec.LOG &&
+			op != MessageCodec.COMMIT) return false;
+		ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+		copy.put(frame.duplicate()).flip();
+		copy.put(0, op == MessageCodec.COMMIT ? MessageCodec.COMMAND_BATCH : op);
+		held.add(new Held(conn, copy));
+		return op != MessageCodec.COMMIT;
+	}
+
+	/**
+	* Asks another server if the one the transfer came from went down.
+	* @param int p - ID of the server.
+	*/
+	public void peerDown(int p)
+	{
+		if (!syncing || p != source) return;
+		request();
+		if (!syncing) finish(); // nobody left to ask
+	}
+
+	/**
+	* Ends a transfer: the snapshot versions count from now on, the catalog is
+	* checkpointed if it was replaced and the held frames are applied.
+	*/
+	private void finish()
+	{
+		if (snapshot != null)
+		{
+			for (int i=0;i<servNum;i++)
+			{
+				if (snapshot[i] > applied[i]) applied[i] = snapshot[i];
+				// the commands before the snapshot are not in the history
+				if (snapshot[i] > floor[i]) floor[i] = snapshot[i];
+			}
+			snapshot = null;
+			try
+			{
+				if (wal != null) wal.checkpoint();
+			} catch (IOException e) {
+				server.log().log(Log.ERROR, null, "sync: checkpoint failed", e);
+			}
+		}
+		syncing = false;
+		source = -1;
+		server.synced();
+		// the frames are held again if they start another transfer, see
+		// CommitOrder.java
+		ArrayList<Held> frames = held;
+		held = new ArrayList<Held>();
+		for (Held h : frames)
+		{
+			try
+			{
+				if (h.conn.sock.isOpen()) server.processFrame(h.conn, h.frame);
+			} catch (IOException e) {
+				server.log().log(Log.ERROR, null, "sync: held frame failed", e);
+			}
+		}
+	}
+
+	/**
+	* @param long[] since - a version vector.
+	* @return boolean - whether or not the history holds every command after it.
+	*/
+	private boolean covers(long[] since)
+	{
+		for (int i=0;i<servNum;i++) if (since[i] < floor[i]) return false;
+		return true;
+	}
+
+	/**
+	* Sends a snapshot of the catalog, from the checkpoint file of the log if
+	* the history reaches back to it.
+	* @param Reactor.Connection sock - server asking.
+	* @return long[] - version vector of the snapshot.
+	*/
+	private long[] sendSnapshot(Reactor.Connection sock) throws IOException
+	{
+		if (wal == null)
+		{
+			long[] v = applied.clone();
+			writeSnapshot(sock, books, v, pid, server.tick());
+			return v;
+		}
+		if (wal.checkpointApplied() == null || !covers(wal.checkpointApplied()))
+			wal.checkpoint();
+		long[] v = wal.checkpointApplied().clone();
+		// the connection closes the file once sent, a later checkpoint replaces
+		// the file without touching the open one
+		RandomAccessFile f = new RandomAccessFile(wal.checkpointFile(), "r");
+		try
+		{
+			FileChannel ch = f.getChannel();
+			sock.transfer(ch, WriteAheadLog.CHECKPOINT_HEADER, ch.size());
+		} catch (IOException e) {
+			f.close();
+			throw e;
+		}
+		return v;
+	}
+
+	/**
+	* Sends every command of the history after a version vector.
+	* @param Reactor.Connection sock - server asking.
+	* @param long[] since - version vector the server asking has.
+	*/
+	private void sendDelta(Reactor.Connection sock, long[] since)
+	throws IOException
+	{
+		out.clear();
+		int start = -1;
+		int slot = (head - count + hOrigin.length) % hOrigin.length;
+		for (int i=0;i<count;i++, slot=(slot+1) % hOrigin.length)
+		{
+			if (hVersion[slot] <= since[hOrigin[slot]]) continue;
+			if (start >= 0 && out.position() >= FRAME)
+			{
+				MessageCodec.end(out, start);
+				out.flip();
+				write(sock, out);
+				out.clear();
+				start = -1;
+			}
+			if (start < 0)
+			{
+				start = MessageCodec.begin(out, MessageCodec.DELTA);
+				MessageCodec.putVarint(out, pid);
+				MessageCodec.putVarint(out, server.clocks.now());
+			}
+			if (out.remaining() < 64 + 3*hClient[slot].length())
+				out = grow(out, 64 + 3*hClient[slot].length());
+			MessageCodec.putVarint(out, hOrigin[slot]);
+			MessageCodec.putVarint(out, hVersion[slot]);
+			MessageCodec.putVarint(out, hOp[slot]);
+			MessageCodec.putVarint(out, hBook[slot]);
+			MessageCodec.putString(out, hClient[slot]);
+		}
+		if (start >= 0)
+		{
+			MessageCodec.end(out, start);
+			out.flip();
+			write(sock, out);
+		}
+	}
+
+	/**
+	* Writes the SNAPSHOT and SNAPSHOT_CHUNK frames of a catalog to a channel.
+	* Also used by WriteAheadLog.java for its checkpoint file.
+	* @param WritableByteChannel ch - socket or file to write to.
+	* @param BookCatalog books - the catalog.
+	* @param long[] applied - version vector the catalog reflects.
+	* @param int pid - ID of the server writing the snapshot.
+	* @param long clock - clock the frames are stamped with.
+	*/
+	public static void writeSnapshot(WritableByteChannel ch, BookCatalog books,
+	long[] applied, int pid, long clock) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(FRAME + 1024);
+		int start = MessageCodec.begin(buf, MessageCodec.SNAPSHOT);
+		MessageCodec.putVarint(buf, pid);
+		MessageCodec.putVarint(buf, clock);
+		MessageCodec.putVarint(buf, books.size());
+		MessageCodec.putVarint(buf, applied.length);
+		for (long v : applied) MessageCodec.putVarint(buf, v);
+		MessageCodec.end(buf, start);
+		start = -1;
+		int prev = -1;
+		for (int i=0;i<books.size();i++)
+		{
+			if (books.isFree(i)) continue;
+			String c_id = books.clientName(books.holder(i));
+			if (start >= 0 && buf.position() >= FRAME)
+			{
+				MessageCodec.end(buf, start);
+				buf.flip();
+				write(ch, buf);
+				buf.clear();
+				start = -1;
+			}
+			if (buf.remaining() < 64 + 3*c_id.length())
+				buf = grow(buf, 64 + 3*c_id.length());
+			if (start < 0)
+			{
+				start = MessageCodec.begin(buf, MessageCodec.SNAPSHOT_CHUNK);
+				MessageCodec.putVarint(buf, pid);
+				MessageCodec.putVarint(buf, clock);
+				prev = -1;
+			}
+			MessageCodec.putVarint(buf, i - prev);
+			MessageCodec.putString(buf, c_id);
+			prev = i;
+		}
+		if (start >= 0) MessageCodec.end(buf, start);
+		buf.flip();
+		write(ch, buf);
+	}
+
+	/**
+	* Applies a SNAPSHOT or SNAPSHOT_CHUNK frame to a catalog. A SNAPSHOT frees
+	* every book, the chunks that follow reserve the books that are held. Also
+	* used by WriteAheadLog.java to load its checkpoint file.
+	* @param byte op - opcode of the frame.
+	* @param BookCatalog books - catalog to load into.
+	* @param ByteBuffer frame - frame positioned right after <Pn> <Pn.clock>.
+	* @return long[] - version vector of a SNAPSHOT, null for a chunk.
+	*/
+	public static long[] load(byte op, BookCatalog books, ByteBuffer frame)
+	{
+		if (op == MessageCodec.SNAPSHOT)
+		{
+			MessageCodec.getVarint(frame); // number of books, the config decides
+			long[] v = new long[MessageCodec.getCount(frame)];
+			for (int i=0;i<v.length;i++) v[i] = MessageCodec.getVarint(frame);
+			books.clear();
+			return v;
+		}
+		int book = -1;
+		while (frame.hasRemaining())
+		{
+			book += (int) MessageCodec.getVarint(frame);
+			String c_id = MessageCodec.getString(frame);
+			if (book < books.size()) books.reserve(book, books.internClient(c_id));
+		}
+		return null;
+	}
+
+	/**
+	* Writes a whole buffer to a channel, a file or a Reactor.Connection that
+	* queues what the socket does not take.
+	* @param WritableByteChannel ch - socket or file to write to.
+	* @param ByteBuffer buf - data to write.
+	*/
+	private static void write(WritableByteChannel ch, ByteBuffer buf)
+	throws IOException
+	{
+		while (buf.hasRemaining()) ch.write(buf);
+	}
+
+	/**
+	* @param ByteBuffer buf - buffer being filled.
+	* @param int room - bytes needed.
+	* @return ByteBuffer - buffer with the same content and enough room.
+	*/
+	private static ByteBuffer grow(ByteBuffer buf, int room)
+	{
+		ByteBuffer b = ByteBuffer.allocate(buf.capacity()*2 + room);
+		buf.flip();
+		return b.put(buf);
+	}
+
+	/**
+	* A replicated frame received while a transfer was in progress.
+	*/
+	private static class Held
+	{
+		Reactor.Connection conn; // server the frame came from
+		ByteBuffer frame; // copy of the frame positioned at its opcode
+
+		Held(Reactor.Connection conn, ByteBuffer frame)
+		{
+			this.conn = conn;
+			this.frame = frame;
+		}
+	}
+}
@@ -0,0 +1,529 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FILE: TokenMutex.java
+ *
+ * Suzuki-Kasami token based mutual exclusion. Every stripe has a single
+ * privilege token. The token carries the number of the last request served
+ * for every server (LN) and a queue of servers waiting for it. A server
+ * without the token broadcasts a REQUEST (LOCK) with its next request number,
+ * every server records the highest number seen per server (RN). A server
+ * holding the token enters right away and keeps it after leaving until
+ * somebody else has an outstanding request, so back-to-back commands on one
+ * server cost no mutex messages at all.
+ *
+ * The token of a stripe nobody has seen yet is created when it is first asked
+ * for by its home server (stripe mod N), or by the lowest live server while
+ * the home server is down. A server only does so once every live peer told it
+ * which tokens it has seen (HOLDINGS, sent whenever a connection comes up), so
+ * a server that comes back never creates a token that is still around. The
+ * requests a server missed while down are sent to it again at the same time,
+ * and it numbers its own requests after the ones its peers remember.
+ *
+ * A token held by a server that goes down is lost along with it. The lowest
+ * live server then runs a census: it sends CENSUS with a new epoch to every
+ * live peer, which gives up the tokens it holds and answers with HOLDINGS.
+ * Once all have answered the server creates a token of the new epoch for
+ * every stripe seen or asked for, with the queues and LN merged, and creates
+ * the tokens of new stripes from then on. Every server drops the tokens of an
+ * epoch older than the last CENSUS it heard of, so a token that was on its
+ * way during the census does not come back. The LN of a lost token are gone
+ * too, so a holder queues every server with RN > LN and a server the token
+ * reaches when it is not asking for it brings its own LN up to date.
+ *
+ *   LOCK      <Pn> <Pn.clock> <stripe> <sn>                  REQUEST number sn
+ *   TOKEN     <Pn> <Pn.clock> <stripe> <epoch> <k> <Q1..Qk> <LN1..LNn>
+ *             <n> <v1..vn>  the token, with the commands its sender knows of,
+ *             as it may overtake those of the former holder (see
+ *             CommitOrder.java)
+ *   CENSUS    <Pn> <Pn.clock> 0 <epoch>
+ *   HOLDINGS  <Pn> <Pn.clock> 0 <census> <epoch> <more>
+ *             {<stripe> <flags> <sn> <rn> [<k> <Q1..Qk> <LN1..LNn>]}...
+ *             answer to the census of that epoch, 0 when sent on connect.
+ *             <epoch> is the last census the sender heard of, <sn> its own
+ *             request number, <rn> the last one of the receiver it knows of.
+ *             Flags: 1 seen, 2 asking for the stripe, 4 the token follows.
+ *             <more> is 1 if another HOLDINGS frame follows.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class TokenMutex implements DistributedMutex
+{
+	// flags of a stripe in HOLDINGS
+	private static final int SEEN = 1;
+	private static final int ASKING = 2;
+	private static final int HELD = 4;
+
+	private static final int CHUNK = 4096; // most varints in a HOLDINGS frame
+
+	private LibraryServer server; // server the mutex belongs to
+	private int pid; // process id of the server
+	private int servNum; // number of servers in the cluster
+	private HashMap<Integer,StripeState> stripes; // stripes seen so far
+	private long fence; // epoch of the last census, older tokens are dropped
+	private long answered; // epoch of the last census answered
+	private boolean[] told; // peers whose HOLDINGS came in since they came up
+	private boolean joined; // whether every peer up at start told, until then
+	// no request is numbered
+
+	// census run by this server
+	private long census; // its epoch, 0 if none is running
+	private boolean[] awaiting; // peers that have not answered yet
+
+	/**
+	* @param LibraryServer server - server the mutex belongs to.
+	*/
+	public TokenMutex(LibraryServer server)
+	{
+		this.server = server;
+		this.pid = server.getPid();
+		this.servNum = server.getServerCount();
+		stripes = new HashMap<Integer,StripeState>();
+		told = new boolean[servNum];
+		awaiting = new boolean[servNum];
+	}
+
+	public void request(int stripe)
+	{
+		StripeState st = state(stripe);
+		st.requesting = true;
+		claim(st, stripe);
+		if (st.hasToken || !joined()) return;
+		st.rn[pid]++;
+		server.broadcast(server.encode(MessageCodec.LOCK, pid, server.tick(),
+		stripe, st.rn[pid]));
+	}
+
+	public boolean granted(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null || !st.requesting || !st.hasToken) return false;
+		st.inCS = true;
+		return true;
+	}
+
+	public void release(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null) return;
+		st.inCS = false;
+		st.requesting = false;
+		st.ln[pid] = st.rn[pid];
+		handOver(st, stripe);
+	}
+
+	public boolean fusesUnlock()
+	{
+		return false; // the release passes the token on
+	}
+
+	public void releaseLocally(int stripe)
+	{
+		release(stripe);
+	}
+
+	public void receive(byte op, int p, long clock, int stripe, ByteBuffer frame)
+	{
+		if (op == MessageCodec.CENSUS)
+		{
+			answer(p, MessageCodec.getVarint(frame));
+			return;
+		} else if (op == MessageCodec.HOLDINGS) {
+			holdings(p, frame);
+			return;
+		}
+		StripeState st = state(stripe);
+		if (op == MessageCodec.LOCK)
+		{
+			long sn = MessageCodec.getVarint(frame);
+			if (sn > st.rn[p]) st.rn[p] = sn;
+			// an idle holder hands the token over right away
+			claim(st, stripe);
+			handOver(st, stripe);
+		} else if (op == MessageCodec.TOKEN) {
+			long epoch = MessageCodec.getVarint(frame);
+			st.seen = true;
+			// given up in a census while it was on its way
+			if (epoch < fence) return;
+			fence = epoch;
+			st.epoch = epoch;
+			st.queue.clear();
+			int k = (int) MessageCodec.getVarint(frame);
+			for (int i=0;i<k;i++) st.queue.add((int) MessageCodec.getVarint(frame));
+			for (int i=0;i<servNum;i++) st.ln[i] = MessageCodec.getVarint(frame);
+			server.takeCommitted(stripe, frame);
+			st.hasToken = true;
+			if (st.requesting) return;
+			// nothing to do with it any more, pass it on. LN may be behind after
+			// a census, which would have it come back here again and again
+			if (st.rn[pid] > st.ln[pid]) st.ln[pid] = st.rn[pid];
+			handOver(st, stripe);
+		}
+	}
+
+	public void peerUp(int p)
+	{
+		told[p] = false;
+		sendHoldings(p, 0);
+		// the requests it missed while it was down
+		for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+		{
+			StripeState st = e.getValue();
+			if (st.requesting && !st.hasToken && joined)
+				server.sendTo(p, server.encode(MessageCodec.LOCK, pid, server.tick(),
+				e.getKey(), st.rn[pid]));
+		}
+		// a census that is running waits for it too
+		if (census != 0)
+		{
+			awaiting[p] = true;
+			server.sendTo(p, server.encode(MessageCodec.CENSUS, pid, server.tick(), 0,
+			census));
+		}
+	}
+
+	public void peerDown(int p)
+	{
+		told[p] = false;
+		for (StripeState st : stripes.values()) st.queue.remove(p);
+		if (census != 0)
+		{
+			awaiting[p] = false;
+			endCensus();
+		} else if (lowestLive() == pid) {
+			startCensus();
+		}
+	}
+
+	/**
+	* Creates the token of a stripe nobody has seen yet, if this server is the
+	* one to: the server that ran the last census, or before any census the
+	* home server of the stripe and the lowest live server while it is down.
+	* Every live peer must have told what it has seen first.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	*/
+	private void claim(StripeState st, int stripe)
+	{
+		if (st.seen || census != 0) return;
+		int home = stripe % servNum;
+		int creator = fence > 0 ? (int) (fence % servNum) :
+			home == pid || server.isPeerUp(home) ? home : lowestLive();
+		if (creator != pid) return;
+		for (int i=0;i<servNum;i++)
+		{
+			if (i != pid && server.isPeerUp(i) && !told[i]) return;
+		}
+		st.seen = true;
+		st.hasToken = true;
+		st.epoch = fence;
+	}
+
+	/**
+	* Queues everyone with an outstanding request the token does not know of
+	* and passes the token on if this server is not asking for the stripe.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	*/
+	private void handOver(StripeState st, int stripe)
+	{
+		if (!st.hasToken || st.requesting) return;
+		for (int i=0;i<servNum;i++)
+		{
+			if (i != pid && st.rn[i] > st.ln[i] && !st.queue.contains(i))
+				st.queue.add(i);
+		}
+		passToken(st, stripe);
+	}
+
+	/**
+	* Sends the token to the first live server on its queue, if any.
+	* @param StripeState st - state of the stripe.
+	* @param int stripe - index of the stripe.
+	*/
+	private void passToken(StripeState st, int stripe)
+	{
+		while (!st.queue.isEmpty())
+		{
+			int next = st.queue.poll();
+			if (!server.isPeerUp(next)) continue;
+			long[] args = new long[6 + st.queue.size() + 2*servNum];
+			int i = 0;
+			args[i++] = pid;
+			args[i++] = server.tick();
+			args[i++] = stripe;
+			args[i++] = st.epoch;
+			args[i++] = st.queue.size();
+			for (int q : st.queue) args[i++] = q;
+			for (int j=0;j<servNum;j++) args[i++] = st.ln[j];
+			server.putCommitted(args, i);
+			st.hasToken = false;
+			st.queue.clear();
+			server.sendTo(next, server.encode(MessageCodec.TOKEN, args));
+			return;
+		}
+	}
+
+	/**
+	* Starts a census after a peer went down, this server giving up its own
+	* tokens first.
+	*/
+	private void startCensus()
+	{
+		census = (fence / servNum + 1) * servNum + pid;
+		fence = census;
+		answered = census;
+		for (StripeState st : stripes.values()) st.hasToken = false;
+		for (int i=0;i<servNum;i++)
+		{
+			awaiting[i] = i != pid && server.isPeerUp(i);
+			if (awaiting[i])
+				server.sendTo(i, server.encode(MessageCodec.CENSUS, pid, server.tick(),
+				0, census));
+		}
+		endCensus();
+	}
+
+	/**
+	* Ends the census once every live peer answered: every stripe seen or asked
+	* for gets a token of its epoch.
+	*/
+	private void endCensus()
+	{
+		for (int i=0;i<servNum;i++) if (awaiting[i]) return;
+		long epoch = census;
+		census = 0;
+		for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+		{
+			StripeState st = e.getValue();
+			if (!st.seen && !st.requesting && st.queue.isEmpty()) continue;
+			st.seen = true;
+			st.hasToken = true;
+			st.epoch = epoch;
+			handOver(st, e.getKey());
+		}
+	}
+
+	/**
+	* Answers a CENSUS, giving up the tokens this server holds.
+	* @param int p - server running the census.
+	* @param long epoch - epoch of the census.
+	*/
+	private void answer(int p, long epoch)
+	{
+		if (epoch < fence || epoch == answered) return;
+		fence = epoch;
+		answered = epoch;
+		census = 0; // a census of our own is overtaken
+		sendHoldings(p, epoch);
+		for (StripeState st : stripes.values())
+		{
+			if (!st.hasToken) continue;
+			st.hasToken = false;
+			st.queue.clear();
+			// a request the token had not numbered yet
+			if (st.requesting && st.rn[pid] <= st.ln[pid]) st.rn[pid] = st.ln[pid] + 1;
+		}
+	}
+
+	/**
+	* Sends what this server knows of the tokens to a peer.
+	* @param int p - ID of the peer.
+	* @param long census - epoch of the census answered, 0 if none.
+	*/
+	private void sendHoldings(int p, long census)
+	{
+		long[] args = new long[CHUNK + 8 + 2*servNum];
+		int i = 0;
+		for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+		{
+			StripeState st = e.getValue();
+			if (!st.seen && !st.requesting && st.rn[p] == 0) continue;
+			// a token is only given up to a census
+			boolean held = st.hasToken && census != 0;
+			if (i == 0) i = header(args, census, fence);
+			args[i++] = e.getKey();
+			args[i++] = (st.seen ? SEEN : 0) | (st.requesting ? ASKING : 0) |
+				(held ? HELD : 0);
+			long sn = st.rn[pid];
+			if (st.requesting && sn <= st.ln[pid] && st.hasToken) sn = st.ln[pid] + 1;
+			args[i++] = sn;
+			args[i++] = Math.max(st.rn[p], st.hasToken ? st.ln[p] : 0);
+			if (held)
+			{
+				args[i++] = st.queue.size();
+				for (int q : st.queue) args[i++] = q;
+				for (int j=0;j<servNum;j++) args[i++] = st.ln[j];
+			}
+			if (i >= CHUNK)
+			{
+				args[5] = 1; // more
+				server.sendTo(p, server.encode(MessageCodec.HOLDINGS,
+				Arrays.copyOf(args, i)));
+				i = 0;
+			}
+		}
+		if (i == 0) i = header(args, census, fence);
+		server.sendTo(p, server.encode(MessageCodec.HOLDINGS,
+		Arrays.copyOf(args, i)));
+	}
+
+	/**
+	* Puts the start of a HOLDINGS frame into its arguments.
+	* @param long[] args - arguments of the frame.
+	* @param long census - epoch of the census answered, 0 if none.
+	* @param long epoch - last census this server heard of.
+	* @return int - index of the first stripe.
+	*/
+	private int header(long[] args, long census, long epoch)
+	{
+		args[0] = pid;
+		args[1] = server.tick();
+		args[2] = 0;
+		args[3] = census;
+		args[4] = epoch;
+		args[5] = 0; // more
+		return 6;
+	}
+
+	/**
+	* Takes in a HOLDINGS frame: what a peer that came up has seen, or its
+	* answer to the census of this server.
+	* @param int p - ID of the peer.
+	* @param ByteBuffer frame - rest of the frame positioned at <census>.
+	*/
+	private void holdings(int p, ByteBuffer frame)
+	{
+		long answer = MessageCodec.getVarint(frame);
+		long epoch = MessageCodec.getVarint(frame);
+		boolean more = MessageCodec.getVarint(frame) != 0;
+		boolean counted = answer != 0 && answer == census && awaiting[p];
+		if (answer == 0 && epoch > fence) fence = epoch;
+		while (frame.hasRemaining())
+		{
+			int stripe = (int) MessageCodec.getVarint(frame);
+			int flags = (int) MessageCodec.getVarint(frame);
+			long sn = MessageCodec.getVarint(frame);
+			long mine = MessageCodec.getVarint(frame);
+			StripeState st = state(stripe);
+			if ((flags & SEEN) != 0) st.seen = true;
+			if (sn > st.rn[p]) st.rn[p] = sn;
+			// requests of this server before it went down
+			if (!joined && mine > st.rn[pid]) st.rn[pid] = mine;
+			if ((flags & HELD) != 0)
+			{
+				int k = (int) MessageCodec.getVarint(frame);
+				for (int i=0;i<k;i++)
+				{
+					int q = (int) MessageCodec.getVarint(frame);
+					if (counted && !st.queue.contains(q)) st.queue.add(q);
+				}
+				for (int i=0;i<servNum;i++)
+				{
+					long ln = MessageCodec.getVarint(frame);
+					if (counted && ln > st.ln[i]) st.ln[i] = ln;
+				}
+			}
+			if (counted && (flags & ASKING) != 0 && !st.queue.contains(p))
+				st.queue.add(p);
+		}
+		if (more) return;
+		if (counted)
+		{
+			awaiting[p] = false;
+			endCensus();
+		} else if (answer == 0) {
+			told[p] = true;
+			if (!joined && joined())
+			{
+				// the requests made while it was not known how to number them
+				for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+				{
+					StripeState st = e.getValue();
+					if (!st.requesting || st.hasToken) continue;
+					st.rn[pid]++;
+					server.broadcast(server.encode(MessageCodec.LOCK, pid, server.tick(),
+					e.getKey(), st.rn[pid]));
+				}
+			}
+			// tokens this server was waiting to create
+			for (Map.Entry<Integer,StripeState> e : stripes.entrySet())
+			{
+				StripeState st = e.getValue();
+				if (st.seen || st.hasToken) continue;
+				claim(st, e.getKey());
+				if (st.hasToken) handOver(st, e.getKey());
+			}
+		}
+	}
+
+	/**
+	* @return boolean - whether or not every peer that was up when this server
+	* came up told it what it knows, so the requests of this server are
+	* numbered after those it made before it went down.
+	*/
+	private boolean joined()
+	{
+		if (joined) return true;
+		for (int i=0;i<servNum;i++)
+		{
+			if (i != pid && server.isPeerUp(i) && !told[i]) return false;
+		}
+		joined = true;
+		return true;
+	}
+
+	/**
+	* @return int - ID of the live server with the lowest ID.
+	*/
+	private int lowestLive()
+	{
+		for (int i=0;i<servNum;i++) if (i == pid || server.isPeerUp(i)) return i;
+		return pid;
+	}
+
+	/**
+	* Returns the state of a stripe, creating it if needed.
+	* @param int stripe - index of the stripe.
+	* @return StripeState - state of the stripe.
+	*/
+	private StripeState state(int stripe)
+	{
+		StripeState st = stripes.get(stripe);
+		if (st == null)
+		{
+			st = new StripeState(servNum);
+			stripes.put(stripe, st);
+		}
+		return st;
+	}
+
+	/**
+	* What this server knows about the token of a stripe.
+	*/
+	private static class StripeState
+	{
+		long[] rn; // highest request number seen from every server
+		long[] ln; // token: request number last served for every server
+		ArrayDeque<Integer> queue; // token: servers waiting for it
+		long epoch; // token: census it was created by
+		boolean seen; // whether a token of the stripe was ever seen
+		boolean hasToken; // whether this server holds the token
+		boolean requesting; // whether this server asked for the stripe
+		boolean inCS; // whether this server is in the critical section
+
+		StripeState(int servNum)
+		{
+			rn = new long[servNum];
+			ln = new long[servNum];
+			queue = new ArrayDeque<Integer>();
+		}
+	}
+}
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * FILE: TraceMerge.java
+ *
+ * Offline tool putting together the Flight Recorder recordings of the
+ * servers and clients of a cluster (see Tracing.java) into one timeline per
+ * traced command:
+ *
+ *   java TraceMerge [-t trace] [-n count] s1.jfr s2.jfr s3.jfr [client.jfr...]
+ *
+ * Without -t it shows the count slowest commands (default: 5), by the
+ * latency seen by the client if it was recorded and by the server
+ * otherwise. Every event of the command is listed in time order across the
+ * recordings with the server it happened on and its Lamport clock. Every
+ * lock request of the command is followed by the mutex messages the other
+ * servers got for it (matched by the ID and clock of the requester) and the
+ * ones the requester got while waiting, then by the servers that held the
+ * lock of the stripe during the wait and for how long.
+ *
+ * The recordings are lined up by their wall clock timestamps, so the
+ * servers should run on one machine or have synchronized clocks.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class TraceMerge
+{
+	private ArrayList<Ev> events; // every event of every recording, in order
+	private HashMap<Long,ArrayList<Ev>> traces; // events of every trace ID
+	private HashMap<Integer,ArrayList<Ev>> locks; // grants and releases by stripe
+
+	public TraceMerge()
+	{
+		events = new ArrayList<Ev>();
+		traces = new HashMap<Long,ArrayList<Ev>>();
+		locks = new HashMap<Integer,ArrayList<Ev>>();
+	}
+
+	/**
+	* Reads the events of a recording.
+	* @param Path file - the recording.
+	*/
+	public void read(Path file) throws IOException
+	{
+		for (RecordedEvent e : RecordingFile.readAllEvents(file))
+		{
+			String name = e.getEventType().getName();
+			if (!name.startsWith("library.")) continue;
+			events.add(new Ev(e, name.substring("library.".length())));
+		}
+	}
+
+	/**
+	* Sorts the events and indexes them by trace and by stripe.
+	*/
+	public void index()
+	{
+		Collections.sort(events, new Comparator<Ev>()
+		{
+			public int compare(Ev a, Ev b)
+			{
+				return a.time.compareTo(b.time);
+			}
+		});
+		for (Ev ev : events)
+		{
+			if (ev.trace != 0)
+			{
+				ArrayList<Ev> t = traces.get(ev.trace);
+				if (t == null)
+				{
+					t = new ArrayList<Ev>();
+					traces.put(ev.trace, t);
+				}
+				t.add(ev);
+			}
+			if (ev.type.equals("LockGrant") || ev.type.equals("LockRelease"))
+			{
+				int stripe = ev.e.getInt("stripe");
+				ArrayList<Ev> l = locks.get(stripe);
+				if (l == null)
+				{
+					l = new ArrayList<Ev>();
+					locks.put(stripe, l);
+				}
+				l.add(ev);
+			}
+		}
+	}
+
+	/**
+	* @param int count - number of commands.
+	* @return List<Long> - trace IDs of the slowest commands, slowest first.
+	*/
+	public List<Long> slowest(int count)
+	{
+		ArrayList<Long> ids = new ArrayList<Long>(traces.keySet());
+		final HashMap<Long,Long> latency = new HashMap<Long,Long>();
+		for (Long id : ids) latency.put(id, latency(traces.get(id)));
+		Collections.sort(ids, new Comparator<Long>()
+		{
+			public int compare(Long a, Long b)
+			{
+				return Long.compare(latency.get(b), latency.get(a));
+			}
+		});
+		return ids.subList(0, Math.min(count, ids.size()));
+	}
+
+	/**
+	* @param List<Ev> t - events of a trace.
+	* @return long - latency of the command in nanoseconds, from the client if
+	* it was recorded, from the server otherwise.
+	*/
+	private static long latency(List<Ev> t)
+	{
+		long server = 0;
+		for (Ev ev : t)
+		{
+			if (ev.type.equals("ClientReply")) return ev.e.getLong("latency");
+			if (ev.type.equals("Reply")) server = ev.e.getLong("latency");
+		}
+		return server;
+	}
+
+	/**
+	* Prints the timeline of a command.
+	* @param long id - trace ID of the command.
+	*/
+	public void print(long id)
+	{
+		List<Ev> t = traces.get(id);
+		if (t == null)
+		{
+			System.out.println("trace "+Long.toHexString(id)+": no events");
+			return;
+		}
+		Instant start = t.get(0).time;
+		System.out.println("trace "+Long.toHexString(id)+": "+
+		ms(latency(t))+" ms");
+		for (Ev ev : t)
+		{
+			System.out.println(line(start, ev, "  "));
+			if (ev.type.equals("LockRequest")) printLock(start, ev, t);
+		}
+		System.out.println();
+	}
+
+	/**
+	* Prints what happened on the other servers while a lock request waited.
+	* @param Instant start - time the timeline starts at.
+	* @param Ev req - the LockRequest event.
+	* @param List<Ev> t - events of the trace.
+	*/
+	private void printLock(Instant start, Ev req, List<Ev> t)
+	{
+		int stripe = req.e.getInt("stripe");
+		Instant end = null;
+		for (Ev ev : t)
+		{
+			if (ev.type.equals("LockGrant") && ev.node == req.node &&
+				ev.e.getInt("stripe") == stripe && !ev.time.isBefore(req.time))
+			{
+				end = ev.time;
+				break;
+			}
+		}
+		for (Ev ev : events)
+		{
+			if (!ev.type.equals("MutexMessage") || ev.e.getInt("stripe") != stripe)
+				continue;
+			// the others receiving our request, keyed by our ID and clock
+			boolean ours = ev.e.getInt("from") == req.node &&
+				ev.e.getLong("fromClock") == req.clock;
+			// answers and competing requests we got while waiting
+			boolean waited = ev.node == req.node && !ev.time.isBefore(req.time) &&
+				(end == null || !ev.time.isAfter(end));
+			if (ours || waited) System.out.println(line(start, ev, "    | "));
+		}
+		if (end == null) return;
+		ArrayList<Ev> l = locks.get(stripe);
+		if (l == null) return;
+		for (int i=0;i<l.size();i++)
+		{
+			Ev grant = l.get(i);
+			if (!grant.type.equals("LockGrant") || grant.time.isAfter(end)) continue;
+			if (grant.node == req.node && grant.trace == req.trace) continue;
+			Ev release = null;
+			for (int k=i+1;k<l.size() && release == null;k++)
+			{
+				Ev ev = l.get(k);
+				if (ev.type.equals("LockRelease") && ev.node == grant.node) release = ev;
+			}
+			if (release != null && release.time.isBefore(req.time)) continue;
+			System.out.println("    held by "+node(grant.node)+" from "+
+			offset(start, grant.time)+" to "+
+			(release == null ? "?" : offset(start, release.time))+" ms (trace "+
+			Long.toHexString(grant.trace)+", clock "+grant.clock+")");
+		}
+	}
+
+	/**
+	* @param Instant start - time the timeline starts at.
+	* @param Ev ev - an event.
+	* @param String indent - printed first.
+	* @return String - the event on one line.
+	*/
+	private static String line(Instant start, Ev ev, String indent)
+	{
+		StringBuilder s = new StringBuilder(indent);
+		s.append(String.format("%10s ms  %-6s clock %-10d %-13s", offset(start,
+		ev.time), node(ev.node), ev.clock, ev.type));
+		for (jdk.jfr.ValueDescriptor v : ev.e.getFields())
+		{
+			String f = v.getName();
+			if (f.equals("startTime") || f.equals("duration") ||
+				f.equals("eventThread") || f.equals("stackTrace") ||
+				f.equals("trace") || f.equals("node") || f.equals("clock")) continue;
+			Object value = ev.e.getValue(f);
+			if (v.getAnnotation(jdk.jfr.Timespan.class) != null)
+				value = ms((Long) value)+" ms";
+			s.append(' ').append(f).append('=').append(value);
+		}
+		return s.toString();
+	}
+
+	/**
+	* @param int node - ID of a server, -1 for a client.
+	* @return String - name of the server as in the config file.
+	*/
+	private static String node(int node)
+	{
+		return node < 0 ? "client" : "s"+(node + 1);
+	}
+
+	/**
+	* @param Instant start - time the timeline starts at.
+	* @param Instant time - time of an event.
+	* @return String - milliseconds from start to time.
+	*/
+	private static String offset(Instant start, Instant time)
+	{
+		long ns = (time.getEpochSecond() - start.getEpochSecond()) * 1000000000L +
+			time.getNano() - start.getNano();
+		return ms(ns);
+	}
+
+	/**
+	* @param long ns - nanoseconds.
+	* @return String - the same in milliseconds.
+	*/
+	private static String ms(long ns)
+	{
+		return String.format("%.3f", ns / 1e6);
+	}
+
+	/**
+	* An event of a recording.
+	*/
+	private static class Ev
+	{
+		RecordedEvent e; // the event
+		String type; // name of its type without the library. prefix
+		Instant time; // time it was emitted at
+		long trace; // trace ID, 0 if none
+		int node; // ID of the server, -1 for a client
+		long clock; // Lamport clock of the server
+
+		Ev(RecordedEvent e, String type)
+		{
+			this.e = e;
+			this.type = type;
+			this.time = e.getStartTime();
+			this.trace = e.getLong("trace");
+			this.node = e.getInt("node");
+			this.clock = e.getLong("clock");
+		}
+	}
+
+	/**
+	* @param String[] args - options and recordings, see the top of the file.
+	*/
+	public static void main(String[] args) throws IOException
+	{
+		TraceMerge m = new TraceMerge();
+		long trace = 0;
+		int count = 5;
+		for (int i=0;i<args.length;i++)
+		{
+			if (args[i].equals("-t")) trace = Long.parseUnsignedLong(args[++i], 16);
+			else if (args[i].equals("-n")) count = Integer.parseInt(args[++i]);
+			else m.read(Paths.get(args[i]));
+		}
+		m.index();
+		System.out.println(m.events.size()+" events, "+m.traces.size()+
+		" traced commands\n");
+		if (trace != 0)
+		{
+			m.print(trace);
+		} else {
+			for (long id : m.slowest(count)) m.print(id);
+		}
+	}
+}
@@ -0,0 +1,356 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * FILE: Tracing.java
+ *
+ * JDK Flight Recorder events following a client command through the cluster.
+ * A command carries a trace ID from the client (see LibraryClient.java), or
+ * gets one from the first server when the trace option is on, and the ID
+ * travels with it in REQUEST, FORWARD, COMMAND_BATCH, COMMIT and LOG (see
+ * MessageCodec.java). Every server the command reaches emits an event at
+ * each step, tagged with the trace ID, the ID of the server and its Lamport
+ * clock:
+ *
+ *   library.Received     a server read the command from its client
+ *   library.LockRequest  the server asked for the lock of the stripe
+ *   library.LockGrant    it got the lock, and how long it waited
+ *   library.Broadcast    it sent the command to the other servers
+ *   library.LockRelease  it released the lock
+ *   library.Apply        a server applied the command to its books
+ *   library.Reply        the server answered the client, and how long it took
+ *
+ * The lock events of a stripe carry the trace of the first command queued
+ * on it, the lock round being shared by the whole batch. They are emitted
+ * for every round, with trace 0 if that command is untraced, since a traced
+ * command may wait for the round of an untraced one. Mutex messages
+ * (library.MutexMessage) carry no trace but the ID and clock of their sender,
+ * which match the LockRequest of that sender. TraceMerge.java puts the
+ * recordings of all the servers together into one timeline per command, with
+ * the rounds that held the stripe while it waited.
+ *
+ * A server records them when started with, for instance:
+ *
+ *   java -XX:StartFlightRecording=filename=s1.jfr LibraryServer 3000
+ *
+ * The events cost a check of whether their type is enabled otherwise, made
+ * before anything is allocated, and apart from the lock events the ones of
+ * untraced commands are not emitted at all.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class Tracing
+{
+	// types of the events, checked before an event is allocated
+	private static final EventType RECEIVED =
+		EventType.getEventType(Received.class);
+	private static final EventType LOCK_REQUEST =
+		EventType.getEventType(LockRequest.class);
+	private static final EventType LOCK_GRANT =
+		EventType.getEventType(LockGrant.class);
+	private static final EventType LOCK_RELEASE =
+		EventType.getEventType(LockRelease.class);
+	private static final EventType BROADCAST =
+		EventType.getEventType(Broadcast.class);
+	private static final EventType APPLY =
+		EventType.getEventType(Apply.class);
+	private static final EventType REPLY =
+		EventType.getEventType(Reply.class);
+	private static final EventType MUTEX_MESSAGE =
+		EventType.getEventType(MutexMessage.class);
+	private static final EventType CLIENT_SEND =
+		EventType.getEventType(ClientSend.class);
+	private static final EventType CLIENT_REPLY =
+		EventType.getEventType(ClientReply.class);
+
+	/**
+	* @return boolean - whether the commands a client sends are recorded, the
+	* client only draws trace IDs then.
+	*/
+	static boolean clientEnabled()
+	{
+		return CLIENT_SEND.isEnabled();
+	}
+
+	/**
+	* Emitted by a server when a client command arrives.
+	* @param long trace - trace ID of the command.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param int book - index of the book.
+	* @param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	*/
+	static void received(long trace, int node, long clock, int book, int op)
+	{
+		if (trace == 0) return;
+		if (!RECEIVED.isEnabled()) return;
+		Received e = new Received();
+		e.set(trace, node, clock);
+		e.book = book;
+		e.op = op == MessageCodec.OP_RESERVE ? "reserve" : "return";
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server asking for the lock of a stripe.
+	* @param long trace - trace ID of the first command queued on the stripe.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock the request went out with.
+	* @param int stripe - the stripe.
+	* @param int queued - number of commands queued on the stripe.
+	*/
+	static void lockRequest(long trace, int node, long clock, int stripe,
+	int queued)
+	{
+		if (!LOCK_REQUEST.isEnabled()) return;
+		LockRequest e = new LockRequest();
+		e.set(trace, node, clock);
+		e.stripe = stripe;
+		e.queued = queued;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server getting the lock of a stripe.
+	* @param long trace - trace ID of the first command queued on the stripe.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param int stripe - the stripe.
+	* @param long wait - nanoseconds since the lock was asked for.
+	*/
+	static void lockGrant(long trace, int node, long clock, int stripe, long wait)
+	{
+		if (!LOCK_GRANT.isEnabled()) return;
+		LockGrant e = new LockGrant();
+		e.set(trace, node, clock);
+		e.stripe = stripe;
+		e.wait = wait;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server releasing the lock of a stripe.
+	* @param long trace - trace ID of the first command of the batch.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param int stripe - the stripe.
+	*/
+	static void lockRelease(long trace, int node, long clock, int stripe)
+	{
+		if (!LOCK_RELEASE.isEnabled()) return;
+		LockRelease e = new LockRelease();
+		e.set(trace, node, clock);
+		e.stripe = stripe;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server sending a command to the other servers.
+	* @param long trace - trace ID of the command.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock the command went out with.
+	* @param int stripe - stripe of the command, -1 with the sequencer.
+	*/
+	static void broadcast(long trace, int node, long clock, int stripe)
+	{
+		if (trace == 0) return;
+		if (!BROADCAST.isEnabled()) return;
+		Broadcast e = new Broadcast();
+		e.set(trace, node, clock);
+		e.stripe = stripe;
+		e.commit();
+	}
+
+	/**
+	* Emitted by every server applying a command.
+	* @param long trace - trace ID of the command.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param int origin - server that committed the command.
+	* @param int book - index of the book.
+	* @param boolean ok - whether or not it changed the books.
+	*/
+	static void apply(long trace, int node, long clock, int origin, int book,
+	boolean ok)
+	{
+		if (trace == 0) return;
+		if (!APPLY.isEnabled()) return;
+		Apply e = new Apply();
+		e.set(trace, node, clock);
+		e.origin = origin;
+		e.book = book;
+		e.ok = ok;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server answering a client.
+	* @param long trace - trace ID of the command.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param int outcome - LibraryServer.FAILED, RESERVED or RETURNED.
+	* @param long latency - nanoseconds since the command arrived.
+	*/
+	static void reply(long trace, int node, long clock, int outcome, long latency)
+	{
+		if (trace == 0) return;
+		if (!REPLY.isEnabled()) return;
+		Reply e = new Reply();
+		e.set(trace, node, clock);
+		e.outcome = outcome == LibraryServer.FAILED ? "fail" :
+			outcome == LibraryServer.RESERVED ? "reserved" : "returned";
+		e.latency = latency;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a server receiving a message of the mutex algorithm.
+	* @param int node - ID of the server.
+	* @param long clock - Lamport clock of the server.
+	* @param byte op - opcode of the message.
+	* @param int from - ID of the sending server.
+	* @param long fromClock - clock the message is stamped with.
+	* @param int stripe - stripe the message is about.
+	*/
+	static void mutex(int node, long clock, byte op, int from, long fromClock,
+	int stripe)
+	{
+		if (!MUTEX_MESSAGE.isEnabled()) return;
+		MutexMessage e = new MutexMessage();
+		e.set(0, node, clock);
+		e.op = MessageCodec.name(op);
+		e.from = from;
+		e.fromClock = fromClock;
+		e.stripe = stripe;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a client sending a command.
+	* @param long trace - trace ID of the command.
+	* @param String command - text of the command.
+	*/
+	static void clientSend(long trace, String command)
+	{
+		if (trace == 0 || !CLIENT_SEND.isEnabled()) return;
+		ClientSend e = new ClientSend();
+		e.set(trace, -1, 0);
+		e.command = command;
+		e.commit();
+	}
+
+	/**
+	* Emitted by a client getting the reply to a command.
+	* @param long trace - trace ID of the command.
+	* @param String reply - text of the reply.
+	* @param long latency - nanoseconds since the command was sent.
+	*/
+	static void clientReply(long trace, String reply, long latency)
+	{
+		if (trace == 0 || !CLIENT_REPLY.isEnabled()) return;
+		ClientReply e = new ClientReply();
+		e.set(trace, -1, 0);
+		e.reply = reply;
+		e.latency = latency;
+		e.commit();
+	}
+
+	/**
+	* Fields every event of a command has.
+	*/
+	@Category({"Library", "Trace"})
+	@StackTrace(false)
+	abstract static class TraceEvent extends Event
+	{
+		@Label("Trace") long trace; // trace ID, 0 if none
+		@Label("Node") int node; // ID of the server, -1 for a client
+		@Label("Clock") long clock; // Lamport clock of the server
+
+		void set(long trace, int node, long clock)
+		{
+			this.trace = trace;
+			this.node = node;
+			this.clock = clock;
+		}
+	}
+
+	@Name("library.Received") @Label("Command Received")
+	static class Received extends TraceEvent
+	{
+		@Label("Book") int book;
+		@Label("Operation") String op;
+	}
+
+	@Name("library.LockRequest") @Label("Lock Request")
+	static class LockRequest extends TraceEvent
+	{
+		@Label("Stripe") int stripe;
+		@Label("Queued Commands") int queued;
+	}
+
+	@Name("library.LockGrant") @Label("Lock Grant")
+	static class LockGrant extends TraceEvent
+	{
+		@Label("Stripe") int stripe;
+		@Label("Wait") @Timespan(Timespan.NANOSECONDS) long wait;
+	}
+
+	@Name("library.LockRelease") @Label("Lock Release")
+	static class LockRelease extends TraceEvent
+	{
+		@Label("Stripe") int stripe;
+	}
+
+	@Name("library.Broadcast") @Label("Command Broadcast")
+	static class Broadcast extends TraceEvent
+	{
+		@Label("Stripe") int stripe;
+	}
+
+	@Name("library.Apply") @Label("Command Applied")
+	static class Apply extends TraceEvent
+	{
+		@Label("Origin") int origin;
+		@Label("Book") int book;
+		@Label("Changed") boolean ok;
+	}
+
+	@Name("library.Reply") @Label("Reply Sent")
+	static class Reply extends TraceEvent
+	{
+		@Label("Outcome") String outcome;
+		@Label("Latency") @Timespan(Timespan.NANOSECONDS) long latency;
+	}
+
+	@Name("library.MutexMessage") @Label("Mutex Message Received")
+	@Description("Keyed by the ID and clock of the sender, see LockRequest")
+	static class MutexMessage extends TraceEvent
+	{
+		@Label("Message") String op;
+		@Label("From") int from;
+		@Label("Sender Clock") long fromClock;
+		@Label("Stripe") int stripe;
+	}
+
+	@Name("library.ClientSend") @Label("Client Command Sent")
+	static class ClientSend extends TraceEvent
+	{
+		@Label("Command") String command;
+	}
+
+	@Name("library.ClientReply") @Label("Client Reply Received")
+	static class ClientReply extends TraceEvent
+	{
+		@Label("Reply") String reply;
+		@Label("Latency") @Timespan(Timespan.NANOSECONDS) long latency;
+	}
+}
@@ -0,0 +1,389 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * FILE: WriteAheadLog.java
+ *
+ * Durable log of the reserve/return commands applied to a BookCatalog, so that
+ * a server that restarts comes back with its books instead of an empty
+ * library. Commands are appended to memory mapped segment files of a fixed,
+ * pre-allocated size (wal-N.seg). Appending only copies the record into the
+ * mapping; sync() forces everything appended since the last call to disk at
+ * once, so every command applied during one pass of the main loop shares a
+ * single fsync (group commit). Every checkpointEvery records, and whenever a
+ * segment fills up, the whole catalog is written to a checkpoint file and the
+ * segments it covers are deleted. Recovery loads the checkpoint and replays
+ * the records appended after it. Records carry the origin and version of the
+ * command (see StateTransfer.java) so the version vector is recovered too.
+ *
+ *   record      <length:4> <crc32:4> <clock:8> <origin:4> <version:8> <op:1>
+ *               <book:4> <len:2> <Cx>
+ *   checkpoint  <magic:4> <segment:8> <offset:4> <clock:8> <frames>
+ *
+ * The frames of the checkpoint are the SNAPSHOT and SNAPSHOT_CHUNK frames of
+ * the wire protocol, so the file can be sent to a joining server as is.
+ *
+ * A record with a zero length or a bad checksum ends the log, which is where
+ * a write torn by a crash is cut off.
+ *
+ * Bench.java measures appending with and without group commit (wal.append)
+ * and the recovery of a million books (wal.recover).
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+public class WriteAheadLog
+{
+	private static final int MAGIC = 0x424b4350; // "BKCP"
+	private static final int RECORD_HEADER = 8; // length and checksum
+	private static final int RECORD_FIXED = 27; // record body without <Cx>
+	public static final int CHECKPOINT_HEADER = 24; // bytes before the frames
+
+	private File dir; // directory holding the segments and the checkpoint
+	private int pid; // ID of the server, stamped on the checkpoint frames
+	private long segmentSize; // size of a segment file in bytes
+	private long checkpointEvery; // records appended between checkpoints
+	private BookCatalog books; // catalog the log belongs to
+	private long[] applied; // version vector of the catalog
+	private long[] checkpointApplied; // version vector of the checkpoint
+	private long segment; // number of the segment being written
+	private MappedByteBuffer map; // mapping of the segment being written
+	private int syncedTo; // position up to which the segment is on disk
+	private long sinceCheckpoint; // records appended since the last checkpoint
+	private long maxClock; // highest clock appended or recovered
+	private ByteBuffer rec; // scratch buffer records are encoded into
+	private CRC32 crc;
+
+	/**
+	* @param File dir - directory holding the segments and the checkpoint.
+	* @param int pid - ID of the server.
+	* @param long segmentSize - size of a segment file in bytes.
+	* @param long checkpointEvery - records appended between checkpoints.
+	*/
+	public WriteAheadLog(File dir, int pid, long segmentSize,
+	long checkpointEvery)
+	{
+		this.dir = dir;
+		this.pid = pid;
+		this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+		this.checkpointEvery = Math.max(1, checkpointEvery);
+		this.rec = ByteBuffer.allocate(1024);
+		this.crc = new CRC32();
+	}
+
+	/**
+	* Restores a catalog from the latest checkpoint and the records appended
+	* after it, then opens the log for appending right behind the last valid
+	* record. Must be called before anything is appended.
+	* @param BookCatalog books - freshly created catalog to restore into.
+	* @param long[] applied - version vector to restore into. It is kept and
+	* written to every checkpoint, its owner updates it as commands apply.
+	* @return long - highest clock found in the log, 0 if it was empty.
+	*/
+	public long recover(BookCatalog books, long[] applied) throws IOException
+	{
+		this.books = books;
+		this.applied = applied;
+		dir.mkdirs();
+		long cpSegment = 1;
+		int cpOffset = 0;
+		File cp = checkpointFile();
+		if (cp.exists())
+		{
+			RandomAccessFile f = new RandomAccessFile(cp, "r");
+			try
+			{
+				ByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					f.length());
+				if (b.getInt() != MAGIC) throw new IOException("bad checkpoint");
+				cpSegment = b.getLong();
+				cpOffset = b.getInt();
+				maxClock = b.getLong();
+				while (b.remaining() >= MessageCodec.HEADER)
+				{
+					int len = b.getInt();
+					ByteBuffer frame = b.slice();
+					frame.limit(len);
+					b.position(b.position() + len);
+					byte op = frame.get();
+					MessageCodec.getVarint(frame); // <Pn>
+					MessageCodec.getVarint(frame); // <Pn.clock>
+					long[] v = StateTransfer.load(op, books, frame);
+					if (v != null) checkpointApplied = v;
+				}
+			} finally {
+				f.close();
+			}
+			if (checkpointApplied != null)
+			{
+				for (int i=0;i<applied.length && i<checkpointApplied.length;i++)
+					applied[i] = checkpointApplied[i];
+			}
+		}
+
+		// replay every segment from the one the checkpoint points into
+		long[] segs = segments();
+		long last = cpSegment;
+		int pos = cpOffset;
+		for (long seg : segs)
+		{
+			if (seg < cpSegment)
+			{
+				new File(dir, name(seg)).delete();
+				continue;
+			}
+			MappedByteBuffer m = open(seg);
+			m.position(seg == cpSegment ? cpOffset : 0);
+			while (replay(m)) {}
+			last = seg;
+			pos = m.position();
+		}
+		segment = last;
+		map = open(segment);
+		map.position(pos);
+		syncedTo = pos;
+		sinceCheckpoint = 0;
+		return maxClock;
+	}
+
+	/**
+	* Appends an applied command. It is durable once sync() returns.
+	* @param long clock - Lamport clock the command was applied at.
+	* @param int origin - server that committed the command.
+	* @param long version - version of the command at its origin.
+	* @param int op - MessageCodec.OP_RESERVE or MessageCodec.OP_RETURN.
+	* @param int book - index of the book.
+	* @param String clientID - ID of the client.
+	*/
+	public void append(long clock, int origin, long version, int op, int book,
+	String clientID) throws IOException
+	{
+		byte[] client = clientID.getBytes(StandardCharsets.UTF_8);
+		if (rec.capacity() < RECORD_FIXED + client.length)
+			rec = ByteBuffer.allocate(RECORD_FIXED + client.length);
+		rec.clear();
+		rec.putLong(clock);
+		rec.putInt(origin);
+		rec.putLong(version);
+		rec.put((byte) op);
+		rec.putInt(book);
+		rec.putShort((short) client.length);
+		rec.put(client);
+		rec.flip();
+		if (map.remaining() < RECORD_HEADER + rec.remaining()) roll();
+		crc.reset();
+		crc.update(rec.array(), 0, rec.limit());
+		map.putInt(rec.limit());
+		map.putInt((int) crc.getValue());
+		map.put(rec);
+		if (clock > maxClock) maxClock = clock;
+		sinceCheckpoint++;
+	}
+
+	/**
+	* @return boolean - whether or not records were appended since the last
+	* sync.
+	*/
+	public boolean dirty()
+	{
+		return map.position() > syncedTo;
+	}
+
+	/**
+	* Forces every record appended since the last call to disk, then writes a
+	* checkpoint if enough records have piled up.
+	*/
+	public void sync() throws IOException
+	{
+		force();
+		if (sinceCheckpoint >= checkpointEvery) checkpoint();
+	}
+
+	/**
+	* @return File - the checkpoint file.
+	*/
+	public File checkpointFile()
+	{
+		return new File(dir, "checkpoint");
+	}
+
+	/**
+	* @return long[] - version vector of the checkpoint, null if there is none.
+	*/
+	public long[] checkpointApplied()
+	{
+		return checkpointApplied;
+	}
+
+	/**
+	* Writes the whole catalog to the checkpoint file, replacing the previous
+	* one atomically, and deletes the segments it makes obsolete.
+	*/
+	public void checkpoint() throws IOException
+	{
+		force();
+		File tmp = new File(dir, "checkpoint.tmp");
+		FileChannel ch = new RandomAccessFile(tmp, "rw").getChannel();
+		long[] v = applied.clone();
+		try
+		{
+			ch.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(CHECKPOINT_HEADER);
+			header.putInt(MAGIC);
+			header.putLong(segment);
+			header.putInt(map.position());
+			header.putLong(maxClock);
+			header.flip();
+			while (header.hasRemaining()) ch.write(header);
+			StateTransfer.writeSnapshot(ch, books, v, pid, maxClock);
+			ch.force(false);
+		} finally {
+			ch.close();
+		}
+		Files.move(tmp.toPath(), checkpointFile().toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		checkpointApplied = v;
+		sinceCheckpoint = 0;
+		for (long seg : segments())
+			if (seg < segment) new File(dir, name(seg)).delete();
+	}
+
+	/**
+	* Forces what is left to disk.
+	*/
+	public void close() throws IOException
+	{
+		force();
+	}
+
+	/**
+	* Forces the records appended since the last call to disk. A mapping
+	* reports a failed write back as an UncheckedIOException, it is thrown
+	* as the IOException it wraps like any other failure of the log.
+	*/
+	private void force() throws IOException
+	{
+		if (!dirty()) return;
+		try
+		{
+			map.force(syncedTo, map.position() - syncedTo);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		syncedTo = map.position();
+	}
+
+	/**
+	* Moves on to a new segment once the current one is full. The checkpoint
+	* taken right away makes every older segment obsolete.
+	*/
+	private void roll() throws IOException
+	{
+		force();
+		segment++;
+		map = open(segment);
+		syncedTo = 0;
+		checkpoint();
+	}
+
+	/**
+	* Applies the record at the position of a segment to the catalog.
+	* @param MappedByteBuffer m - segment positioned at a record.
+	* @return boolean - whether or not a valid record was found. If not, the
+	* position is left where the record should have started.
+	*/
+	private boolean replay(MappedByteBuffer m)
+	{
+		int start = m.position();
+		if (m.remaining() < RECORD_HEADER) return false;
+		int len = m.getInt();
+		int sum = m.getInt();
+		if (len < RECORD_FIXED || len > m.remaining())
+		{
+			m.position(start);
+			return false;
+		}
+		byte[] body = new byte[len];
+		m.get(body);
+		crc.reset();
+		crc.update(body, 0, len);
+		if ((int) crc.getValue() != sum)
+		{
+			m.position(start);
+			return false;
+		}
+		ByteBuffer b = ByteBuffer.wrap(body);
+		long clock = b.getLong();
+		int origin = b.getInt();
+		long version = b.getLong();
+		int op = b.get();
+		int book = b.getInt();
+		String client = new String(body, RECORD_FIXED, b.getShort() & 0xffff,
+			StandardCharsets.UTF_8);
+		if (clock > maxClock) maxClock = clock;
+		if (origin >= 0 && origin < applied.length && version > applied[origin])
+			applied[origin] = version;
+		if (book >= books.size()) return true;
+		if (op == MessageCodec.OP_RESERVE) books.reserve(book, books.internClient(client));
+		else books.release(book, books.clientId(client));
+		return true;
+	}
+
+	/**
+	* Maps a segment, creating and pre-allocating it if needed.
+	* @param long seg - number of the segment.
+	* @return MappedByteBuffer - mapping of the whole segment.
+	*/
+	private MappedByteBuffer open(long seg) throws IOException
+	{
+		RandomAccessFile f = new RandomAccessFile(new File(dir, name(seg)), "rw");
+		try
+		{
+			if (f.length() < segmentSize) f.setLength(segmentSize);
+			return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				f.length());
+		} finally {
+			f.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	* @return long[] - numbers of the segments in the directory, in order.
+	*/
+	private long[] segments()
+	{
+		String[] names = dir.list();
+		if (names == null) return new long[0];
+		long[] segs = new long[names.length];
+		int n = 0;
+		for (String s : names)
+		{
+			if (s.startsWith("wal-") && s.endsWith(".seg"))
+				segs[n++] = Long.parseLong(s.substring(4, s.length()-4));
+		}
+		segs = Arrays.copyOf(segs, n);
+		Arrays.sort(segs);
+		return segs;
+	}
+
+	/**
+	* @param long seg - number of a segment.
+	* @return String - file name of the segment.
+	*/
+	private static String name(long seg)
+	{
+		return String.format("wal-%08d.seg", seg);
+	}
+}
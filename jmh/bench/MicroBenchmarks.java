@@ -0,0 +1,182 @@
+package bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FILE: MicroBenchmarks.java
+ *
+ * The microbenchmarks of Bench.java run by JMH, built by the jmh profile of
+ * pom.xml:
+ *
+ *   mvn -P jmh package
+ *   java -jar target/benchmarks.jar [-p workload="codec.decode"] [-rf json]
+ *
+ * The workloads are the ones Bench.java measures, named as it prints them.
+ * JMH needs the benchmarks in a package and the sources are in the default
+ * package, so they are looked up by name with Bench.workload(). A workload
+ * does a batch of operations per call; the benchmarks are grouped by that
+ * batch so that the scores are per operation, as Bench.java prints them.
+ *
+ * Developed as part of a class assignment (CSE535 -- SUNY Korea)
+ *
+ * @author Delvison Castillo (delvison.castillo@sunykorea.ac.kr)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class MicroBenchmarks
+{
+	/**
+	* A workload of Bench.java, set up for a trial and closed after it.
+	*/
+	public abstract static class Workload
+	{
+		LongSupplier run; // one call of the workload
+		AutoCloseable close; // its teardown
+
+		/**
+		* @param String key - name and parameter of the workload.
+		* @param int batch - operations per call it must do.
+		*/
+		void open(String key, int batch) throws Exception
+		{
+			Method m = Class.forName("Bench").getMethod("workload", String.class,
+			int.class);
+			Object w = m.invoke(null, key, batch);
+			run = (LongSupplier) w;
+			close = (AutoCloseable) w;
+		}
+
+		@TearDown(Level.Trial)
+		public void teardown() throws Exception
+		{
+			close.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Single extends Workload
+	{
+		@Param({"codec.request", "codec.batch", "catalog.snapshot books=1000",
+			"catalog.snapshot books=100000", "catalog.snapshot books=1000000",
+			"wal.append group=1", "wal.recover books=1000000"})
+		public String workload;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			open(workload, 1);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Frames extends Workload
+	{
+		@Param({"codec.decode"})
+		public String workload;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			open(workload, 64);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Ops extends Workload
+	{
+		@Param({"catalog.command books=1000", "catalog.command books=100000",
+			"catalog.command books=1000000", "clock.update servers=3",
+			"clock.update servers=5", "clock.hybrid servers=3",
+			"clock.hybrid servers=5", "clock.boxed servers=3",
+			"clock.boxed servers=5", "log.message", "log.skipped"})
+		public String workload;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			open(workload, 1024);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Batch extends Workload
+	{
+		@Param({"apply.batch threads=1", "apply.batch threads=2",
+			"apply.batch threads=4"})
+		public String workload;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			open(workload, 4096);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Group extends Workload
+	{
+		@Param({"wal.append group=32"})
+		public String workload;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			open(workload, 32);
+		}
+	}
+
+	@Benchmark
+	public long single(Single w)
+	{
+		return w.run.getAsLong();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(64)
+	public long frames(Frames w)
+	{
+		return w.run.getAsLong();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(1024)
+	public long ops(Ops w)
+	{
+		return w.run.getAsLong();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(4096)
+	public long batch(Batch w)
+	{
+		return w.run.getAsLong();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(32)
+	public long group(Group w)
+	{
+		return w.run.getAsLong();
+	}
+}